@@ -0,0 +1,71 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Default policy that arranges only when allocation is hurt or about to
+ * be hurt by fragmentation.
+ *
+ * <br>
+ * Index merge costs no copy, it runs once there are allocation failures,
+ * largest free space cannot hold recent largest request, or fragments
+ * hold most free bytes.
+ *
+ * <p>Physical compaction copies all used bytes, so it runs only if it
+ * helps : free bytes are enough for largest request but scattered. It's
+ * urgent with failures or when largest free space is too short, otherwise
+ * it waits until few free bytes are left at spaces that can hold largest
+ * request while buffer is mostly free, which makes copy cheap. Priority
+ * is bytes that join largest free space after compaction.
+ *
+ * @version 1.0
+ */
+public class AdaptiveArrangementPolicy implements ArrangementPolicy {
+  
+  /** Usable bytes below this ratio of free bytes means badly scattered */
+  private final float usableRatio;
+  
+  /** Free bytes above this ratio of capacity means copy is cheap */
+  private final float freeRatio;
+  
+  public AdaptiveArrangementPolicy() {
+    this(0.2f, 0.5f);
+  }
+  
+  public AdaptiveArrangementPolicy(float usableRatio, float freeRatio) {
+    if (usableRatio < 0 || usableRatio > 1 || freeRatio < 0 || freeRatio > 1) {
+      throw new IllegalArgumentException("ratio should be in [0, 1]");
+    }
+    
+    this.usableRatio = usableRatio;
+    this.freeRatio = freeRatio;
+  }
+  
+  public boolean shouldMergeIndex(FragmentationStats stats) {
+    if (stats.getFragmentNum() == 0) {
+      return false;
+    }
+    
+    return stats.getAllocateFailures() > 0 
+        || stats.getLargestFree() < stats.getLargestRequest()
+        || stats.getFragmentBytes() * 2 > stats.getFreeBytes();
+  }
+  
+  public long compactionPriority(FragmentationStats stats) {
+    long reclaimable = stats.getFreeBytes() - stats.getLargestFree();
+    if (reclaimable <= 0 || stats.getFreeBytes() < stats.getLargestRequest()) {
+      return 0L;
+    }
+    
+    if (stats.getAllocateFailures() > 0 || stats.getLargestFree() < stats.getLargestRequest()) {
+      return reclaimable;
+    }
+    
+    long usable = stats.getFreeBytesFor(Math.max(1, stats.getLargestRequest()));
+    if (usable < stats.getFreeBytes() * usableRatio 
+        && stats.getFreeBytes() > stats.getCapacity() * freeRatio) {
+      return reclaimable;
+    }
+    
+    return 0L;
+  }
+  
+}
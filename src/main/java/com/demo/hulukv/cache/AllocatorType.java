@@ -0,0 +1,25 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Strategy of space allocation at direct buffers
+ *
+ * @version 1.0
+ */
+public enum AllocatorType {
+  
+  /** Free spaces with arbitrary length, merged with neighbours */
+  FREE_LIST,
+  
+  /** Pages dedicated to fixed size classes */
+  SLAB,
+  
+  /** Power-of-two blocks, merged with buddy on release */
+  BUDDY,
+  
+  /** Header and footer tags inside buffers, merged with neighbours on release */
+  BOUNDARY_TAG,
+  
+  /** Same as FREE_LIST without arrangement, free space index is kept at direct memory */
+  OFF_HEAP_FREE_LIST;
+  
+}
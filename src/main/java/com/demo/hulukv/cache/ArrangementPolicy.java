@@ -0,0 +1,30 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Decides when free space index is merged and when buffer is compacted
+ * physically, by fragmentation of each buffer.
+ *
+ * <br>
+ * Policy is called by arrangement threads periodically, implementation
+ * should be thread safe and cheap.
+ *
+ * @version 1.0
+ */
+public interface ArrangementPolicy {
+  
+  /**
+   * @param stats
+   * @return <tt>true</tt> if adjacent free spaces of buffer should be merged
+   */
+  boolean shouldMergeIndex(FragmentationStats stats);
+  
+  /**
+   * Buffers with higher priority are compacted first
+   * 
+   * @param stats
+   * @return priority of physical compaction, buffer is not compacted 
+   * unless it's positive
+   */
+  long compactionPriority(FragmentationStats stats);
+  
+}
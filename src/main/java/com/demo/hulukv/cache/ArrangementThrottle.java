@@ -0,0 +1,76 @@
+package com.demo.hulukv.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces physical arrangement between two batches.
+ *
+ * <br>
+ * Copy rate limit keeps average copy speed of one arrangement under
+ * configured MB/s. Adaptive mode backs off exponentially while foreground
+ * operations are waiting for lock of arranging buffer, and recovers by
+ * halving backoff once nobody waits. Pause is the longer one of both.
+ *
+ * @version 1.0
+ */
+class ArrangementThrottle {
+  
+  private static final long MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long MAX_BACKOFF = TimeUnit.MILLISECONDS.toNanos(64);
+  
+  /** Bytes per second, 0 means unlimited */
+  private final long bytesPerSecond;
+  private final boolean isAdaptive;
+  
+  private final long start = System.nanoTime();
+  private long copiedBytes;
+  
+  private long backoff;
+  
+  ArrangementThrottle(MemoryAllocateConf conf) {
+    this.bytesPerSecond = (long) conf.getArrangementCopyRate() << 20;
+    this.isAdaptive = conf.isAdaptiveArrangement();
+  }
+  
+  /**
+   * Waits before next batch
+   * 
+   * @param bytes copied by last batch
+   * @param isContended <tt>true</tt> if foreground operations waited for last batch
+   */
+  void pause(long bytes, boolean isContended) {
+    copiedBytes += bytes;
+    
+    long delay = 0L;
+    if (bytesPerSecond > 0) {
+      long expect = (long) ((double) copiedBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+      delay = expect - (System.nanoTime() - start);
+    }
+    
+    if (isAdaptive) {
+      if (isContended) {
+        backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff << 1, MAX_BACKOFF);
+      } else {
+        backoff = backoff >> 1 < MIN_BACKOFF ? 0 : backoff >> 1;
+      }
+      
+      delay = Math.max(delay, backoff);
+    }
+    
+    if (delay <= 0) {
+      Thread.yield();
+      return;
+    }
+    
+    try {
+      TimeUnit.NANOSECONDS.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  long getBackoff() {
+    return backoff;
+  }
+  
+}
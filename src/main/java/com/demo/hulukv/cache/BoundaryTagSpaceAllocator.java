@@ -0,0 +1,285 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Allocator that keeps boundary tags inside direct buffers.
+ *
+ * <br>
+ * Each block has 4 bytes header and 4 bytes footer, both contain block
+ * length with lowest bit as used flag. Data is put between header and
+ * footer. Neighbours of released block are found by reading footer before
+ * it and header after it, so merging is O(1) without any search.
+ *
+ * <p>Free blocks are linked by (next, previous) offsets behind header,
+ * lists are segregated by highest bit of block length. Allocation takes
+ * first suitable block at list of its own bin, or any block at higher
+ * non-empty bin.
+ *
+ * @version 1.0
+ */
+public class BoundaryTagSpaceAllocator implements SpaceAllocator {
+  
+  private static final int NONE = -1;
+  
+  private static final int TAG = 4;
+  
+  /** Header, next, previous and footer of free block */
+  private static final int MIN_BLOCK = 16;
+  
+  private static final int USED = 1;
+  
+  private static final int BINS = 32;
+  
+  private final PhysicalMemoryManager physicalManager;
+  
+  private final Slice[] slices;
+  
+  private volatile boolean isRunning;
+  
+  public BoundaryTagSpaceAllocator(int bufNum, PhysicalMemoryManager physicalManager) {
+    this.physicalManager = physicalManager;
+    this.slices = new Slice[bufNum];
+    
+    isRunning = true;
+  }
+  
+  public void addSlice(int directId, long capacity) {
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slice larger than 2GB is not supported: " + capacity);
+    }
+    
+    Slice slice = new Slice(directId, (int) capacity & ~7);
+    
+    synchronized (slice) {
+      if (slice.limit >= MIN_BLOCK) {
+        slice.insert(0, slice.limit);
+      }
+    }
+    
+    slices[directId] = slice;
+  }
+  
+  public MemorySpace allocate(int expectLen) throws AllocateFailedException {
+    if (!isRunning) {
+      throw new AllocateFailedException("Boundary tag allocator has been closed");
+    }
+    
+    if (expectLen > Integer.MAX_VALUE - 2 * TAG - 7) {
+      throw new AllocateFailedException("Too large expect length " + expectLen);
+    }
+    
+    int blockLen = Math.max(MIN_BLOCK, (expectLen + 2 * TAG + 7) & ~7);
+    
+    for (Slice slice : slices) {
+      if (slice == null) {
+        continue;
+      }
+      
+      int block = slice.take(blockLen);
+      if (block != NONE) {
+        return new MemorySpace(slice.directId, block + TAG, block + TAG + expectLen);
+      }
+    }
+    
+    throw new AllocateFailedException("No space left for expect length " + expectLen);
+  }
+  
+  /**
+   * Nothing to do, block is never moved
+   */
+  public void commit(MemorySpace space) {
+  }
+  
+  public void addFreeSpace(MemorySpace free) {
+    slices[free.getDirectByteId()].giveBack((int) free.getOffset() - TAG);
+  }
+  
+  public String getStatus() {
+    StringBuffer appender = new StringBuffer();
+    
+    appender.append(Transformer.strFormat("Boundary tag", 45));
+    
+    for (Slice slice : slices) {
+      if (slice == null) {
+        continue;
+      }
+      
+      synchronized (slice) {
+        appender.append(Transformer.strFormat("memory#" + slice.directId + " - " + slice.freeNum
+            + " free blocks " + slice.freeBytes + " bytes", 100));
+      }
+    }
+    
+    return appender.toString();
+  }
+  
+  public void close() {
+    isRunning = false;
+  }
+  
+  /**
+   * Free blocks of specified buffer
+   *
+   * @param directId
+   * @return
+   */
+  int getFreeBlocks(int directId) {
+    Slice slice = slices[directId];
+    synchronized (slice) {
+      return slice.freeNum;
+    }
+  }
+  
+  private static int binOf(int blockLen) {
+    return 31 - Integer.numberOfLeadingZeros(blockLen);
+  }
+  
+  /**
+   * Blocks of one buffer, guarded by itself
+   */
+  private class Slice {
+    
+    private final int directId;
+    private final int limit;
+    
+    /** First free block of each bin */
+    private final int[] heads = new int[BINS];
+    
+    /** Bit is set if list of bin is not empty */
+    private int nonEmptyBins;
+    
+    private int freeNum;
+    private long freeBytes;
+    
+    private Slice(int directId, int limit) {
+      this.directId = directId;
+      this.limit = limit;
+      
+      for (int i = 0; i < BINS; i++) {
+        heads[i] = NONE;
+      }
+    }
+    
+    private synchronized int take(int blockLen) {
+      int bin = binOf(blockLen);
+      
+      int block = NONE;
+      for (int current = heads[bin]; current != NONE; current = nextOf(current)) {
+        if (lengthAt(current) >= blockLen) {
+          block = current;
+          break;
+        }
+      }
+      
+      if (block == NONE) {
+        int higher = bin + 1 < BINS ? nonEmptyBins & (-1 << (bin + 1)) : 0;
+        if (higher == 0) {
+          return NONE;
+        }
+        
+        block = heads[Integer.numberOfTrailingZeros(higher)];
+      }
+      
+      int len = lengthAt(block);
+      unlink(block, len);
+      
+      if (len - blockLen >= MIN_BLOCK) {
+        insert(block + blockLen, len - blockLen);
+        len = blockLen;
+      }
+      
+      tag(block, len, USED);
+      
+      return block;
+    }
+    
+    private synchronized void giveBack(int block) {
+      int header = getInt(block);
+      if ((header & USED) == 0) {
+        throw new IllegalArgumentException("Block " + block + " at memory#" + directId + " is not in use");
+      }
+      
+      int len = header & ~USED;
+      
+      if (block > 0) {
+        int before = getInt(block - TAG);
+        if ((before & USED) == 0) {
+          block -= before;
+          unlink(block, before);
+          len += before;
+        }
+      }
+      
+      if (block + len < limit) {
+        int after = getInt(block + len);
+        if ((after & USED) == 0) {
+          unlink(block + len, after);
+          len += after;
+        }
+      }
+      
+      insert(block, len);
+    }
+    
+    private void insert(int block, int len) {
+      int bin = binOf(len);
+      int head = heads[bin];
+      
+      tag(block, len, 0);
+      putInt(block + TAG, head);
+      putInt(block + 2 * TAG, NONE);
+      if (head != NONE) {
+        putInt(head + 2 * TAG, block);
+      }
+      
+      heads[bin] = block;
+      nonEmptyBins |= 1 << bin;
+      
+      freeNum++;
+      freeBytes += len;
+    }
+    
+    private void unlink(int block, int len) {
+      int bin = binOf(len);
+      int next = nextOf(block);
+      int previous = getInt(block + 2 * TAG);
+      
+      if (previous == NONE) {
+        heads[bin] = next;
+        if (next == NONE) {
+          nonEmptyBins &= ~(1 << bin);
+        }
+      } else {
+        putInt(previous + TAG, next);
+      }
+      
+      if (next != NONE) {
+        putInt(next + 2 * TAG, previous);
+      }
+      
+      freeNum--;
+      freeBytes -= len;
+    }
+    
+    private void tag(int block, int len, int flag) {
+      putInt(block, len | flag);
+      putInt(block + len - TAG, len | flag);
+    }
+    
+    private int lengthAt(int block) {
+      return getInt(block) & ~USED;
+    }
+    
+    private int nextOf(int block) {
+      return getInt(block + TAG);
+    }
+    
+    private int getInt(int offset) {
+      return physicalManager.getInt(directId, offset);
+    }
+    
+    private void putInt(int offset, int value) {
+      physicalManager.putInt(directId, offset, value);
+    }
+  }
+  
+}
@@ -0,0 +1,278 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Buddy system allocator. Each buffer is split into power-of-two blocks,
+ * block of order k is min block length shifted left by k.
+ *
+ * <br>
+ * Data is put into smallest block that not less than its length. Larger
+ * block is split in halves until it matches, released block is merged with
+ * its buddy (offset ^ block length) while buddy is free. Both allocation
+ * and release are O(max order).
+ *
+ * <p>Free blocks of each order are linked by (next, previous) offsets that
+ * written into first 8 bytes of block itself, one bit for each block of
+ * each order tells whether it's free. Heap usage doesn't grow with number
+ * of free blocks.
+ *
+ * @version 1.0
+ */
+public class BuddySpaceAllocator implements SpaceAllocator {
+  
+  private static final int NONE = -1;
+  
+  private final PhysicalMemoryManager physicalManager;
+  
+  private final int minBlock;
+  private final int minShift;
+  private final int maxOrder;
+  
+  private final Slice[] slices;
+  
+  private volatile boolean isRunning;
+  
+  public BuddySpaceAllocator(MemoryAllocateConf conf, int bufNum, PhysicalMemoryManager physicalManager) {
+    this.minBlock = conf.getBuddyMinBlock();
+    this.minShift = Integer.numberOfTrailingZeros(minBlock);
+    
+    int maxBlock = (int) Long.highestOneBit(Math.min(conf.getMemorySlices(), Integer.MAX_VALUE));
+    if (maxBlock < minBlock) {
+      throw new IllegalArgumentException("Memory slice " + conf.getMemorySlices()
+          + " is less than min block " + minBlock);
+    }
+    
+    this.maxOrder = Integer.numberOfTrailingZeros(maxBlock) - minShift;
+    this.physicalManager = physicalManager;
+    this.slices = new Slice[bufNum];
+    
+    isRunning = true;
+  }
+  
+  /**
+   * Buffer is carved into largest aligned blocks from beginning, remaining
+   * bytes that less than min block are never used.
+   */
+  public void addSlice(int directId, long capacity) {
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slice larger than 2GB is not supported: " + capacity);
+    }
+    
+    Slice slice = new Slice(directId, (int) capacity);
+    
+    synchronized (slice) {
+      int offset = 0;
+      for (int order = maxOrder; order >= 0; order--) {
+        int blockLen = minBlock << order;
+        
+        while (capacity - offset >= blockLen) {
+          slice.push(offset, order);
+          offset += blockLen;
+        }
+      }
+    }
+    
+    slices[directId] = slice;
+  }
+  
+  public MemorySpace allocate(int expectLen) throws AllocateFailedException {
+    if (!isRunning) {
+      throw new AllocateFailedException("Buddy allocator has been closed");
+    }
+    
+    int order = orderOf(expectLen);
+    if (order > maxOrder) {
+      throw new AllocateFailedException("Expect length " + expectLen
+          + " exceeds max block " + (minBlock << maxOrder));
+    }
+    
+    for (Slice slice : slices) {
+      if (slice == null) {
+        continue;
+      }
+      
+      int offset = slice.take(order);
+      if (offset != NONE) {
+        return new MemorySpace(slice.directId, offset, offset + expectLen);
+      }
+    }
+    
+    throw new AllocateFailedException("No space left for expect length " + expectLen);
+  }
+  
+  /**
+   * Nothing to do, block is never moved
+   */
+  public void commit(MemorySpace space) {
+  }
+  
+  public void addFreeSpace(MemorySpace free) {
+    slices[free.getDirectByteId()].giveBack((int) free.getOffset(), orderOf((int) free.getSpaceLen()));
+  }
+  
+  public String getStatus() {
+    StringBuffer appender = new StringBuffer();
+    
+    appender.append(Transformer.strFormat("Buddy " + minBlock + " bytes - "
+        + Transformer.getSpecificSize(minBlock << maxOrder), 45));
+    
+    for (Slice slice : slices) {
+      if (slice == null) {
+        continue;
+      }
+      
+      StringBuilder orders = new StringBuilder();
+      long freeBytes = 0L;
+      synchronized (slice) {
+        for (int order = 0; order <= maxOrder; order++) {
+          if (slice.freeNum[order] > 0) {
+            orders.append(" ").append(minBlock << order).append("*").append(slice.freeNum[order]);
+            freeBytes += (long) slice.freeNum[order] * (minBlock << order);
+          }
+        }
+      }
+      
+      appender.append(Transformer.strFormat("memory#" + slice.directId + " free " + freeBytes
+          + " bytes," + orders, 100));
+    }
+    
+    return appender.toString();
+  }
+  
+  public void close() {
+    isRunning = false;
+  }
+  
+  /**
+   * Free blocks of specified order at specified buffer
+   *
+   * @param directId
+   * @param order
+   * @return
+   */
+  int getFreeBlocks(int directId, int order) {
+    Slice slice = slices[directId];
+    synchronized (slice) {
+      return slice.freeNum[order];
+    }
+  }
+  
+  private int orderOf(int len) {
+    if (len <= minBlock) {
+      return 0;
+    }
+    
+    return 32 - Integer.numberOfLeadingZeros((len - 1) >>> minShift);
+  }
+  
+  /**
+   * Free blocks of one buffer, guarded by itself
+   */
+  private class Slice {
+    
+    private final int directId;
+    
+    /** First free block of each order */
+    private final int[] heads;
+    private final int[] freeNum;
+    
+    /** One bit for each block of each order, set if block is free */
+    private final long[][] freeBits;
+    
+    private Slice(int directId, int capacity) {
+      this.directId = directId;
+      this.heads = new int[maxOrder + 1];
+      this.freeNum = new int[maxOrder + 1];
+      this.freeBits = new long[maxOrder + 1][];
+      
+      for (int order = 0; order <= maxOrder; order++) {
+        heads[order] = NONE;
+        
+        int blocks = capacity >>> (minShift + order);
+        freeBits[order] = new long[(blocks >>> 6) + 1];
+      }
+    }
+    
+    private synchronized int take(int order) {
+      int current = order;
+      while (current <= maxOrder && heads[current] == NONE) {
+        current++;
+      }
+      
+      if (current > maxOrder) {
+        return NONE;
+      }
+      
+      int offset = heads[current];
+      unlink(offset, current);
+      
+      // split until block matches, upper halves are free
+      while (current > order) {
+        current--;
+        push(offset + (minBlock << current), current);
+      }
+      
+      return offset;
+    }
+    
+    private synchronized void giveBack(int offset, int order) {
+      while (order < maxOrder) {
+        int buddy = offset ^ (minBlock << order);
+        if (!isFree(buddy, order)) {
+          break;
+        }
+        
+        unlink(buddy, order);
+        
+        offset = Math.min(offset, buddy);
+        order++;
+      }
+      
+      push(offset, order);
+    }
+    
+    private void push(int offset, int order) {
+      int head = heads[order];
+      
+      physicalManager.putInt(directId, offset, head);
+      physicalManager.putInt(directId, offset + 4, NONE);
+      if (head != NONE) {
+        physicalManager.putInt(directId, head + 4, offset);
+      }
+      
+      heads[order] = offset;
+      freeNum[order]++;
+      flip(offset, order);
+    }
+    
+    private void unlink(int offset, int order) {
+      int next = physicalManager.getInt(directId, offset);
+      int previous = physicalManager.getInt(directId, offset + 4);
+      
+      if (previous == NONE) {
+        heads[order] = next;
+      } else {
+        physicalManager.putInt(directId, previous, next);
+      }
+      
+      if (next != NONE) {
+        physicalManager.putInt(directId, next + 4, previous);
+      }
+      
+      freeNum[order]--;
+      flip(offset, order);
+    }
+    
+    private boolean isFree(int offset, int order) {
+      int block = offset >>> (minShift + order);
+      long[] bits = freeBits[order];
+      
+      return (block >>> 6) < bits.length && (bits[block >>> 6] & (1L << block)) != 0;
+    }
+    
+    private void flip(int offset, int order) {
+      int block = offset >>> (minShift + order);
+      freeBits[order][block >>> 6] ^= 1L << block;
+    }
+  }
+  
+}
@@ -2,18 +2,14 @@ package com.demo.hulukv.cache;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,82 +25,193 @@ public class DirectMemoryCache {
 
   private static final Logger LOG = LoggerFactory.getLogger(DirectMemoryCache.class);
   
-  /** Mapping from pointer to physical data located at direct memory */
-  private Pointer[] allocateMapping;
-  private LinkedBlockingQueue<Integer> unAllocatedIndexQueue;
+  /** Longest wait of store for slice lock, and of arrangement for stores */
+  private static final long LOCK_TIMEOUT_SECONDS = 10L;
   
-  private AtomicLong indexIdentity = new AtomicLong();
-  /** elements that allocated from direct memory */
-  private AtomicInteger dataNum = new AtomicInteger();
+  /**
+   * Mapping from pointer to physical data located at direct memory, kept after
+   * close so that lookups made before taking a slice lock still see a table
+   */
+  private final PointerTable allocateMapping;
+  private final SlotAllocator slotAllocator;
   
-  private final ReentrantReadWriteLock memoryArrangementLock = new ReentrantReadWriteLock(true);
+  /** elements that allocated from direct memory */
+  private final StripedCounter dataNum = new StripedCounter();
   
-  private final ReadLock readLock = memoryArrangementLock.readLock();
-  private final WriteLock writeLock = memoryArrangementLock.writeLock();
+  /** 
+   * One lock for each buffer. Arrangement of buffer holds write lock,
+   * other buffers are not affected.
+   */
+  private final ReentrantReadWriteLock[] memoryArrangementLocks;
   
   private MemoryAllocateConf conf;
   
   private final PhysicalMemoryManager physicalManager;
-  private final FreeSpaceIndexManager freeIndexManager;
+  private final SpaceAllocator spaceAllocator;
+  
+  /** Same as space allocator if it's FREE_LIST, otherwise null */
+  private FreeSpaceIndexManager freeIndexManager;
+  
+  /** Buffer is being compacted for failed allocation */
+  private final AtomicBoolean isSyncArranging = new AtomicBoolean();
+  
+  /** Guards adding and removing of slices */
+  private final byte[] sliceLock = new byte[0];
   
   private String nameDescriptor;
   private volatile boolean isRunning;
   
   public DirectMemoryCache(MemoryAllocateConf conf) throws IOException {
+    if (conf.isEnablePhysicalArrangment() && conf.getAllocatorType() != AllocatorType.FREE_LIST) {
+      throw new IllegalArgumentException("Physical arrangement only works with " 
+          + AllocatorType.FREE_LIST + " allocator, current:" + conf.getAllocatorType());
+    }
+    
+    if (conf.getMaxTotalMemory() < conf.getTotalMemory() 
+        || conf.getMinTotalMemory() > conf.getTotalMemory()) {
+      throw new IllegalArgumentException("Total memory " + conf.getTotalMemory() + " should be in [" 
+          + conf.getMinTotalMemory() + ", " + conf.getMaxTotalMemory() + "]");
+    }
+    
+    boolean isElastic = conf.getMaxTotalMemory() > conf.getTotalMemory() 
+        || conf.getMinTotalMemory() < conf.getTotalMemory();
+    if (isElastic && conf.getAllocatorType() != AllocatorType.FREE_LIST) {
+      throw new IllegalArgumentException("Elastic slices only work with " 
+          + AllocatorType.FREE_LIST + " allocator, current:" + conf.getAllocatorType());
+    }
+    
+    if (conf.isLazySlices() && (conf.getAllocatorType() == AllocatorType.BUDDY 
+        || conf.getAllocatorType() == AllocatorType.BOUNDARY_TAG)) {
+      throw new IllegalArgumentException("Lazy slices don't work with " 
+          + conf.getAllocatorType() + " allocator");
+    }
+    
+    if (conf.getMemorySlices() > Integer.MAX_VALUE && (conf.getMemoryType() != MemoryType.NATIVE 
+        || conf.getAllocatorType() != AllocatorType.FREE_LIST)) {
+      throw new IllegalArgumentException("Slice larger than 2GB only works with " + MemoryType.NATIVE 
+          + " memory and " + AllocatorType.FREE_LIST + " allocator, current:" 
+          + conf.getMemoryType() + ", " + conf.getAllocatorType());
+    }
+    
     this.conf = conf;
     
-    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
     Set<MemorySpace> initSpaces = new LinkedHashSet<MemorySpace>();
     
-    try {
-      //Allocate physical memory that user required
-      int index = 0;
-      for (long remaining = conf.getTotalMemory(); remaining > 0; index++) {
-          if (remaining >= conf.getMemorySlices()) {
-            initSpaces.add(new MemorySpace(index, 0, conf.getMemorySlices()));
-            buffers.put(index, ByteBuffer.allocateDirect(conf.getMemorySlices()));
-            remaining -= conf.getMemorySlices();
-          } else {
-            initSpaces.add(new MemorySpace(index, 0, (int) remaining));
-            buffers.put(index, ByteBuffer.allocateDirect((int) remaining));
-            remaining = 0;
-          }
-      }
+    //Split physical memory that user required
+    int index = 0;
+    for (long remaining = conf.getTotalMemory(); remaining > 0; index++) {
+        if (remaining >= conf.getMemorySlices()) {
+          initSpaces.add(new MemorySpace(index, 0, conf.getMemorySlices()));
+          remaining -= conf.getMemorySlices();
+        } else {
+          initSpaces.add(new MemorySpace(index, 0, remaining));
+          remaining = 0;
+        }
+    }
       
-      //Allocate memory that for spare
-      if (conf.isEnablePhysicalArrangment()) {
-        buffers.put(-1, ByteBuffer.allocateDirect(conf.getMemorySlices()));
-      }
-    } catch (Throwable e) {
-      LOG.warn("Maximum setting of direct memory is " 
-          + Transformer.getSpecificSize(DirectUtils.getDirectMemorySize()) 
-          + ", compares with user expect size " 
-          + Transformer.getSpecificSize(conf.getTotalMemory())
-          + ". Using JVM option : " + DirectUtils.MAX_DIRECT_MEMORY_PARAM);
+    // room for slices that might be added up to maximum memory
+    int sliceNum = initSpaces.size() + (int) ((conf.getMaxTotalMemory() - conf.getTotalMemory() 
+        + conf.getMemorySlices() - 1) / conf.getMemorySlices());
+    
+    this.physicalManager = new PhysicalMemoryManager(new MemoryRegionFactory(conf), sliceNum);
+    for (MemorySpace space : initSpaces) {
+      physicalManager.reserveBuffer(space.getDirectByteId(), space.getSpaceLen());
+    }
+    
+    //Spare for each concurrent arrangement
+    if (conf.isEnablePhysicalArrangment() && !conf.isSlidingArrangement()) {
+      physicalManager.reserveSpares(Math.min(conf.getArrangementConcurrency(), index), 
+          conf.getMemorySlices());
+    }
+    
+    if (!conf.isLazySlices()) {
+      try {
+        physicalManager.materializeAll(conf.getPreTouchThreads());
+      } catch (Throwable e) {
+        if (conf.getMemoryType() == MemoryType.DIRECT) {
+          LOG.warn("Maximum setting of direct memory is " 
+              + Transformer.getSpecificSize(DirectUtils.getDirectMemorySize()) 
+              + ", compares with user expect size " 
+              + Transformer.getSpecificSize(conf.getTotalMemory())
+              + ". Using JVM option : " + DirectUtils.MAX_DIRECT_MEMORY_PARAM);
+        }
       
-      throw new IOException("Failed to allocate ", e);
+        physicalManager.close();
+        throw new IOException("Failed to allocate ", e);
+      }
     }
     
-    this.physicalManager = new PhysicalMemoryManager(buffers);
-    this.freeIndexManager = new FreeSpaceIndexManager(conf, initSpaces.size());
+    this.memoryArrangementLocks = new ReentrantReadWriteLock[sliceNum];
+    for (int i = 0; i < memoryArrangementLocks.length; i++) {
+      memoryArrangementLocks[i] = new ReentrantReadWriteLock(true);
+    }
+    switch (conf.getAllocatorType()) {
+      case SLAB : 
+        this.spaceAllocator = new SlabSpaceAllocator(conf, sliceNum);
+        break;
+      case BUDDY : 
+        this.spaceAllocator = new BuddySpaceAllocator(conf, sliceNum, physicalManager);
+        break;
+      case BOUNDARY_TAG : 
+        this.spaceAllocator = new BoundaryTagSpaceAllocator(sliceNum, physicalManager);
+        break;
+      case OFF_HEAP_FREE_LIST : 
+        this.spaceAllocator = new OffHeapFreeListAllocator(conf, sliceNum);
+        break;
+      default : 
+        this.freeIndexManager = new FreeSpaceIndexManager(conf, sliceNum);
+        this.spaceAllocator = freeIndexManager;
+    }
     
     for (MemorySpace free : initSpaces) {
-      this.freeIndexManager.addFreeSpace(free);
+      if (conf.isLazySlices() && freeIndexManager != null) {
+        freeIndexManager.reserve(free.getDirectByteId());
+      }
+      this.spaceAllocator.addSlice(free.getDirectByteId(), free.getSpaceLen());
     }
     
-    allocateMapping = new Pointer[conf.getCapacity()];
-    unAllocatedIndexQueue = new LinkedBlockingQueue<Integer>();
-    for (int i = 0; i < conf.getCapacity(); i++) {
-      unAllocatedIndexQueue.add(i);
+    if (conf.isCompactPointerTable()) {
+      allocateMapping = new PackedPointerTable(conf.getCapacity());
+    } else {
+      allocateMapping = new ObjectPointerTable(conf.getCapacity());
     }
+    slotAllocator = new SlotAllocator(conf.getCapacity());
     
     nameDescriptor = "DM-" + UUID.randomUUID();
     
     
     isRunning = true;
     
+    if (freeIndexManager != null) {
+      new FreeSpaceIndexArrangmentThread(freeIndexManager).start();
+    }
+    
     if (conf.isEnablePhysicalArrangment()) {
-      new PhysicalMemoryArrangementThread(this, initSpaces.size()).start();
+      new PhysicalMemoryArrangementThread(this, sliceNum, 
+          conf.getArrangementConcurrency()).start();
+    }
+    
+    if (isElastic) {
+      new MemorySliceReclaimThread(this).start();
+    }
+    
+    if (conf.isLazySlices() && conf.getPreTouchThreads() > 0) {
+      final int threads = conf.getPreTouchThreads();
+      
+      Thread preTouch = new Thread("MemoryPreTouch") {
+        public void run() {
+          try {
+            physicalManager.materializeAll(threads);
+          } catch (Throwable e) {
+            // OutOfMemoryError is thrown directly by single thread
+            if (isRunning) {
+              LOG.warn("Failed to pre-touch memory, slices are allocated at first use", e);
+            }
+          }
+        }
+      };
+      preTouch.setDaemon(true);
+      preTouch.start();
     }
     
     LOG.info("Direct memory allocated successfully. Name:" + nameDescriptor + ",Total:" 
@@ -121,53 +228,433 @@ public class DirectMemoryCache {
    * @exception AllocateFailedException
    */
   public Pointer store(byte[] data) throws AllocateFailedException {
+    return pointerOf(storeData(data.length, data, null, null));
+  }
+  
+  /**
+   * Stores remaining content of source buffer into direct memory without 
+   * intermediate heap copy. Position of source moves to its limit.
+   * 
+   * @param src
+   * @return
+   * @exception AllocateFailedException
+   */
+  public Pointer store(ByteBuffer src) throws AllocateFailedException {
+    return pointerOf(storeData(lengthOf(src), null, src, null));
+  }
+  
+  /**
+   * Gathering store. Remaining content of all parts are written contiguously
+   * in order as one data. Position of each part moves to its limit.
+   * 
+   * @param parts
+   * @return
+   * @exception AllocateFailedException
+   */
+  public Pointer store(ByteBuffer... parts) throws AllocateFailedException {
+    return pointerOf(storeData(lengthOf(parts), null, null, parts));
+  }
+  
+  /**
+   * Same as {@link #store(byte[])} but returns packed handle, there is no
+   * heap object created for stored data at compact pointer table mode.
+   * 
+   * @param data
+   * @return handle
+   * @exception AllocateFailedException
+   */
+  public long storeHandle(byte[] data) throws AllocateFailedException {
+    return storeData(data.length, data, null, null);
+  }
+  
+  /**
+   * Same as {@link #store(ByteBuffer)} but returns packed handle
+   * 
+   * @param src
+   * @return handle
+   * @exception AllocateFailedException
+   */
+  public long storeHandle(ByteBuffer src) throws AllocateFailedException {
+    return storeData(lengthOf(src), null, src, null);
+  }
+  
+  /**
+   * Same as {@link #store(ByteBuffer...)} but returns packed handle
+   * 
+   * @param parts
+   * @return handle
+   * @exception AllocateFailedException
+   */
+  public long storeHandle(ByteBuffer... parts) throws AllocateFailedException {
+    return storeData(lengthOf(parts), null, null, parts);
+  }
+  
+  /**
+   * Writes one of data, src or parts into newly allocated space
+   * 
+   * @param len total length of source
+   * @return handle of stored data, generation is taken while slice is locked
+   * @throws AllocateFailedException
+   */
+  private long storeData(int len, byte[] data, ByteBuffer src, ByteBuffer[] parts) 
+      throws AllocateFailedException {
     if (!isRunning) {
       throw new AllocateFailedException("inactive cache");
     }
     
-    if (!tryLockShared()) {
+    int index = acquireIndex();
+    MemorySpace space = allocateSpace(index, len);
+    
+    int directId = space.getDirectByteId();
+    long offset = space.getOffset();
+    
+    if (!tryLockShared(directId)) {
+      spaceAllocator.addFreeSpace(space);
+      spaceAllocator.commit(space);
+      slotAllocator.release(index);
+      
       throw new DirectCacheException("Cannot obtains lock to store data ");
     }
     
-    Pointer pointer = null;
+    // buffers and allocator have been cleaned by closing
+    if (!isRunning) {
+      unlockShared(directId);
+      throw new AllocateFailedException("inactive cache");
+    }
+    
     try {
-      Integer index = -1;
-      try {
-        index = unAllocatedIndexQueue.poll(1, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        throw new AllocateFailedException("Wait thread has been interrupted");
+      if (data != null) {
+        physicalManager.writeData(directId, offset, data);
+      } else if (src != null) {
+        physicalManager.writeData(directId, offset, len, src);
+      } else {
+        physicalManager.writeData(directId, offset, len, parts);
+      }
+      
+      int generation = allocateMapping.put(index, directId, offset, len);
+      dataNum.increment();
+      
+      return PointerHandle.encode(index, generation);
+    } catch (RuntimeException e) {
+      // source changed or underflowed while writing, nothing is published
+      spaceAllocator.addFreeSpace(space);
+      slotAllocator.release(index);
+      
+      throw e;
+    } finally {
+      // arrangement collects datas from mapping once all spaces are committed
+      spaceAllocator.commit(space);
+      unlockShared(directId);
+    }
+  }
+  
+  private int lengthOf(ByteBuffer src) {
+    if (src == null || !src.hasRemaining()) {
+      throw new IllegalArgumentException("empty source");
+    }
+    
+    return src.remaining();
+  }
+  
+  private int lengthOf(ByteBuffer[] parts) {
+    if (parts == null) {
+      throw new IllegalArgumentException("parts");
+    }
+    
+    long total = 0L;
+    for (ByteBuffer part : parts) {
+      if (part == null) {
+        throw new IllegalArgumentException("null part");
+      }
+      
+      total += part.remaining();
+    }
+    
+    if (total <= 0 || total > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("total length:" + total);
+    }
+    
+    return (int) total;
+  }
+  
+  /**
+   * Only the storing caller knows the new handle, so its slot cannot be 
+   * released and reused before the pointer is looked up
+   */
+  private Pointer pointerOf(long handle) {
+    return allocateMapping.get(PointerHandle.index(handle));
+  }
+  
+  /**
+   * Fallback of failed allocation. Fragments of buffer that has enough free 
+   * bytes are merged with adjacent large spaces until one fits, then new 
+   * slice is added if memory is under maximum, then buffer is compacted 
+   * synchronously if its datas are within limit. Only one compaction is 
+   * done at a time, others give up at once.
+   * 
+   * @param len
+   * @return null if there is still no space for length
+   */
+  private MemorySpace allocateAfterArrangement(int len) {
+    if (freeIndexManager == null) {
+      return null;
+    }
+    
+    int directId = freeIndexManager.pickFallback(len);
+    if (directId >= 0 && freeIndexManager.mergeFragments(directId, len)) {
+      MemorySpace space = retryAllocate(len);
+      if (space != null) {
+        return space;
+      }
+    }
+    
+    MemorySpace space = allocateFromNewSlice(len);
+    if (space != null || directId < 0) {
+      return space;
+    }
+    
+    long used = physicalManager.getCapacity(directId) - freeIndexManager.getFreeBytes(directId);
+    if (!conf.isEnablePhysicalArrangment() || used > conf.getSyncArrangementLimit()) {
+      return null;
+    }
+    
+    if (!isSyncArranging.compareAndSet(false, true)) {
+      return null;
+    }
+    
+    try {
+      if (!arrangeMemory(directId, null)) {
+        return null;
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to arrange physical memeory#" + directId + " for length " + len, e);
+      return null;
+    } finally {
+      isSyncArranging.set(false);
+    }
+    
+    return retryAllocate(len);
+  }
+  
+  /**
+   * Takes back draining slices, or adds one slice if memory is under 
+   * maximum. Allocation is retried under lock first, so that concurrent 
+   * failures add only one slice.
+   * 
+   * @param len
+   * @return null if there is still no space for length
+   */
+  private MemorySpace allocateFromNewSlice(int len) {
+    if (len > conf.getMemorySlices()) {
+      return null;
+    }
+    
+    synchronized (sliceLock) {
+      MemorySpace space = retryAllocate(len);
+      if (space != null) {
+        return space;
+      }
+      
+      if (freeIndexManager.undrain()) {
+        space = retryAllocate(len);
+        if (space != null) {
+          return space;
+        }
       }
       
-      if (index == null) {
-        throw new AllocateFailedException("No capacity left. Current capacity is :" + allocateMapping.length);
+      return addSlice() ? retryAllocate(len) : null;
+    }
+  }
+  
+  /**
+   * Caller should hold slice lock
+   * 
+   * @return <tt>false</tt> if memory has reached maximum
+   */
+  private boolean addSlice() {
+    long total = 0L;
+    int directId = -1;
+    for (int i = 0; i < memoryArrangementLocks.length; i++) {
+      long capacity = physicalManager.getCapacity(i);
+      if (capacity == 0 && directId < 0) {
+        directId = i;
       }
       
-      MemorySpace space = null;
+      total += capacity;
+    }
+    
+    long len = Math.min(conf.getMemorySlices(), conf.getMaxTotalMemory() - total);
+    if (directId < 0 || len <= 0) {
+      return false;
+    }
+    
+    physicalManager.reserveBuffer(directId, len);
+    if (conf.isLazySlices()) {
+      freeIndexManager.reserve(directId);
+    } else {
       try {
-        space = freeIndexManager.allocate(data.length);
-      } catch (AllocateFailedException e) {
-        //try to allocate from fragment
-        LOG.debug("Failed to allocation at large spaces for length " + data.length, e);
+        physicalManager.materialize(directId);
+      } catch (OutOfMemoryError e) {
+        LOG.warn("Failed to add memory#" + directId + " with " + Transformer.getSpecificSize(len), e);
         
-        unAllocatedIndexQueue.add(index);//return to pool
-        throw e;
+        physicalManager.removeBuffer(directId);
+        return false;
       }
+    }
+    freeIndexManager.addSlice(directId, len);
+    
+    LOG.info("Memory#" + directId + " is added with " + Transformer.getSpecificSize(len) 
+        + ", total " + Transformer.getSpecificSize(total + len));
+    return true;
+  }
+  
+  /**
+   * Drains one slice if other slices are less than half used and memory
+   * stays above minimum without it. Drained slice gives out no space, and
+   * it's removed and cleaned once all its datas are released. Slice with
+   * least datas is chosen.
+   */
+  void reclaimSlices() {
+    synchronized (sliceLock) {
+      long total = 0L;
+      long used = 0L;
+      boolean isDraining = false;
       
-      if (space == null) {
-        throw new AllocateFailedException("Un-expect space for expect length " + data.length);
+      int candidate = -1;
+      long candidateUsed = Long.MAX_VALUE;
+      for (int i = 0; i < memoryArrangementLocks.length; i++) {
+        long capacity = physicalManager.getCapacity(i);
+        if (capacity == 0) {
+          continue;
+        }
+        
+        long sliceUsed = capacity - freeIndexManager.getFreeBytes(i);
+        total += capacity;
+        used += sliceUsed;
+        
+        if (freeIndexManager.isDraining(i)) {
+          isDraining = true;
+        } else if (sliceUsed < candidateUsed) {
+          candidate = i;
+          candidateUsed = sliceUsed;
+        }
       }
       
+      if (!isDraining && candidate >= 0) {
+        long remaining = total - physicalManager.getCapacity(candidate);
+        if (remaining > 0 && remaining >= conf.getMinTotalMemory() && used * 2 <= remaining) {
+          LOG.info("Memory#" + candidate + " is draining, " + candidateUsed + " bytes are left");
+          freeIndexManager.drain(candidate);
+        }
+      }
       
-      pointer = new Pointer(index, space.getDirectByteId(), 
-          indexIdentity.incrementAndGet(), space.getOffset(), space.getSpaceLen());
-      physicalManager.writeData(pointer, data);
-      allocateMapping[index] = pointer;
-      dataNum.incrementAndGet();
+      for (int i = 0; i < memoryArrangementLocks.length; i++) {
+        if (freeIndexManager.isDraining(i)) {
+          removeSlice(i);
+        }
+      }
+    }
+  }
+  
+  private void removeSlice(int directId) {
+    MemoryRegion buffer = null;
+    long capacity = 0;
+    
+    lockExclusive(directId);
+    try {
+      if (!isRunning || !freeIndexManager.removeSlice(directId)) {
+        return;
+      }
+      
+      capacity = physicalManager.getCapacity(directId);
+      buffer = physicalManager.removeBuffer(directId);
     } finally {
-      unlockShared();
+      unlockExclusive(directId);
+    }
+    
+    // lazy slice may be never allocated
+    if (buffer != null) {
+      buffer.free();
+    }
+    
+    LOG.info("Memory#" + directId + " is removed, " + Transformer.getSpecificSize(capacity) 
+        + " is returned");
+  }
+  
+  private MemorySpace retryAllocate(int len) {
+    try {
+      return spaceAllocator.allocate(len);
+    } catch (AllocateFailedException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Obtains free index of pointer table
+   * 
+   * @return
+   * @throws AllocateFailedException
+   */
+  private int acquireIndex() throws AllocateFailedException {
+    int index = SlotAllocator.NO_SLOT;
+    try {
+      index = slotAllocator.acquire(conf.getSlotWaitTimeout(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new AllocateFailedException("Wait thread has been interrupted");
+    }
+    
+    if (index == SlotAllocator.NO_SLOT) {
+      throw new AllocateFailedException("No capacity left. Current capacity is :" + allocateMapping.capacity());
+    }
+    
+    return index;
+  }
+  
+  /**
+   * Obtains free space for expect length. Index is returned back if 
+   * allocation failed.
+   * 
+   * @param index
+   * @param len
+   * @return
+   * @throws AllocateFailedException
+   */
+  private MemorySpace allocateSpace(int index, int len) throws AllocateFailedException {
+    MemorySpace space = null;
+    try {
+      space = spaceAllocator.allocate(len);
+    } catch (AllocateFailedException e) {
+      //try to allocate from fragment
+      LOG.debug("Failed to allocation at large spaces for length " + len, e);
+      
+      space = allocateAfterArrangement(len);
+      if (space == null) {
+        slotAllocator.release(index);//return to pool
+        throw e;
+      }
+    }
+    
+    if (space == null) {
+      slotAllocator.release(index);
+      throw new AllocateFailedException("Un-expect space for expect length " + len);
     }
     
-    return pointer;
+    // lazy slice is allocated at first space given out from it
+    try {
+      physicalManager.materialize(space.getDirectByteId());
+    } catch (OutOfMemoryError e) {
+      spaceAllocator.addFreeSpace(space);
+      spaceAllocator.commit(space);
+      slotAllocator.release(index);
+      
+      throw new AllocateFailedException("Failed to allocate memory#" + space.getDirectByteId(), e);
+    }
+    
+    if (conf.isLazySlices() && freeIndexManager != null) {
+      freeIndexManager.materialized(space.getDirectByteId());
+    }
+    
+    return space;
   }
   
   /**
@@ -177,79 +664,249 @@ public class DirectMemoryCache {
    * @return
    */
   public byte[] getData(Pointer pointer) {
-    if (!isRunning) {
-      throw new IllegalStateException("inactive cache");
-    }
+    checkReadable(pointer);
     
-    if (pointer == null) {
-      throw new IllegalArgumentException("pointer");
+    int directId = lockSharedAt(checkMapping(pointer), "get data");
+    try {
+      return readAt(checkMapping(pointer));
+    } finally {
+      unlockShared(directId);
     }
+  }
+  
+  /**
+   * Copies data into buffer that caller owns without any allocation.
+   * Content is put at current position of dst, position moves forward 
+   * with data length.
+   * 
+   * @param pointer
+   * @param dst buffer with enough remaining for data length
+   * @return bytes that have been copied
+   */
+  public int getData(Pointer pointer, ByteBuffer dst) {
+    checkReadable(pointer);
     
-    if (!tryLockShared()) {
-      throw new DirectCacheException("Cannot obtains lock to get data ");
+    if (dst == null) {
+      throw new IllegalArgumentException("dst");
     }
     
+    int directId = lockSharedAt(checkMapping(pointer), "get data");
     try {
-      Pointer mapping = allocateMapping[pointer.getIndex()];
-      if (mapping == null) {
-        throw new DirectCacheException("No stored pointer. user:" + pointer);
-      }
-      
-      if (pointer.equals(mapping)) {
-        return physicalManager.readData(pointer);
-      } else {
-        throw new DirectCacheException("No match pointer. user:" 
-            + pointer + ", stored:" + mapping);
-      }
+      return readAt(checkMapping(pointer), dst);
     } finally {
-      unlockShared();
+      unlockShared(directId);
     }
   }
   
   /**
-   * Release space and return space to space manager
+   * Copies data into array that caller owns without any allocation.
    * 
    * @param pointer
+   * @param dst array with enough length from offset
+   * @param off start location of dst
+   * @return bytes that have been copied
    */
-  public void release(Pointer pointer) {
+  public int getData(Pointer pointer, byte[] dst, int off) {
+    checkReadable(pointer);
+    
+    if (dst == null) {
+      throw new IllegalArgumentException("dst");
+    }
+    
+    int directId = lockSharedAt(checkMapping(pointer), "get data");
+    try {
+      return readAt(checkMapping(pointer), dst, off);
+    } finally {
+      unlockShared(directId);
+    }
+  }
+  
+  /**
+   * Same as {@link #getData(Pointer)} with handle
+   * 
+   * @param handle
+   * @return
+   */
+  public byte[] getData(long handle) {
+    checkRunning();
+    
+    int directId = lockSharedAt(checkHandle(handle), "get data");
+    try {
+      return readAt(checkHandle(handle));
+    } finally {
+      unlockShared(directId);
+    }
+  }
+  
+  /**
+   * Same as {@link #getData(Pointer, ByteBuffer)} with handle
+   * 
+   * @param handle
+   * @param dst
+   * @return bytes that have been copied
+   */
+  public int getData(long handle, ByteBuffer dst) {
+    checkRunning();
+    
+    if (dst == null) {
+      throw new IllegalArgumentException("dst");
+    }
+    
+    int directId = lockSharedAt(checkHandle(handle), "get data");
+    try {
+      return readAt(checkHandle(handle), dst);
+    } finally {
+      unlockShared(directId);
+    }
+  }
+  
+  /**
+   * Same as {@link #getData(Pointer, byte[], int)} with handle
+   * 
+   * @param handle
+   * @param dst
+   * @param off
+   * @return bytes that have been copied
+   */
+  public int getData(long handle, byte[] dst, int off) {
+    checkRunning();
+    
+    if (dst == null) {
+      throw new IllegalArgumentException("dst");
+    }
+    
+    int directId = lockSharedAt(checkHandle(handle), "get data");
+    try {
+      return readAt(checkHandle(handle), dst, off);
+    } finally {
+      unlockShared(directId);
+    }
+  }
+  
+  private byte[] readAt(int index) {
+    return physicalManager.readData(allocateMapping.getDirectId(index), 
+        allocateMapping.getOffset(index), allocateMapping.getLen(index));
+  }
+  
+  private int readAt(int index, ByteBuffer dst) {
+    return physicalManager.readData(allocateMapping.getDirectId(index), 
+        allocateMapping.getOffset(index), allocateMapping.getLen(index), dst);
+  }
+  
+  private int readAt(int index, byte[] dst, int off) {
+    return physicalManager.readData(allocateMapping.getDirectId(index), 
+        allocateMapping.getOffset(index), allocateMapping.getLen(index), dst, off);
+  }
+  
+  private void checkRunning() {
     if (!isRunning) {
       throw new IllegalStateException("inactive cache");
     }
+  }
+  
+  private void checkReadable(Pointer pointer) {
+    checkRunning();
     
     if (pointer == null) {
       throw new IllegalArgumentException("pointer");
     }
+  }
+  
+  /**
+   * Stored pointer should be same as user specified
+   * 
+   * @param pointer
+   * @return index of stored pointer
+   * @exception DirectCacheException
+   */
+  private int checkMapping(Pointer pointer) {
+    int index = pointer.getIndex();
+    if (!allocateMapping.isStored(index)) {
+      throw new DirectCacheException("No stored pointer. user:" + pointer);
+    }
+    
+    if (!allocateMapping.matches(index, pointer.getTimestamp())) {
+      throw new DirectCacheException("No match pointer. user:" 
+          + pointer + ", stored:" + allocateMapping.get(index));
+    }
+    
+    return index;
+  }
+  
+  /**
+   * Generation of handle should be same as stored one
+   * 
+   * @param handle
+   * @return index of stored pointer
+   * @exception DirectCacheException
+   */
+  private int checkHandle(long handle) {
+    int index = PointerHandle.index(handle);
+    if (index < 0 || index >= allocateMapping.capacity()) {
+      throw new DirectCacheException("Illegal handle. " + PointerHandle.toString(handle));
+    }
+    
+    if (!allocateMapping.isStored(index)) {
+      throw new DirectCacheException("No stored pointer. " + PointerHandle.toString(handle));
+    }
+    
+    if (!allocateMapping.matches(index, PointerHandle.generation(handle))) {
+      throw new DirectCacheException("No match pointer. " + PointerHandle.toString(handle) 
+          + ", stored generation:" + allocateMapping.getGeneration(index));
+    }
+    
+    return index;
+  }
+  
+  /**
+   * Release space and return space to space manager
+   * 
+   * @param pointer
+   */
+  public void release(Pointer pointer) {
+    checkReadable(pointer);
     
-    if (!tryLockShared()) {
-      throw new DirectCacheException("Cannot obtains lock to release data ");
+    int directId = lockSharedAt(checkMapping(pointer), "release data");
+    try {
+      releaseAt(checkMapping(pointer));
+    } finally {
+      unlockShared(directId);
     }
+  }
+  
+  /**
+   * Same as {@link #release(Pointer)} with handle
+   * 
+   * @param handle
+   */
+  public void release(long handle) {
+    checkRunning();
     
+    int directId = lockSharedAt(checkHandle(handle), "release data");
     try {
-      Pointer mapping = allocateMapping[pointer.getIndex()];
-      if (mapping == null) {
-        throw new DirectCacheException("No stored pointer. user:" + pointer);
-      }
-      
-      if (pointer.equals(mapping)) {
-// XXX
-//        MemorySpace freeSpace = new MemorySpace(pointer.getDirectMemoryId(), pointer.getOffset(), 
-//            pointer.getOffset() + pointer.getLen());
-        
-        MemorySpace freeSpace = pointer.toMemorySpace();
-        physicalManager.release(pointer);
-        freeIndexManager.addFreeSpace(freeSpace);
-        
-        allocateMapping[pointer.getIndex()] = null;
-        unAllocatedIndexQueue.add(pointer.getIndex());
-        
-        dataNum.decrementAndGet();
-      } else {
-        throw new DirectCacheException("No match pointer. user:" 
-            + pointer + ", stored:" + mapping);
-      }
+      releaseAt(checkHandle(handle));
     } finally {
-      unlockShared();
+      unlockShared(directId);
+    }
+  }
+  
+  private void releaseAt(int index) {
+    int directId = allocateMapping.getDirectId(index);
+    long offset = allocateMapping.getOffset(index);
+    int len = allocateMapping.getLen(index);
+    
+    allocateMapping.remove(index);
+    
+    physicalManager.release(directId, len);
+    
+    // space of moved data belongs to new layout of arranged buffer
+    if (!physicalManager.takeReleased(directId, offset, len)) {
+      spaceAllocator.addFreeSpace(new MemorySpace(directId, offset, offset + len));
     }
+    
+    slotAllocator.release(index);
+    
+    dataNum.decrement();
   }
   
   
@@ -263,7 +920,7 @@ public class DirectMemoryCache {
     StringBuffer appender = new StringBuffer(100);
     
     appender.append(physicalManager.getStatus())
-            .append(freeIndexManager.getStatus());
+            .append(spaceAllocator.getStatus());
     
     return appender.toString();
   }
@@ -276,34 +933,197 @@ public class DirectMemoryCache {
   }
   
   public int size() {
-    return dataNum.get();
+    return (int) dataNum.sum();
   }
   
   public MemoryAllocateConf getConf() {
     return this.conf;
   }
   
-  void arrangeMemory(int directId) {
-    lockExclusive();
+  /**
+   * Compacts all datas of specified buffer. Only operations at this buffer
+   * are blocked during arrangement, and each pause is not longer than 
+   * arrangement pause limit. Final step switches buffers and adds holes
+   * of datas released during arrangement, it doesn't visit each data.
+   * Batches are paced by {@link ArrangementThrottle}.
+   * 
+   * @param directId
+   * @return <tt>false</tt> if buffer is being arranged or there is no 
+   * spare buffer left
+   */
+  boolean arrangeMemory(int directId) {
+    return arrangeMemory(directId, new ArrangementThrottle(conf));
+  }
+  
+  /**
+   * @param directId
+   * @param throttle null means batches are copied without pause
+   * @return
+   */
+  private boolean arrangeMemory(int directId, ArrangementThrottle throttle) {
+    // nothing has been stored at lazy slice that is not allocated yet
+    if (!physicalManager.isMaterialized(directId) || !freeIndexManager.freeze(directId)) {
+      return false;
+    }
+    // writer of an allocated space may be waiting long for shared lock
+    long commitTimeout = TimeUnit.SECONDS.toNanos(LOCK_TIMEOUT_SECONDS);
+    if (!freeIndexManager.awaitCommitted(directId, commitTimeout)) {
+      LOG.warn("Spaces of memory#" + directId + " are still uncommitted, skip arrangement");
+      freeIndexManager.unfreeze(directId);
+      return false;
+    }
+    
+    long pauseLimit = TimeUnit.MICROSECONDS.toNanos(conf.getArrangementPauseLimit());
     
+    PhysicalMemoryManager.Compaction compaction = null;
+    boolean isDone = false;
     try {
-      physicalManager.memoryCopyFor(directId, allocateMapping);
+      compaction = physicalManager.startCompaction(directId);
+      if (compaction == null) {
+        LOG.warn("No spare buffer left for arrangement of memory#" + directId);
+        return false;
+      }
+      
+      // locations are collected and sorted out of lock
+      compaction.prepare(allocateMapping);
+      
+      boolean isCopied = false;
+      while (!isCopied) {
+        long moved = compaction.getMovedBytes();
+        boolean isContended = false;
+        
+        lockExclusive(directId);
+        try {
+          // buffers might have been cleaned by closing
+          if (!isRunning) {
+            return false;
+          }
+          
+          isCopied = compaction.copyBatch(allocateMapping, 
+              pauseLimit > 0 ? System.nanoTime() + pauseLimit : Long.MAX_VALUE);
+          isContended = memoryArrangementLocks[directId].hasQueuedThreads();
+        } finally {
+          unlockExclusive(directId);
+        }
+        
+        if (!isCopied && throttle != null) {
+          throttle.pause(compaction.getMovedBytes() - moved, isContended);
+        }
+      }
+      
+      long pause;
+      lockExclusive(directId);
+      try {
+        if (!isRunning) {
+          return false;
+        }
+        
+        long start = System.nanoTime();
+        
+        List<MemorySpace> holes = new ArrayList<MemorySpace>();
+        long used = compaction.finish(holes);
+        
+        freeIndexManager.resetFreeSpaces(directId, used, physicalManager.getCapacity(directId));
+        isDone = true;
+        
+        for (MemorySpace hole : holes) {
+          freeIndexManager.addFreeSpace(hole);
+        }
+        
+        pause = System.nanoTime() - start;
+      } finally {
+        unlockExclusive(directId);
+      }
+      
+      if (pauseLimit > 0 && pause > pauseLimit) {
+        LOG.warn("Final step of arrangement for memory#" + directId + " paused " 
+            + TimeUnit.NANOSECONDS.toMicros(pause) + " us, over limit " 
+            + conf.getArrangementPauseLimit() + " us");
+      }
     } finally {
-      unlockExclusive();
+      if (!isDone) {
+        abortArrangement(directId, compaction);
+      }
     }
+    
+    return true;
   }
   
-  private void lockExclusive(){
-    writeLock.lock();
+  /**
+   * Allows allocation from buffer again. Free spaces are replaced if 
+   * datas have been slid before arrangement stopped.
+   * 
+   * @param directId
+   * @param compaction null if it has not been started
+   */
+  private void abortArrangement(int directId, PhysicalMemoryManager.Compaction compaction) {
+    lockExclusive(directId);
+    try {
+      if (compaction == null || !isRunning) {
+        freeIndexManager.unfreeze(directId);
+        return;
+      }
+      
+      List<MemorySpace> holes = new ArrayList<MemorySpace>();
+      if (!compaction.abort(allocateMapping, holes)) {
+        // spaces of datas released after moving are given back
+        for (MemorySpace hole : holes) {
+          freeIndexManager.addFreeSpace(hole);
+        }
+        
+        freeIndexManager.unfreeze(directId);
+        return;
+      }
+      
+      long capacity = physicalManager.getCapacity(directId);
+      freeIndexManager.resetFreeSpaces(directId, capacity, capacity);
+      
+      for (MemorySpace hole : holes) {
+        freeIndexManager.addFreeSpace(hole);
+      }
+    } finally {
+      unlockExclusive(directId);
+    }
   }
   
-  private void unlockExclusive()  {
-    writeLock.unlock();
+  private void lockExclusive(int directId) {
+    memoryArrangementLocks[directId].writeLock().lock();
+  }
+  
+  private void unlockExclusive(int directId)  {
+    memoryArrangementLocks[directId].writeLock().unlock();
+  }
+  
+  /**
+   * Locks buffer where stored data of specified slot is located.
+   * Caller should check stamp again after locking.
+   * 
+   * @param index
+   * @param action
+   * @return locked direct id
+   */
+  private int lockSharedAt(int index, String action) {
+    int directId = allocateMapping.getDirectId(index);
+    if (directId < 0) {
+      throw new DirectCacheException("No stored pointer at index " + index);
+    }
+    
+    if (!tryLockShared(directId)) {
+      throw new DirectCacheException("Cannot obtains lock to " + action + " ");
+    }
+    
+    // mapping has been cleaned if cache was closed while waiting
+    if (!isRunning) {
+      unlockShared(directId);
+      checkRunning();
+    }
+    
+    return directId;
   }
 
-  private boolean tryLockShared() {
+  private boolean tryLockShared(int directId) {
     try {
-      return readLock.tryLock(10, TimeUnit.SECONDS);
+      return memoryArrangementLocks[directId].readLock().tryLock(LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     } catch (InterruptedException ex) {
       LOG.warn("Interrupted while waiting for log shared lock", ex);
     }
@@ -311,8 +1131,8 @@ public class DirectMemoryCache {
     return false;
   }
 
-  private void unlockShared()  {
-    readLock.unlock();
+  private void unlockShared(int directId)  {
+    memoryArrangementLocks[directId].readLock().unlock();
   }
   
   PhysicalMemoryManager getPhysicalMemoryManager() {
@@ -322,7 +1142,17 @@ public class DirectMemoryCache {
   FreeSpaceIndexManager getFreeSpaceIndexManager() {
     return this.freeIndexManager;
   }
+  
+  ReentrantReadWriteLock getSliceLock(int directId) {
+    return memoryArrangementLocks[directId];
+  }
 
+  /**
+   * Stops cache and frees all direct buffers at once. Operations that are
+   * running at buffers are waited, caller should not start new one.
+   * 
+   * @throws IOException
+   */
   public void close() throws IOException {
     if (!isRunning) {
       LOG.info("Direct cache " + nameDescriptor + " is not running");
@@ -331,15 +1161,23 @@ public class DirectMemoryCache {
     
     LOG.info("Start to close direct cache " + nameDescriptor);
     
-    physicalManager.close();
-    freeIndexManager.close();
+    isRunning = false;
+    
+    for (int i = 0; i < memoryArrangementLocks.length; i++) {
+      lockExclusive(i);
+    }
     
-    allocateMapping = null;
-    unAllocatedIndexQueue.clear();
+    try {
+      physicalManager.close();
+      spaceAllocator.close();
     
-    this.dataNum.set(0);
+      this.dataNum.reset();
+    } finally {
+      for (int i = 0; i < memoryArrangementLocks.length; i++) {
+        unlockExclusive(i);
+      }
+    }
     
-    isRunning = false;
     LOG.info("Direct cache closed " + nameDescriptor);
   }
   
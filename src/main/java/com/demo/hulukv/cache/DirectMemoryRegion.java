@@ -0,0 +1,129 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Region that is one ByteBuffer, usually allocated by allocateDirect.
+ *
+ * <br>
+ * Position and limit of shared buffer are never changed, each thread
+ * accesses buffer through its own duplicate view. Ints are accessed by
+ * absolute methods of shared buffer directly. Capacity is limited to
+ * capacity of one buffer.
+ *
+ * @version 1.0
+ */
+public class DirectMemoryRegion implements MemoryRegion {
+  private static final Logger LOG = LoggerFactory.getLogger(DirectMemoryRegion.class);
+  
+  /** Overlapped copy goes through small heap array of each thread */
+  private static final ThreadLocal<byte[]> CHUNKS = new ThreadLocal<byte[]>() {
+    protected byte[] initialValue() {
+      return new byte[64 << 10];
+    }
+  };
+  
+  protected final ByteBuffer buffer;
+  
+  private final ThreadLocal<ByteBuffer> views = new ThreadLocal<ByteBuffer>() {
+    protected ByteBuffer initialValue() {
+      return buffer.duplicate();
+    }
+  };
+  
+  public DirectMemoryRegion(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+  
+  @Override
+  public long capacity() {
+    return buffer.capacity();
+  }
+  
+  @Override
+  public int getInt(long offset) {
+    return buffer.getInt(HeapMemoryRegion.indexOf(offset));
+  }
+  
+  @Override
+  public void putInt(long offset, int value) {
+    buffer.putInt(HeapMemoryRegion.indexOf(offset), value);
+  }
+  
+  @Override
+  public void read(long offset, byte[] dst, int off, int len) {
+    viewOf(offset, len).get(dst, off, len);
+  }
+  
+  @Override
+  public void read(long offset, int len, ByteBuffer dst) {
+    dst.put(viewOf(offset, len));
+  }
+  
+  @Override
+  public void write(long offset, byte[] src, int off, int len) {
+    viewOf(offset, len).put(src, off, len);
+  }
+  
+  @Override
+  public void write(long offset, ByteBuffer src) {
+    viewOf(offset, src.remaining()).put(src);
+  }
+  
+  @Override
+  public void copyTo(long from, MemoryRegion target, long to, int len) {
+    DirectMemoryRegion other = (DirectMemoryRegion) target;
+    
+    if (other != this || to + len <= from || from + len <= to) {
+      int start = HeapMemoryRegion.indexOf(from);
+      ByteBuffer source = buffer.duplicate();
+      source.limit(start + len);
+      source.position(start);
+      
+      other.viewOf(to, len).put(source);
+      return;
+    }
+    
+    if (from == to) {
+      return;
+    }
+    
+    // chunks go backward if target is behind source
+    byte[] chunk = CHUNKS.get();
+    for (int done = 0; done < len; ) {
+      int n = Math.min(chunk.length, len - done);
+      int start = to < from ? done : len - done - n;
+      
+      read(from + start, chunk, 0, n);
+      write(to + start, chunk, 0, n);
+      
+      done += n;
+    }
+  }
+  
+  @Override
+  public void free() {
+    try {
+      DirectUtils.clean(buffer);
+    } catch (Exception e) {
+      LOG.warn("Failed to clean direct buffer, it's left to GC", e);
+    }
+  }
+  
+  /**
+   * Thread own view that ranges from offset to offset + len
+   */
+  private ByteBuffer viewOf(long offset, int len) {
+    int start = HeapMemoryRegion.indexOf(offset);
+    ByteBuffer view = views.get();
+    
+    view.limit(start + len);
+    view.position(start);
+    
+    return view;
+  }
+  
+}
@@ -2,6 +2,7 @@ package com.demo.hulukv.cache;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -56,7 +57,32 @@ public class DirectUtils {
     return Runtime.getRuntime().maxMemory();
   }
   
+  /**
+   * Frees native memory of direct buffer at once instead of waiting for GC.
+   * Buffer, and any duplicate of it, must not be accessed any more.
+   * 
+   * @param buffer direct buffer that is allocated, not duplicate or slice
+   * @throws Exception
+   */
   public static void clean(ByteBuffer buffer) throws Exception {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    
+    // JDK 9+ hides cleaner of buffer, Unsafe.invokeCleaner is exported instead
+    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+    Method invokeCleaner = null;
+    try {
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (NoSuchMethodException e) {}
+    
+    if (invokeCleaner != null) {
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    }
+    
     Method cleanerMethod = buffer.getClass().getMethod("cleaner");
     cleanerMethod.setAccessible(true);
     Object cleaner = cleanerMethod.invoke(buffer);
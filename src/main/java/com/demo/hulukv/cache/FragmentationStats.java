@@ -0,0 +1,134 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Snapshot of free spaces of one buffer and recent allocation requests,
+ * measured for arrangement policy.
+ *
+ * <br>
+ * Free spaces are counted into histogram by highest bit of their length,
+ * bin n holds spaces with length in [2^n, 2^(n+1)). Largest request and
+ * allocation failures are collected from recent windows of all buffers.
+ *
+ * @version 1.0
+ */
+public class FragmentationStats {
+  
+  private final int directId;
+  private final long capacity;
+  
+  private final long freeBytes;
+  private final int freeNum;
+  private final long largestFree;
+  
+  /** Spaces that shorter than fragment limit */
+  private final long fragmentBytes;
+  private final int fragmentNum;
+  
+  private final int[] histogramNum;
+  private final long[] histogramBytes;
+  
+  private final int largestRequest;
+  private final long allocateFailures;
+  
+  FragmentationStats(int directId, long capacity, long largestFree, long fragmentBytes, int fragmentNum,
+      int[] histogramNum, long[] histogramBytes, int largestRequest, long allocateFailures) {
+    this.directId = directId;
+    this.capacity = capacity;
+    this.largestFree = largestFree;
+    this.fragmentBytes = fragmentBytes;
+    this.fragmentNum = fragmentNum;
+    this.histogramNum = histogramNum;
+    this.histogramBytes = histogramBytes;
+    this.largestRequest = largestRequest;
+    this.allocateFailures = allocateFailures;
+    
+    long bytes = 0L;
+    int num = 0;
+    for (int i = 0; i < histogramNum.length; i++) {
+      bytes += histogramBytes[i];
+      num += histogramNum[i];
+    }
+    
+    this.freeBytes = bytes;
+    this.freeNum = num;
+  }
+  
+  public int getDirectId() {
+    return directId;
+  }
+  
+  public long getCapacity() {
+    return capacity;
+  }
+  
+  public long getFreeBytes() {
+    return freeBytes;
+  }
+  
+  public int getFreeNum() {
+    return freeNum;
+  }
+  
+  public long getLargestFree() {
+    return largestFree;
+  }
+  
+  public long getFragmentBytes() {
+    return fragmentBytes;
+  }
+  
+  public int getFragmentNum() {
+    return fragmentNum;
+  }
+  
+  /**
+   * @param bin highest bit of space length
+   * @return free spaces at bin
+   */
+  public int getHistogramNum(int bin) {
+    return histogramNum[bin];
+  }
+  
+  public long getHistogramBytes(int bin) {
+    return histogramBytes[bin];
+  }
+  
+  /**
+   * Free bytes at spaces that surely hold specified length, spaces at 
+   * bin that contains length are not counted.
+   * 
+   * @param len
+   * @return
+   */
+  public long getFreeBytesFor(int len) {
+    int from = len <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(len - 1);
+    
+    long bytes = 0L;
+    for (int i = from; i < histogramBytes.length; i++) {
+      bytes += histogramBytes[i];
+    }
+    
+    return bytes;
+  }
+  
+  /**
+   * @return largest expect length of recent allocations
+   */
+  public int getLargestRequest() {
+    return largestRequest;
+  }
+  
+  /**
+   * @return failed allocations of recent windows
+   */
+  public long getAllocateFailures() {
+    return allocateFailures;
+  }
+  
+  public String toString() {
+    return "memory#" + directId + " free " + freeBytes + " bytes at " + freeNum + " spaces, largest " 
+        + largestFree + ", fragments " + fragmentNum + ", largest request " + largestRequest 
+        + ", failures " + allocateFailures;
+  }
+  
+}
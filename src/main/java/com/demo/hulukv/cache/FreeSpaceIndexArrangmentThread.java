@@ -26,7 +26,7 @@ public class FreeSpaceIndexArrangmentThread extends Thread {
   public void run() {
     int interval = spaceManager.getConf().getArrangementThreadInterval();
     
-    while (true) {
+    while (spaceManager.isRunning()) {
       try {
         spaceManager.arrangeMemory();
       } catch (Exception e) {
@@ -1,15 +1,16 @@
 package com.demo.hulukv.cache;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,12 +30,50 @@ import com.demo.hulukv.cache.IndexedLinkedList.Entry;
  * @since 2012-11-13
  * @version 1.0
  */
-public class FreeSpaceIndexManager {
+public class FreeSpaceIndexManager implements SpaceAllocator {
   private static final Logger LOG = LoggerFactory.getLogger(FreeSpaceIndexManager.class);
   
+  /** Most rounds that index arrangement of one buffer is skipped */
+  private static final int MAX_MERGE_BACKOFF = 64;
+  
+  /** Most fragments visited by merging for one failed allocation */
+  private static final int MAX_FALLBACK_FRAGMENTS = 1024;
+  
+  /** Backoff bounds of waiting for writers of frozen buffer */
+  private static final long MIN_COMMIT_PARK_NANOS = 1000L;
+  private static final long MAX_COMMIT_PARK_NANOS = 1000000L;
+  
+  /** Orders spaces by length, then offset */
+  private static final Comparator<MemorySpace> SIZE_ORDER = new Comparator<MemorySpace>() {
+    public int compare(MemorySpace a, MemorySpace b) {
+      if (a.getSpaceLen() != b.getSpaceLen()) {
+        return a.getSpaceLen() < b.getSpaceLen() ? -1 : 1;
+      }
+      
+      if (a.getOffset() != b.getOffset()) {
+        return a.getOffset() < b.getOffset() ? -1 : 1;
+      }
+      
+      return 0;
+    }
+  };
   
   private byte[] mergeLock = new byte[0];
   
+  /** Independent lock for each buffer at striped mode */
+  private final Object[] stripeLocks;
+  
+  private final boolean isStriped;
+  
+  /** Assigns start buffer for each thread, so threads spread over buffers */
+  private final AtomicInteger stripeSequence = new AtomicInteger();
+  
+  private final ThreadLocal<Integer> homeStripe = new ThreadLocal<Integer>() {
+    protected Integer initialValue() {
+      return (stripeSequence.getAndIncrement() & Integer.MAX_VALUE) % bufNum;
+    }
+  };
+  
   private MemoryAllocateConf conf;
   
   /** Judged by fragment limitation */
@@ -45,18 +84,164 @@ public class FreeSpaceIndexManager {
   
   private int bufNum;
   
+  /** Frozen buffer doesn't give out any space, guarded by lock of buffer */
+  private final boolean[] frozen;
+  
+  /** 
+   * Draining buffer doesn't give out any space either, it's removed once 
+   * all spaces are released. Guarded by lock of buffer 
+   */
+  private final boolean[] draining;
+  
+  /** 
+   * Reserved buffer has not been allocated physically, it gives out space
+   * only if none of allocated buffers can. Guarded by lock of buffer
+   */
+  private final boolean[] reserved;
+  
+  /** Spaces that have been allocated but not committed by caller yet */
+  private final AtomicIntegerArray uncommitted;
+  
+  private final long[] capacities;
+  
+  /** 
+   * Largest request and failures of each buffer at current window, 
+   * they're kept for one more window after rolling 
+   */
+  private final AtomicInteger largestRequest = new AtomicInteger();
+  private final AtomicLongArray allocateFailures;
+  private final AtomicLongArray lastAllocateFailures;
+  private volatile int lastLargestRequest;
+  private volatile long windowStart = System.currentTimeMillis();
+  
+  /** Index arrangement of buffer is backed off while merging frees nothing */
+  private final int[] mergeBackoff;
+  private final int[] skippedRounds;
+  
+  /** Buffer picked for last failed allocation, refreshed by arrangement */
+  private volatile int fallbackCandidate = -1;
+  
   public FreeSpaceIndexManager(MemoryAllocateConf conf, int bufNum) {
     this.conf = conf;
     this.bufNum = bufNum;
     
+    this.isStriped = conf.isStripedAllocation();
+    this.stripeLocks = new Object[bufNum];
+    for (int i = 0; i < bufNum; i++) {
+      stripeLocks[i] = new byte[0];
+    }
+    
+    this.frozen = new boolean[bufNum];
+    this.draining = new boolean[bufNum];
+    this.reserved = new boolean[bufNum];
+    this.uncommitted = new AtomicIntegerArray(bufNum);
+    this.capacities = new long[bufNum];
+    
+    this.allocateFailures = new AtomicLongArray(bufNum);
+    this.lastAllocateFailures = new AtomicLongArray(bufNum);
+    this.mergeBackoff = new int[bufNum];
+    this.skippedRounds = new int[bufNum];
+    
     large = new FreeSpaceRange(bufNum, true);
     fragment = new FreeSpaceRange(bufNum, false);
     
-//    new FreeSpaceIndexArrangmentThread(this).start();
-    
     isRunning = true;
   }
   
+  public void addSlice(int directId, long capacity) {
+    synchronized (lockOf(directId)) {
+      capacities[directId] = capacity;
+      frozen[directId] = false;
+      
+      addFreeSpace(new MemorySpace(directId, 0, capacity));
+    }
+  }
+  
+  /**
+   * Marks specified buffer as not allocated yet, it's taken after all 
+   * allocated buffers
+   * 
+   * @param directId
+   */
+  public void reserve(int directId) {
+    synchronized (lockOf(directId)) {
+      reserved[directId] = true;
+    }
+  }
+  
+  /**
+   * Buffer has been allocated physically, it gives out space as others.
+   * Reserved buffer that failed to allocate stays behind allocated ones.
+   * 
+   * @param directId
+   */
+  public void materialized(int directId) {
+    synchronized (lockOf(directId)) {
+      reserved[directId] = false;
+    }
+  }
+  
+  /**
+   * Stops allocation from specified buffer until it's removed or taken 
+   * back
+   * 
+   * @param directId
+   */
+  public void drain(int directId) {
+    synchronized (lockOf(directId)) {
+      draining[directId] = true;
+    }
+  }
+  
+  public boolean isDraining(int directId) {
+    synchronized (lockOf(directId)) {
+      return draining[directId];
+    }
+  }
+  
+  /**
+   * Allows allocation from all draining buffers again
+   * 
+   * @return <tt>true</tt> if there is any draining buffer
+   */
+  public boolean undrain() {
+    boolean found = false;
+    for (int i = 0; i < bufNum; i++) {
+      synchronized (lockOf(i)) {
+        found |= draining[i];
+        draining[i] = false;
+      }
+    }
+    
+    return found;
+  }
+  
+  /**
+   * Removes draining buffer if all its spaces have been released. Removed
+   * buffer stays frozen until it's added again.
+   * 
+   * @param directId
+   * @return <tt>false</tt> if buffer is not removable
+   */
+  public boolean removeSlice(int directId) {
+    synchronized (lockOf(directId)) {
+      if (!draining[directId] || frozen[directId] || uncommitted.get(directId) > 0 
+          || getFreeBytes(directId) != capacities[directId]) {
+        return false;
+      }
+      
+      large.spacesChainMap.get(directId).clearChain();
+      fragment.spacesChainMap.get(directId).clearChain();
+      
+      capacities[directId] = 0;
+      draining[directId] = false;
+      reserved[directId] = false;
+      frozen[directId] = true;
+      
+      return true;
+    }
+  }
+  
   /**
    * Allocate index to mapping at direct buffer
    * 
@@ -69,29 +254,211 @@ public class FreeSpaceIndexManager {
       throw new AllocateFailedException("Free space manage has been closed");
     }
 
+    recordRequest(expectLen);
+    
+    if (isStriped) {
+      return allocateFromStripes(expectLen);
+    }
+    
     MemorySpace free = null;
     synchronized (mergeLock) {
-      free = large.allocateFromRange(expectLen);
+      free = large.allocateFromRange(expectLen, false);
+      
+      if (free == null) {
+        free = fragment.allocateFromRange(expectLen, false);
+      }
+      
+      if (free == null) {
+        free = large.allocateFromRange(expectLen, true);
+      }
       
       if (free == null) {
-        free = fragment.allocateFromRange(expectLen);
+        free = fragment.allocateFromRange(expectLen, true);
       }
       
       if (free == null) {
+        recordFailure(expectLen);
         throw new AllocateFailedException("No space left for expect length " + expectLen);
       }
+      
+      uncommitted.incrementAndGet(free.getDirectByteId());
     }
     
     return free;
   }
   
+  /**
+   * Starts from buffer that assigned to current thread, only locks one
+   * buffer at a time. Other buffers are tried if current one is exhausted.
+   * Best fit is within each buffer only, first buffer that has any fitting
+   * space wins.
+   * 
+   * @param expectLen
+   * @return
+   * @throws AllocateFailedException
+   */
+  private MemorySpace allocateFromStripes(int expectLen) throws AllocateFailedException {
+    MemorySpace free = allocateFromStripes(expectLen, false);
+    
+    if (free == null) {
+      free = allocateFromStripes(expectLen, true);
+    }
+    
+    if (free == null) {
+      recordFailure(expectLen);
+      throw new AllocateFailedException("No space left for expect length " + expectLen);
+    }
+    
+    return free;
+  }
+  
+  /**
+   * @param expectLen
+   * @param withReserved whether reserved buffers are included
+   * @return null if missing allocation
+   */
+  private MemorySpace allocateFromStripes(int expectLen, boolean withReserved) {
+    int home = homeStripe.get();
+    
+    for (int i = 0; i < bufNum; i++) {
+      int directId = (home + i) % bufNum;
+      
+      synchronized (stripeLocks[directId]) {
+        MemorySpace free = large.allocateFromChain(directId, expectLen, withReserved);
+        
+        if (free == null) {
+          free = fragment.allocateFromChain(directId, expectLen, withReserved);
+        }
+        
+        if (free != null) {
+          LOG.debug("Allocate free space " + free);
+          
+          uncommitted.incrementAndGet(directId);
+          return free;
+        }
+      }
+    }
+    
+    return null;
+  }
+  
+  private void recordRequest(int expectLen) {
+    int largest = largestRequest.get();
+    while (expectLen > largest && !largestRequest.compareAndSet(largest, expectLen)) {
+      largest = largestRequest.get();
+    }
+  }
+  
+  /**
+   * Failure is counted for each buffer that has enough free bytes, only
+   * these buffers can serve the length after arrangement
+   */
+  private void recordFailure(int expectLen) {
+    for (int i = 0; i < bufNum; i++) {
+      if (getFreeBytes(i) >= expectLen) {
+        allocateFailures.incrementAndGet(i);
+      }
+    }
+  }
+  
+  /**
+   * Lock that guards all free spaces of specified buffer
+   * 
+   * @param directId
+   * @return
+   */
+  private Object lockOf(int directId) {
+    return isStriped ? stripeLocks[directId] : mergeLock;
+  }
+  
+  /**
+   * Caller should commit each allocated space once its data has been 
+   * published at pointer table, or it has been given up.
+   * 
+   * @param space
+   */
+  public void commit(MemorySpace space) {
+    uncommitted.decrementAndGet(space.getDirectByteId());
+  }
+  
+  /**
+   * Stops allocation from specified buffer
+   * 
+   * @param directId
+   * @return <tt>false</tt> if it has been frozen by other arrangement
+   */
+  public boolean freeze(int directId) {
+    synchronized (lockOf(directId)) {
+      if (frozen[directId]) {
+        return false;
+      }
+      
+      frozen[directId] = true;
+      return true;
+    }
+  }
+  
+  /**
+   * Waits until all spaces allocated from specified buffer are committed
+   * 
+   * @param directId
+   * @param timeoutNanos
+   * @return false if some space is still being written after timeout
+   */
+  public boolean awaitCommitted(int directId, long timeoutNanos) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    long parkNanos = MIN_COMMIT_PARK_NANOS;
+    while (uncommitted.get(directId) > 0) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      
+      LockSupport.parkNanos(parkNanos);
+      parkNanos = Math.min(MAX_COMMIT_PARK_NANOS, parkNanos << 1);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Replaces all free spaces of frozen buffer with [offset, capacity) and 
+   * allows allocation again.
+   * 
+   * @param directId
+   * @param offset start of free space
+   * @param capacity
+   */
+  public void resetFreeSpaces(int directId, long offset, long capacity) {
+    synchronized (lockOf(directId)) {
+      large.spacesChainMap.get(directId).clearChain();
+      fragment.spacesChainMap.get(directId).clearChain();
+      
+      if (offset < capacity) {
+        addFreeSpace(new MemorySpace(directId, offset, capacity));
+      }
+      
+      frozen[directId] = false;
+    }
+  }
+  
+  /**
+   * Allows allocation from frozen buffer without any change
+   * 
+   * @param directId
+   */
+  public void unfreeze(int directId) {
+    synchronized (lockOf(directId)) {
+      frozen[directId] = false;
+    }
+  }
+  
   /**
    * Inserts into concrete location by space length
    * 
    * @param free
    */
   public void addFreeSpace(MemorySpace free) {
-    synchronized (mergeLock) {
+    synchronized (lockOf(free.getDirectByteId())) {
       if (free.getSpaceLen() < conf.getFragmentLimit()) {
         fragment.addFreeSpaceToRange(free);
       } else {
@@ -101,83 +468,253 @@ public class FreeSpaceIndexManager {
   }
   
   /**
-   * Arrange memory for each physical memory
+   * Merges fragments with adjacent large spaces for each buffer that
+   * policy decides. Buffer where nothing was merged is skipped for 
+   * doubled rounds, until something is merged again.
    */
   public void arrangeMemory() {
+    ArrangementPolicy policy = conf.getArrangementPolicy();
+    
+    fallbackCandidate = mostFree(0);
+    
     for (int i = 0; i < bufNum; i++) {
-      if (shouldArrange(i)) {
+      if (skippedRounds[i] > 0) {
+        skippedRounds[i]--;
+        continue;
+      }
         
-        LOG.info("Start to index arrangement ");
-        synchronized (mergeLock) {
-          
-          int mergeCount = 0;
-          long start = System.currentTimeMillis();
-          
-          IndexedLinkedList<MemorySpace> largeChain = large.getSpecifiedChain(i);
-          IndexedLinkedList<MemorySpace> fragmentChain = fragment.getSpecifiedChain(i);
-          
-          int initLarge = largeChain.size();
-          int initFragment = fragmentChain.size();
-          
-          Set<MemorySpace> needToRemove = new HashSet<MemorySpace>();
-          for (int j = 0; j < fragmentChain.size(); j++) {
-            MemorySpace fragment = fragmentChain.get(j).get();
-            
-            Entry<MemorySpace> insertPoint = largeChain.getNext(fragment);
-            
-            boolean hasMerged = false;
-            if (insertPoint != null) {
-              if (fragment.getLimit() == insertPoint.get().getOffset()) {
-                fragment = new MemorySpace(i, fragment.getOffset(), insertPoint.get().getLimit());
-                
-                largeChain.remove(insertPoint.get());
-                
-                needToRemove.add(fragment);
-                hasMerged = true;
-                mergeCount++;
-              }
-              
-              if (insertPoint.getPrevious() != null  
-                    &&  insertPoint.getPrevious().get() != null 
-                          && insertPoint.getPrevious().get().getLimit() == fragment.getOffset()) {
-                fragment = new MemorySpace(i, insertPoint.getPrevious().get().getOffset(), fragment.getLimit());
-                
-                largeChain.remove(insertPoint.getPrevious().get());
-                
-                needToRemove.add(fragment);
-                hasMerged = true;
-                mergeCount++;
-              }
-            }
-            
-            if (hasMerged) {
-              largeChain.put(fragment);
-            }
-            
-          }
-          
-          if (needToRemove.size() > 0) {
-            Iterator<MemorySpace> it = needToRemove.iterator();
-            while (it.hasNext()) {
-              MemorySpace mp = it.next();
-              fragmentChain.remove(mp);
-            }
-          }
-          
-          long cost = System.currentTimeMillis() - start;
-          
-          LOG.info("Index merge finished. Merged:" + mergeCount + " spaces used " + cost + " ms." +
-              " Before merge : large " + initLarge + " fragment " + initFragment + ". After merge : " +
-              "large " + largeChain.size() + " fragment " + fragmentChain.size());
+      if (!policy.shouldMergeIndex(getFragmentation(i))) {
+        continue;
+      }
+      
+      LOG.debug("Start to index arrangement of memory#" + i);
+      
+      int mergeCount;
+      synchronized (lockOf(i)) {
+        mergeCount = merge(i, 0, Integer.MAX_VALUE);
+      }
+      
+      if (mergeCount > 0) {
+        mergeBackoff[i] = 0;
+      } else if (mergeCount == 0) {
+        mergeBackoff[i] = Math.min(MAX_MERGE_BACKOFF, Math.max(1, mergeBackoff[i] << 1));
+        skippedRounds[i] = mergeBackoff[i];
+      }
+    }
+  }
+  
+  /**
+   * Merges fragments of specified buffer with adjacent large spaces for
+   * failed allocation. Longer fragments are visited first, merging stops
+   * as soon as there is space for expect length.
+   * 
+   * @param directId
+   * @param expectLen
+   * @return <tt>true</tt> if buffer has free space for expect length 
+   * after merging
+   */
+  public boolean mergeFragments(int directId, int expectLen) {
+    synchronized (lockOf(directId)) {
+      if (largestFreeOf(directId) >= expectLen) {
+        return !frozen[directId];
+      }
+      
+      return merge(directId, expectLen, MAX_FALLBACK_FRAGMENTS) >= 0 
+          && largestFreeOf(directId) >= expectLen;
+    }
+  }
+  
+  /**
+   * Caller should hold lock of buffer
+   * 
+   * @param directId
+   * @param expectLen merging stops once space not less than it is merged,
+   * 0 means all fragments are visited
+   * @param limit most fragments to visit
+   * @return spaces that have been merged, -1 if buffer is frozen
+   */
+  private int merge(int directId, int expectLen, int limit) {
+    // free spaces of frozen buffer are replaced after physical arrangement
+    if (frozen[directId]) {
+      return -1;
+    }
+    
+    int mergeCount = 0;
+    long start = System.currentTimeMillis();
+    
+    SpaceChain largeChain = large.spacesChainMap.get(directId);
+    SpaceChain fragmentChain = fragment.spacesChainMap.get(directId);
+    
+    int initLarge = largeChain.spacesNumAtChain.get();
+    int initFragment = fragmentChain.spacesNumAtChain.get();
+    
+    List<MemorySpace> fragments = new ArrayList<MemorySpace>(Math.min(limit, fragmentChain.sizeIndex.size()));
+    for (MemorySpace space : fragmentChain.sizeIndex.descendingSet()) {
+      if (fragments.size() == limit) {
+        break;
+      }
+      
+      fragments.add(space);
+    }
+    
+    for (MemorySpace space : fragments) {
+      Entry<MemorySpace> insertPoint = largeChain.getChain().getNext(space);
+      if (insertPoint == null) {
+        continue;
+      }
+      
+      MemorySpace after = insertPoint.get();
+      MemorySpace before = insertPoint.getPrevious() != null 
+                              ? insertPoint.getPrevious().get() : null;
+      
+      MemorySpace merged = space;
+      if (after != null && merged.getLimit() == after.getOffset()) {
+        merged = new MemorySpace(directId, merged.getOffset(), after.getLimit());
+        
+        largeChain.removeSpace(after);
+        mergeCount++;
+      }
+      
+      if (before != null && before.getLimit() == merged.getOffset()) {
+        merged = new MemorySpace(directId, before.getOffset(), merged.getLimit());
+        
+        largeChain.removeSpace(before);
+        mergeCount++;
+      }
+      
+      if (merged != space) {
+        fragmentChain.removeSpace(space);
+        largeChain.putSpace(merged);
+        
+        if (expectLen > 0 && merged.getSpaceLen() >= expectLen) {
+          break;
         }
       }
     }
+    
+    long cost = System.currentTimeMillis() - start;
+    
+    LOG.debug("Index merge of memory#" + directId + " finished. Merged:" + mergeCount + " spaces used " 
+        + cost + " ms. Before merge : large " + initLarge + " fragment " + initFragment 
+        + ". After merge : large " + largeChain.spacesNumAtChain.get() 
+        + " fragment " + fragmentChain.spacesNumAtChain.get());
+    
+    return mergeCount;
   }
   
-  private boolean shouldArrange(int directId) {
-    // TODO
-    SpaceChain chain = fragment.spacesChainMap.get(directId);
-    return chain.spacesNumAtChain.get() >= 100 || chain.spacesLengthAtChain.get() >= 10 << 20;
+  /**
+   * Buffer that most likely serves expect length after merging or 
+   * compaction : not frozen or draining, free bytes are enough and most.
+   * 
+   * @param expectLen
+   * @return -1 if none of buffers has enough free bytes
+   */
+  public int pickFallback(int expectLen) {
+    int candidate = fallbackCandidate;
+    if (candidate >= 0) {
+      synchronized (lockOf(candidate)) {
+        if (!frozen[candidate] && !draining[candidate] && getFreeBytes(candidate) >= expectLen) {
+          return candidate;
+        }
+      }
+    }
+    
+    int picked = mostFree(expectLen);
+    fallbackCandidate = picked;
+    
+    return picked;
+  }
+  
+  /**
+   * @param expectLen
+   * @return buffer that not frozen or draining and has most free bytes,
+   * -1 if none of buffers has enough free bytes
+   */
+  private int mostFree(int expectLen) {
+    int picked = -1;
+    long mostFree = expectLen - 1L;
+    
+    for (int i = 0; i < bufNum; i++) {
+      synchronized (lockOf(i)) {
+        long free = getFreeBytes(i);
+        if (!frozen[i] && !draining[i] && free > mostFree) {
+          picked = i;
+          mostFree = free;
+        }
+      }
+    }
+    
+    return picked;
+  }
+  
+  /**
+   * @param directId
+   * @return total length of free spaces at specified buffer
+   */
+  public long getFreeBytes(int directId) {
+    return large.spacesChainMap.get(directId).spacesLengthAtChain.get() 
+        + fragment.spacesChainMap.get(directId).spacesLengthAtChain.get();
+  }
+  
+  private long largestFreeOf(int directId) {
+    return Math.max(large.spacesChainMap.get(directId).largestLen, 
+                    fragment.spacesChainMap.get(directId).largestLen);
+  }
+  
+  /**
+   * Measures free spaces of specified buffer and recent requests. 
+   * Counters are kept up to date by each change of chains and read 
+   * without lock, so stats might be in the middle of concurrent change.
+   * 
+   * @param directId
+   * @return
+   */
+  public FragmentationStats getFragmentation(int directId) {
+    rollWindow();
+    
+    int[] histogramNum = new int[64];
+    long[] histogramBytes = new long[64];
+    
+    SpaceChain largeChain = large.spacesChainMap.get(directId);
+    SpaceChain fragmentChain = fragment.spacesChainMap.get(directId);
+    
+    for (SpaceChain chain : new SpaceChain[] {largeChain, fragmentChain}) {
+      for (int bin = 0; bin < histogramNum.length; bin++) {
+        histogramNum[bin] += chain.histogramNum.get(bin);
+        histogramBytes[bin] += chain.histogramBytes.get(bin);
+      }
+    }
+        
+    return new FragmentationStats(directId, capacities[directId], largestFreeOf(directId), 
+        fragmentChain.spacesLengthAtChain.get(), fragmentChain.spacesNumAtChain.get(), 
+        histogramNum, histogramBytes, Math.max(lastLargestRequest, largestRequest.get()), 
+        lastAllocateFailures.get(directId) + allocateFailures.get(directId));
+  }
+  
+  /**
+   * Starts new window of requests after 10 thread intervals
+   */
+  private void rollWindow() {
+    if (System.currentTimeMillis() - windowStart < 10L * conf.getArrangementThreadInterval()) {
+      return;
+    }
+    
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - windowStart < 10L * conf.getArrangementThreadInterval()) {
+        return;
+      }
+    
+      lastLargestRequest = largestRequest.getAndSet(0);
+      for (int i = 0; i < bufNum; i++) {
+        lastAllocateFailures.set(i, allocateFailures.getAndSet(i, 0));
+      }
+      windowStart = now;
+    }
+  }
+  
+  boolean isRunning() {
+    return isRunning;
   }
   
   public String getStat(int directId) {
@@ -240,7 +777,7 @@ public class FreeSpaceIndexManager {
   private class FreeSpaceRange {
     
     private final Map<Integer, SpaceChain> spacesChainMap;
-    private final List<SpaceChain> spacesChainList; //Order to shuffle each time
+    private final List<SpaceChain> spacesChainList; //Ordered by direct id
     
     private FreeSpaceRange(int bufNum, boolean isAllocateDirect) {
       this.spacesChainMap = new HashMap<Integer, SpaceChain>();
@@ -253,35 +790,57 @@ public class FreeSpaceIndexManager {
     }
     
     /**
+     * Best fit among all buffers, buffer visited first wins between spaces
+     * with same length
+     * 
      * @param expectLen
+     * @param withReserved whether reserved buffers are included
      * @return null if missing allocation
      */
-    private MemorySpace allocateFromRange(int expectLen) {
-      Collections.shuffle(spacesChainList);
+    private MemorySpace allocateFromRange(int expectLen, boolean withReserved) {
+      int home = homeStripe.get();
       
-      MemorySpace free = null;
-      for (SpaceChain chain : spacesChainList) {
-        free = chain.findSuitableFreeSpace(expectLen);
+      SpaceChain bestChain = null;
+      MemorySpace best = null;
+      for (int i = 0; i < bufNum; i++) {
+        SpaceChain chain = spacesChainList.get((home + i) % bufNum);
         
-        if (free != null) {
-          LOG.debug("Allocate free space " + free);
-          break;
+        MemorySpace candidate = chain.bestFitOf(expectLen, withReserved);
+        if (candidate != null && (best == null || candidate.getSpaceLen() < best.getSpaceLen())) {
+          bestChain = chain;
+          best = candidate;
+          
+          if (best.getSpaceLen() == expectLen) {
+            break;
+          }
         }
       }
       
+      if (best == null) {
+        return null;
+      }
+      
+      MemorySpace free = bestChain.takeSpace(best, expectLen);
+      LOG.debug("Allocate free space " + free);
+      
       return free;
     }
     
+    /**
+     * @param directId
+     * @param expectLen
+     * @param withReserved
+     * @return null if missing allocation at specified buffer
+     */
+    private MemorySpace allocateFromChain(int directId, int expectLen, boolean withReserved) {
+      return spacesChainMap.get(directId).findSuitableFreeSpace(expectLen, withReserved);
+    }
+    
     private void addFreeSpaceToRange(MemorySpace free) {
       SpaceChain chain = spacesChainMap.get(free.getDirectByteId());
       chain.addSpace(free);
     }
     
-    private IndexedLinkedList<MemorySpace> getSpecifiedChain(int directId) {
-      SpaceChain chain = spacesChainMap.get(directId);
-      return chain.getChain();
-    }
-    
     private long getSpacesLengthAtRange() {
       long total = 0L;
       
@@ -327,10 +886,21 @@ public class FreeSpaceIndexManager {
     private AtomicLong spacesLengthAtChain = new AtomicLong();
     private AtomicInteger spacesNumAtChain = new AtomicInteger(); 
     
-    private int initCapacity = -1;
+    /** Spaces by highest bit of length, for reading without lock */
+    private final AtomicIntegerArray histogramNum = new AtomicIntegerArray(64);
+    private final AtomicLongArray histogramBytes = new AtomicLongArray(64);
+    
+    /** Length of largest space, written under lock of buffer */
+    private volatile long largestLen;
     
+    private long initCapacity = -1;
+    
+    /** Free spaces ordered by offset, for merging with neighbours */
     private final IndexedLinkedList<MemorySpace> chain;
     
+    /** Same spaces ordered by length, for best fit allocation */
+    private final TreeSet<MemorySpace> sizeIndex = new TreeSet<MemorySpace>(SIZE_ORDER);
+    
     private boolean isLarge;
     
     private SpaceChain(int directId, boolean isAllocateDirect) {
@@ -347,12 +917,8 @@ public class FreeSpaceIndexManager {
      * @param free
      */
     private void addSpace(MemorySpace free) {
-//      int oriSize = chain.size();
       addSpaceToList(chain, free);
       
-      spacesNumAtChain.addAndGet(1);
-      spacesLengthAtChain.addAndGet(free.getSpaceLen());
-      
       if (initCapacity == -1) {
         initCapacity = free.getSpaceLen();
       }
@@ -370,55 +936,117 @@ public class FreeSpaceIndexManager {
     
     private void clearChain() {
       this.chain.clear();
+      this.sizeIndex.clear();
       
       this.spacesLengthAtChain.set(0L);
       this.spacesNumAtChain.set(0);
+      
+      for (int bin = 0; bin < histogramNum.length(); bin++) {
+        this.histogramNum.set(bin, 0);
+        this.histogramBytes.set(bin, 0L);
+      }
+      this.largestLen = 0;
+    }
+    
+    /**
+     * Puts space into both address order and size order
+     * 
+     * @param space
+     */
+    private void putSpace(MemorySpace space) {
+      this.chain.put(space);
+      this.sizeIndex.add(space);
+      
+      this.spacesNumAtChain.incrementAndGet();
+      this.spacesLengthAtChain.addAndGet(space.getSpaceLen());
+      
+      count(space.getSpaceLen(), 1);
+      if (space.getSpaceLen() > largestLen) {
+        largestLen = space.getSpaceLen();
+      }
+    }
+    
+    private void removeSpace(MemorySpace space) {
+      this.chain.remove(space);
+      this.sizeIndex.remove(space);
+      
+      this.spacesNumAtChain.decrementAndGet();
+      this.spacesLengthAtChain.addAndGet(-space.getSpaceLen());
+      
+      count(space.getSpaceLen(), -1);
+      if (space.getSpaceLen() == largestLen) {
+        largestLen = sizeIndex.isEmpty() ? 0 : sizeIndex.last().getSpaceLen();
+      }
+    }
+    
+    private void count(long len, int delta) {
+      int bin = 63 - Long.numberOfLeadingZeros(len);
+      if (bin >= 0) {
+        histogramNum.addAndGet(bin, delta);
+        histogramBytes.addAndGet(bin, delta * len);
+      }
     }
     
     /**
+     * Best fit of this buffer only, caller holds lock of this buffer
+     * 
      * @param expectLen
+     * @param withReserved whether space can be given out from reserved buffer
      * @return null if it cannot find suitable space
      */
-    private MemorySpace findSuitableFreeSpace(int expectLen) {
-      MemorySpace fakeSpace = new MemorySpace(directMemoryId, 0, expectLen);
+    private MemorySpace findSuitableFreeSpace(int expectLen, boolean withReserved) {
+      MemorySpace needHandle = bestFitOf(expectLen, withReserved);
       
-      Entry<MemorySpace> space = this.chain.getNext(fakeSpace);
-      if (space == null) {
+      return needHandle == null ? null : takeSpace(needHandle, expectLen);
+    }
+    
+    /**
+     * Best fit : smallest space that not less than expect length, 
+     * lower offset is preferred between spaces with same length.
+     * Nothing is changed.
+     * 
+     * @param expectLen
+     * @param withReserved whether space can be given out from reserved buffer
+     * @return null if it cannot find suitable space
+     */
+    private MemorySpace bestFitOf(int expectLen, boolean withReserved) {
+      if (frozen[directMemoryId] || draining[directMemoryId] 
+          || (reserved[directMemoryId] && !withReserved)) {
         return null;
       }
       
-      MemorySpace needHandle = space.get();
-      if (needHandle != null) {
-        if (needHandle.getSpaceLen() >= expectLen) {
-          boolean needSplit = (needHandle.getSpaceLen() - expectLen) > 0 ;
-          
-          this.chain.remove(needHandle);
-          
-          this.spacesLengthAtChain.addAndGet(-needHandle.getSpaceLen());
-          if (needSplit) {
-            MemorySpace result = new MemorySpace(directMemoryId, needHandle.getOffset(), 
-                                                needHandle.getOffset() + expectLen);
-            
-            MemorySpace left = new MemorySpace(directMemoryId, needHandle.getOffset() + expectLen, 
-                                          needHandle.getLimit());
-            
-            if (left.getSpaceLen() < conf.getFragmentLimit()) {
-              fragment.addFreeSpaceToRange(left);
-              this.spacesNumAtChain.decrementAndGet();
-            } else {
-              this.chain.put(left);
-              this.spacesLengthAtChain.addAndGet(left.getSpaceLen());
-            }
-            
-            return result;
-          } else {
-            this.spacesNumAtChain.decrementAndGet();
-            return needHandle;
-          }
-        }
+      MemorySpace fakeSpace = new MemorySpace(directMemoryId, 0, expectLen);
+      
+      return this.sizeIndex.ceiling(fakeSpace);
+    }
+    
+    /**
+     * Gives out head of specified space, rest of it is put back
+     * 
+     * @param needHandle space of this chain that found by best fit
+     * @param expectLen
+     * @return
+     */
+    private MemorySpace takeSpace(MemorySpace needHandle, int expectLen) {
+      removeSpace(needHandle);
+      
+      if (needHandle.getSpaceLen() == expectLen) {
+        return needHandle;
       }
       
-      return null;
+      MemorySpace result = new MemorySpace(directMemoryId, needHandle.getOffset(), 
+                                          needHandle.getOffset() + expectLen);
+      
+      MemorySpace left = new MemorySpace(directMemoryId, needHandle.getOffset() + expectLen, 
+                                    needHandle.getLimit());
+      
+      if (left.getSpaceLen() < conf.getFragmentLimit()) {
+        fragment.addFreeSpaceToRange(left);
+      } else {
+        putSpace(left);
+      }
+      
+      return result;
     }
     
     /**
@@ -455,17 +1083,13 @@ public class FreeSpaceIndexManager {
         }
         
         for (MemorySpace removePoint : needToRemove) {
-          list.remove(removePoint);
-          this.spacesNumAtChain.decrementAndGet();
+          removeSpace(removePoint);
         }
         
         if (!isLarge && space.getSpaceLen() > conf.getFragmentLimit()) {
           large.addFreeSpaceToRange(space);
-          
-          this.spacesNumAtChain.decrementAndGet();
-          this.spacesLengthAtChain.addAndGet(-space.getSpaceLen());
         } else {
-          list.put(space);
+          putSpace(space);
         }
       }
     }
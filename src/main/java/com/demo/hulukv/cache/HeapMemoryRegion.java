@@ -0,0 +1,85 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Region that is one byte array at java heap.
+ *
+ * <br>
+ * Ints are accessed by absolute methods of one shared wrapper, which
+ * never changes its position. Region is freed by GC after it's dropped.
+ * Capacity is limited to length of one array.
+ *
+ * @version 1.0
+ */
+public class HeapMemoryRegion implements MemoryRegion {
+  
+  private final byte[] array;
+  private final ByteBuffer wrapper;
+  
+  public HeapMemoryRegion(int capacity) {
+    this.array = new byte[capacity];
+    this.wrapper = ByteBuffer.wrap(array);
+  }
+  
+  @Override
+  public long capacity() {
+    return array.length;
+  }
+  
+  @Override
+  public int getInt(long offset) {
+    return wrapper.getInt(indexOf(offset));
+  }
+  
+  @Override
+  public void putInt(long offset, int value) {
+    wrapper.putInt(indexOf(offset), value);
+  }
+  
+  @Override
+  public void read(long offset, byte[] dst, int off, int len) {
+    System.arraycopy(array, indexOf(offset), dst, off, len);
+  }
+  
+  @Override
+  public void read(long offset, int len, ByteBuffer dst) {
+    dst.put(array, indexOf(offset), len);
+  }
+  
+  @Override
+  public void write(long offset, byte[] src, int off, int len) {
+    System.arraycopy(src, off, array, indexOf(offset), len);
+  }
+  
+  @Override
+  public void write(long offset, ByteBuffer src) {
+    int len = src.remaining();
+    if (offset < 0 || offset > array.length - len) {
+      throw new IndexOutOfBoundsException("offset:" + offset + ", len:" + len);
+    }
+    
+    src.get(array, indexOf(offset), len);
+  }
+  
+  @Override
+  public void copyTo(long from, MemoryRegion target, long to, int len) {
+    System.arraycopy(array, indexOf(from), ((HeapMemoryRegion) target).array, indexOf(to), len);
+  }
+  
+  @Override
+  public void free() {
+  }
+  
+  /**
+   * Offset beyond int is rejected instead of being truncated
+   */
+  static int indexOf(long offset) {
+    if (offset != (int) offset) {
+      throw new IndexOutOfBoundsException("offset:" + offset);
+    }
+    
+    return (int) offset;
+  }
+  
+}
@@ -0,0 +1,75 @@
+package com.demo.hulukv.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Region that is temporary file mapped into memory.
+ *
+ * <br>
+ * File is created under specified directory with region capacity, and
+ * deleted once region is freed. Pages are backed by file instead of swap,
+ * kernel might write them back under memory pressure. File on tmpfs or
+ * hugetlbfs keeps all pages at memory.
+ *
+ * @version 1.0
+ */
+public class MappedMemoryRegion extends DirectMemoryRegion {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedMemoryRegion.class);
+  
+  private final File file;
+  
+  private MappedMemoryRegion(MappedByteBuffer buffer, File file) {
+    super(buffer);
+    
+    this.file = file;
+  }
+  
+  /**
+   * @param directory where temporary file is created
+   * @param capacity
+   * @return
+   * @throws IOException
+   */
+  public static MappedMemoryRegion map(File directory, int capacity) throws IOException {
+    File file = File.createTempFile("hulu-memory-", ".region", directory);
+    file.deleteOnExit();
+    
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+      raf.setLength(capacity);
+      
+      // mapping stays valid after channel is closed
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      
+      return new MappedMemoryRegion(buffer, file);
+    } catch (IOException e) {
+      if (!file.delete()) {
+        LOG.warn("Failed to delete " + file);
+      }
+      
+      throw e;
+    } finally {
+      if (raf != null) {
+        raf.close();
+      }
+    }
+  }
+  
+  @Override
+  public void free() {
+    super.free();
+    
+    if (!file.delete()) {
+      LOG.warn("Failed to delete " + file + ", it's deleted at exit");
+    }
+  }
+  
+}
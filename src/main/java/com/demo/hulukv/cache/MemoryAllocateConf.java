@@ -12,12 +12,48 @@ public class MemoryAllocateConf {
   /** Expect memory size at off-heap */
   private long totalMemory =  1 << 30;
   
-  /** Split total memory into multiple slices */
-  private int memorySlices = 1 << 30;
+  /** 
+   * Split total memory into multiple slices, slice larger than 2GB only
+   * works with NATIVE memory and FREE_LIST
+   */
+  private long memorySlices = 1 << 30;
+  
+  /** 
+   * Slices are added under memory pressure up to this size, 0 means same
+   * as total memory. Only works with FREE_LIST
+   */
+  private long maxTotalMemory = 0L;
+  
+  /** 
+   * Slices that have been drained out are released while memory stays 
+   * above this size, 0 means same as total memory. Only works with FREE_LIST
+   */
+  private long minTotalMemory = 0L;
+  
+  /** 
+   * Slices and spares are allocated at first use instead of at startup. 
+   * Doesn't work with BUDDY or BOUNDARY_TAG, they write into slices at once
+   */
+  private boolean lazySlices = false;
+  
+  /** 
+   * Threads that allocate and touch all slices at startup, 0 means one 
+   * by one. With lazy slices, they're allocated by background threads
+   */
+  private int preTouchThreads = 0;
+  
+  /** Backend that slices and spares are allocated from */
+  private MemoryType memoryType = MemoryType.DIRECT;
+  
+  /** Directory of temporary files that are mapped by MAPPED memory type */
+  private String mappedDirectory = System.getProperty("java.io.tmpdir");
   
   /** Maximum elements that cache can holds */
   private int capacity = 1000000;
 
+  /** Maximum waiting for free slot if capacity is exhausted, 0 means no waiting. unit:ms */
+  private long slotWaitTimeout = 0L;
+
   /** Thread interval to run each time. unit:ms */
   private int arrangementThreadInterval = 1000;
   
@@ -30,6 +66,61 @@ public class MemoryAllocateConf {
    */
   private boolean enablePhysicalArrangment = false;
   
+  /** 
+   * Physical arrangement slides datas down inside same buffer instead of 
+   * copying them into spare buffer, no spare buffer is allocated
+   */
+  private boolean slidingArrangement = false;
+  
+  /** 
+   * Buffers that are arranged at the same time, each of them needs one 
+   * spare buffer unless sliding arrangement is enabled
+   */
+  private int arrangementConcurrency = 1;
+  
+  /** 
+   * Longest pause of operations at arranging buffer, datas are copied in 
+   * batches within this limit. 0 means whole buffer in one pause. unit:us
+   */
+  private int arrangementPauseLimit = 1000;
+  
+  /** Average copy speed limit of each arrangement, 0 means unlimited. unit:MB/s */
+  private int arrangementCopyRate = 0;
+  
+  /** Arrangement backs off while foreground operations wait for its batches */
+  private boolean adaptiveArrangement = false;
+  
+  /** Decides when to merge free space index and when to compact buffer */
+  private ArrangementPolicy arrangementPolicy = new AdaptiveArrangementPolicy();
+  
+  /** 
+   * Failed allocation compacts one buffer synchronously if datas at that 
+   * buffer are not more than this limit, 0 means never. unit:byte
+   */
+  private int syncArrangementLimit = 0;
+  
+  /** 
+   * Each buffer has its own lock for free space allocation, threads start
+   * from different buffers instead of shuffled order under one lock 
+   */
+  private boolean stripedAllocation = false;
+  
+  /** Strategy of space allocation, physical arrangement only works with FREE_LIST */
+  private AllocatorType allocatorType = AllocatorType.FREE_LIST;
+  
+  /** Chunk lengths of slab allocator, ascending */
+  private int[] slabSizeClasses = {64, 128, 256, 512, 1 << 10, 2 << 10, 4 << 10, 
+                                   8 << 10, 16 << 10, 32 << 10, 64 << 10};
+  
+  /** Buffers are carved into pages with this length for slab allocator */
+  private int slabPageSize = 1 << 20;
+  
+  /** Smallest block of buddy allocator, power of two and not less than 8 */
+  private int buddyMinBlock = 64;
+  
+  /** Keeps pointer fields at primitive arrays instead of one object per data */
+  private boolean compactPointerTable = false;
+  
   
   public long getTotalMemory() {
     return totalMemory;
@@ -51,11 +142,71 @@ public class MemoryAllocateConf {
     this.totalMemory = ((long) total) * unit.getBase();
   }
   
-  public int getMemorySlices() {
+  public long getMaxTotalMemory() {
+    return maxTotalMemory == 0 ? totalMemory : maxTotalMemory;
+  }
+  
+  public void setMaxTotalMemory(long maxTotalMemory) {
+    if (maxTotalMemory < 0) {
+      throw new IllegalArgumentException("negative memory");
+    }
+    
+    this.maxTotalMemory = maxTotalMemory;
+  }
+  
+  public long getMinTotalMemory() {
+    return minTotalMemory == 0 ? totalMemory : minTotalMemory;
+  }
+  
+  public void setMinTotalMemory(long minTotalMemory) {
+    if (minTotalMemory < 0) {
+      throw new IllegalArgumentException("negative memory");
+    }
+    
+    this.minTotalMemory = minTotalMemory;
+  }
+  
+  public boolean isLazySlices() {
+    return lazySlices;
+  }
+  
+  public void setLazySlices(boolean lazySlices) {
+    this.lazySlices = lazySlices;
+  }
+  
+  public int getPreTouchThreads() {
+    return preTouchThreads;
+  }
+  
+  public void setPreTouchThreads(int preTouchThreads) {
+    if (preTouchThreads < 0) {
+      throw new IllegalArgumentException("negative pre-touch threads");
+    }
+    
+    this.preTouchThreads = preTouchThreads;
+  }
+  
+  public MemoryType getMemoryType() {
+    return memoryType;
+  }
+  
+  public void setMemoryType(MemoryType memoryType) {
+    this.memoryType = memoryType;
+  }
+  
+  public String getMappedDirectory() {
+    return mappedDirectory;
+  }
+  
+  public void setMappedDirectory(String mappedDirectory) {
+    this.mappedDirectory = mappedDirectory;
+  }
+  
+  public long getMemorySlices() {
     return memorySlices;
   }
 
-  public void setMemorySlices(int memorySlices) {
+  public void setMemorySlices(long memorySlices) {
     if (memorySlices <= 0) {
       throw new IllegalArgumentException("memory slice");
     }
@@ -75,6 +226,18 @@ public class MemoryAllocateConf {
     this.capacity = capacity;
   }
 
+  public long getSlotWaitTimeout() {
+    return slotWaitTimeout;
+  }
+
+  public void setSlotWaitTimeout(long slotWaitTimeout) {
+    if (slotWaitTimeout < 0) {
+      throw new IllegalArgumentException("negative slot wait timeout. unit:ms");
+    }
+    
+    this.slotWaitTimeout = slotWaitTimeout;
+  }
+
   public int getArrangementThreadInterval() {
     return arrangementThreadInterval;
   }
@@ -95,6 +258,152 @@ public class MemoryAllocateConf {
     this.enablePhysicalArrangment = enablePhysicalArrangment;
   }
 
+  public boolean isSlidingArrangement() {
+    return slidingArrangement;
+  }
+  
+  public void setSlidingArrangement(boolean slidingArrangement) {
+    this.slidingArrangement = slidingArrangement;
+  }
+  
+  public int getArrangementConcurrency() {
+    return arrangementConcurrency;
+  }
+  
+  public void setArrangementConcurrency(int arrangementConcurrency) {
+    if (arrangementConcurrency <= 0) {
+      throw new IllegalArgumentException("arrangement concurrency");
+    }
+    
+    this.arrangementConcurrency = arrangementConcurrency;
+  }
+  
+  public int getArrangementPauseLimit() {
+    return arrangementPauseLimit;
+  }
+  
+  public void setArrangementPauseLimit(int arrangementPauseLimit) {
+    if (arrangementPauseLimit < 0) {
+      throw new IllegalArgumentException("negative arrangement pause limit. unit:us");
+    }
+    
+    this.arrangementPauseLimit = arrangementPauseLimit;
+  }
+  
+  public int getArrangementCopyRate() {
+    return arrangementCopyRate;
+  }
+  
+  public void setArrangementCopyRate(int arrangementCopyRate) {
+    if (arrangementCopyRate < 0) {
+      throw new IllegalArgumentException("negative arrangement copy rate. unit:MB/s");
+    }
+    
+    this.arrangementCopyRate = arrangementCopyRate;
+  }
+  
+  public boolean isAdaptiveArrangement() {
+    return adaptiveArrangement;
+  }
+  
+  public void setAdaptiveArrangement(boolean adaptiveArrangement) {
+    this.adaptiveArrangement = adaptiveArrangement;
+  }
+  
+  public ArrangementPolicy getArrangementPolicy() {
+    return arrangementPolicy;
+  }
+  
+  public void setArrangementPolicy(ArrangementPolicy arrangementPolicy) {
+    if (arrangementPolicy == null) {
+      throw new IllegalArgumentException("arrangement policy");
+    }
+    
+    this.arrangementPolicy = arrangementPolicy;
+  }
+  
+  public int getSyncArrangementLimit() {
+    return syncArrangementLimit;
+  }
+  
+  public void setSyncArrangementLimit(int syncArrangementLimit) {
+    if (syncArrangementLimit < 0) {
+      throw new IllegalArgumentException("negative sync arrangement limit. unit:byte");
+    }
+    
+    this.syncArrangementLimit = syncArrangementLimit;
+  }
+  
+  public boolean isStripedAllocation() {
+    return stripedAllocation;
+  }
+
+  public void setStripedAllocation(boolean stripedAllocation) {
+    this.stripedAllocation = stripedAllocation;
+  }
+
+  public boolean isCompactPointerTable() {
+    return compactPointerTable;
+  }
+
+  public void setCompactPointerTable(boolean compactPointerTable) {
+    this.compactPointerTable = compactPointerTable;
+  }
+
+  public AllocatorType getAllocatorType() {
+    return allocatorType;
+  }
+  
+  public void setAllocatorType(AllocatorType allocatorType) {
+    if (allocatorType == null) {
+      throw new IllegalArgumentException("allocator type");
+    }
+    
+    this.allocatorType = allocatorType;
+  }
+  
+  public int[] getSlabSizeClasses() {
+    return slabSizeClasses.clone();
+  }
+  
+  public void setSlabSizeClasses(int... slabSizeClasses) {
+    if (slabSizeClasses == null || slabSizeClasses.length == 0) {
+      throw new IllegalArgumentException("empty size classes");
+    }
+    
+    for (int i = 0; i < slabSizeClasses.length; i++) {
+      if (slabSizeClasses[i] <= 0 || (i > 0 && slabSizeClasses[i] <= slabSizeClasses[i - 1])) {
+        throw new IllegalArgumentException("size classes should be positive and ascending");
+      }
+    }
+    
+    this.slabSizeClasses = slabSizeClasses.clone();
+  }
+  
+  public int getSlabPageSize() {
+    return slabPageSize;
+  }
+  
+  public void setSlabPageSize(int slabPageSize) {
+    if (slabPageSize <= 0) {
+      throw new IllegalArgumentException("slab page size");
+    }
+    
+    this.slabPageSize = slabPageSize;
+  }
+  
+  public int getBuddyMinBlock() {
+    return buddyMinBlock;
+  }
+  
+  public void setBuddyMinBlock(int buddyMinBlock) {
+    if (buddyMinBlock < 8 || Integer.bitCount(buddyMinBlock) != 1) {
+      throw new IllegalArgumentException("buddy min block should be power of two and not less than 8");
+    }
+    
+    this.buddyMinBlock = buddyMinBlock;
+  }
+  
   public int getFragmentLimit() {
     return fragmentLimit;
   }
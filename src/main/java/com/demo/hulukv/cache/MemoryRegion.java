@@ -0,0 +1,73 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Physical memory of one slice or spare, accessed by absolute offset.
+ *
+ * <br>
+ * Region is shared by all threads, implementation keeps no position and
+ * needs no monitor. Operations at separate ranges of same region run in
+ * parallel, caller guards ranges that might be moved by arrangement.
+ *
+ * <p>Offsets are long, only {@link MemoryType#NATIVE} region might be
+ * larger than 2GB. Others are limited to capacity of one array or buffer.
+ *
+ * @version 1.0
+ * @see MemoryType
+ */
+public interface MemoryRegion {
+  
+  long capacity();
+  
+  /**
+   * Reads int at absolute offset, used by allocators that keep their
+   * metadata inside free spaces
+   *
+   * @param offset
+   * @return
+   */
+  int getInt(long offset);
+  
+  void putInt(long offset, int value);
+  
+  void read(long offset, byte[] dst, int off, int len);
+  
+  /**
+   * Content is put at current position of destination and position moves
+   * forward with length
+   *
+   * @param offset
+   * @param len
+   * @param dst
+   */
+  void read(long offset, int len, ByteBuffer dst);
+  
+  void write(long offset, byte[] src, int off, int len);
+  
+  /**
+   * Writes remaining content of source, position of source moves to its
+   * limit
+   *
+   * @param offset
+   * @param src
+   */
+  void write(long offset, ByteBuffer src);
+  
+  /**
+   * Copies bytes into target region of same type. Ranges might overlap if
+   * target is this region.
+   *
+   * @param from
+   * @param target
+   * @param to
+   * @param len
+   */
+  void copyTo(long from, MemoryRegion target, long to, int len);
+  
+  /**
+   * Returns memory to system, region must not be accessed any more
+   */
+  void free();
+  
+}
@@ -0,0 +1,59 @@
+package com.demo.hulukv.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates regions of memory type that configured.
+ *
+ * @version 1.0
+ */
+public class MemoryRegionFactory {
+  
+  private final MemoryType type;
+  private final File mappedDirectory;
+  
+  public MemoryRegionFactory(MemoryAllocateConf conf) {
+    this.type = conf.getMemoryType();
+    this.mappedDirectory = new File(conf.getMappedDirectory());
+  }
+  
+  public MemoryType getType() {
+    return type;
+  }
+  
+  /**
+   * @param capacity
+   * @return
+   * @throws OutOfMemoryError if memory is exhausted, or file cannot be 
+   * mapped, so callers handle all backends in the same way
+   * @throws IllegalArgumentException if capacity is beyond int but memory
+   * type is not {@link MemoryType#NATIVE}
+   */
+  public MemoryRegion allocate(long capacity) {
+    if (type != MemoryType.NATIVE && capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Region of " + type + " cannot be larger than 2GB: " + capacity);
+    }
+    
+    switch (type) {
+      case HEAP :
+        return new HeapMemoryRegion((int) capacity);
+      case MAPPED :
+        try {
+          return MappedMemoryRegion.map(mappedDirectory, (int) capacity);
+        } catch (IOException e) {
+          OutOfMemoryError error = new OutOfMemoryError("Failed to map " 
+              + Transformer.getSpecificSize(capacity) + " at " + mappedDirectory);
+          error.initCause(e);
+          
+          throw error;
+        }
+      case NATIVE :
+        return new NativeMemoryRegion(capacity);
+      default :
+        return new DirectMemoryRegion(ByteBuffer.allocateDirect((int) capacity));
+    }
+  }
+  
+}
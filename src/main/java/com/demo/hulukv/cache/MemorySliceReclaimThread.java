@@ -0,0 +1,38 @@
+package com.demo.hulukv.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Returns slices that are not needed any more back to OS, so that cache
+ * doesn't keep its peak memory after working set shrinks.
+ *
+ * @version 1.0
+ */
+public class MemorySliceReclaimThread extends Thread {
+  
+  private static final Logger LOG = LoggerFactory.getLogger(MemorySliceReclaimThread.class);
+  
+  private DirectMemoryCache cache;
+  
+  public MemorySliceReclaimThread(DirectMemoryCache cache) {
+    super("MemorySliceReclaim");
+    this.cache = cache;
+    
+    this.setDaemon(true);
+  }
+  
+  public void run() {
+    while (cache.isRunning()) {
+      try {
+        Thread.sleep(cache.getConf().getArrangementThreadInterval());
+      } catch (InterruptedException e) {}
+      
+      try {
+        cache.reclaimSlices();
+      } catch (Exception e) {
+        LOG.warn("Failed to reclaim memory slices", e);
+      }
+    }
+  }
+}
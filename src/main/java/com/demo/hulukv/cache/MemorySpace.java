@@ -11,12 +11,12 @@ public class MemorySpace implements Comparable<MemorySpace>{
   
   private int directByteId;
   
-  private int offset;
-  private int limit;
+  private long offset;
+  private long limit;
   
-  private int spaceLen;
+  private long spaceLen;
   
-  public MemorySpace(int id, int offset, int limit) {
+  public MemorySpace(int id, long offset, long limit) {
     if (offset < 0 || limit <= 0 || offset >= limit) {
       throw new IllegalArgumentException("offset:" + offset + ", limit:" + limit);
     }
@@ -32,23 +32,23 @@ public class MemorySpace implements Comparable<MemorySpace>{
     return directByteId;
   }
   
-  public int getOffset() {
+  public long getOffset() {
     return offset;
   }
   
-  public void setOffset(int offset) {
+  public void setOffset(long offset) {
     this.offset = offset;
   }
   
-  public int getLimit() {
+  public long getLimit() {
     return limit;
   }
   
-  public void setLimit(int limit) {
+  public void setLimit(long limit) {
     this.limit = limit;
   }
   
-  public int getSpaceLen() {
+  public long getSpaceLen() {
     return spaceLen;
   }
   
@@ -64,14 +64,14 @@ public class MemorySpace implements Comparable<MemorySpace>{
     MemorySpace abo = (MemorySpace) target;
     
     return abo.getDirectByteId() == this.directByteId 
-                  && abo.getOffset() == this.limit 
+                  && abo.getOffset() == this.offset 
                         && abo.getSpaceLen() == this.spaceLen;
   }
   
   public int hashCode() {
-    int hash = directByteId * 31;
-    hash *= (limit * 31);
-    hash *= (spaceLen * 31);
+    int hash = directByteId;
+    hash = hash * 31 + (int) (offset ^ (offset >>> 32));
+    hash = hash * 31 + (int) (spaceLen ^ (spaceLen >>> 32));
     
     return hash;
   }
@@ -83,16 +83,22 @@ public class MemorySpace implements Comparable<MemorySpace>{
 
   @Override
   public int compareTo(MemorySpace o) {
-    int diff = this.offset - o.offset;
-    if (diff == 0) {
-      diff = this.spaceLen - o.spaceLen;
+    if (this.offset != o.offset) {
+      return this.offset < o.offset ? -1 : 1;
     }
     
-    return diff;
+    if (this.spaceLen != o.spaceLen) {
+      return this.spaceLen < o.spaceLen ? -1 : 1;
+    }
+  
+    return 0;
   }
   
+  /**
+   * Data is never larger than int even if space is
+   */
   public Pointer toPointer(int index, long stamp) {
-    return new Pointer(index, directByteId, stamp, offset, spaceLen);
+    return new Pointer(index, directByteId, stamp, offset, (int) spaceLen);
   }
 
 }
@@ -0,0 +1,23 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Backend of physical memory that slices are allocated from
+ *
+ * @version 1.0
+ * @see MemoryRegion
+ */
+public enum MemoryType {
+  
+  /** ByteBuffer.allocateDirect, limited by -XX:MaxDirectMemorySize */
+  DIRECT,
+  
+  /** Byte arrays at java heap, scanned and moved by GC */
+  HEAP,
+  
+  /** Temporary files mapped into memory, pages might be written back to disk */
+  MAPPED,
+  
+  /** Memory allocated by malloc, freed at once without cleaner */
+  NATIVE;
+  
+}
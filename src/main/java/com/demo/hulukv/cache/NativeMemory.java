@@ -0,0 +1,329 @@
+package com.demo.hulukv.cache;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Native memory region that is addressed by long offset.
+ *
+ * <br>
+ * Region is allocated by malloc through sun.misc.Unsafe, so its capacity
+ * is not limited to 2GB like {@code ByteBuffer}, and it doesn't count
+ * into -XX:MaxDirectMemorySize. Memory is zeroed at allocation, every
+ * page is touched before first use. Region must be freed explicitly,
+ * there is no cleaner.
+ *
+ * <p>Each access is checked against capacity, so bad offset throws
+ * exception instead of crashing JVM. There is no monitor, operations at
+ * separate ranges run in parallel like duplicate views of direct buffer.
+ *
+ * <p>Unsafe is reached through method handles that bound at class 
+ * loading, so there is no reference to internal API at compile time. 
+ * Constant handles are inlined by JIT like direct calls.
+ *
+ * @version 1.0
+ */
+public class NativeMemory {
+  
+  private static final long BYTE_ARRAY_OFFSET;
+  private static final long ADDRESS_OFFSET;
+  
+  private static final MethodHandle ALLOCATE_MEMORY;
+  private static final MethodHandle SET_MEMORY;
+  private static final MethodHandle FREE_MEMORY;
+  private static final MethodHandle COPY_MEMORY;
+  private static final MethodHandle GET_INT;
+  private static final MethodHandle PUT_INT;
+  private static final MethodHandle GET_LONG;
+  private static final MethodHandle PUT_LONG;
+  private static final MethodHandle GET_FIELD_LONG;
+  
+  /** Longest copy at once, so safepoint is not delayed by huge copy */
+  private static final long COPY_THRESHOLD = 1L << 20;
+  
+  static {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      
+      BYTE_ARRAY_OFFSET = (Integer) unsafeClass.getMethod("arrayBaseOffset", Class.class)
+          .invoke(unsafe, byte[].class);
+      ADDRESS_OFFSET = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+          .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+      
+      ALLOCATE_MEMORY = handleOf(unsafe, "allocateMemory", long.class);
+      SET_MEMORY = handleOf(unsafe, "setMemory", long.class, long.class, byte.class);
+      FREE_MEMORY = handleOf(unsafe, "freeMemory", long.class);
+      COPY_MEMORY = handleOf(unsafe, "copyMemory", Object.class, long.class, Object.class, 
+          long.class, long.class);
+      GET_INT = handleOf(unsafe, "getInt", long.class);
+      PUT_INT = handleOf(unsafe, "putInt", long.class, int.class);
+      GET_LONG = handleOf(unsafe, "getLong", long.class);
+      PUT_LONG = handleOf(unsafe, "putLong", long.class, long.class);
+      GET_FIELD_LONG = handleOf(unsafe, "getLong", Object.class, long.class);
+    } catch (Exception e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+  
+  private static MethodHandle handleOf(Object unsafe, String name, Class<?>... types) 
+      throws Exception {
+    return MethodHandles.lookup().unreflect(unsafe.getClass().getMethod(name, types)).bindTo(unsafe);
+  }
+  
+  private final long capacity;
+  
+  /** 0 after region has been freed */
+  private long address;
+  
+  private NativeMemory(long address, long capacity) {
+    this.address = address;
+    this.capacity = capacity;
+  }
+  
+  /**
+   * @param capacity
+   * @return zeroed region
+   * @throws OutOfMemoryError if native memory is exhausted
+   */
+  public static NativeMemory allocate(long capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity:" + capacity);
+    }
+    
+    long address;
+    try {
+      address = (long) ALLOCATE_MEMORY.invokeExact(capacity);
+      SET_MEMORY.invokeExact(address, capacity, (byte) 0);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+    
+    return new NativeMemory(address, capacity);
+  }
+  
+  public long capacity() {
+    return capacity;
+  }
+  
+  public int getInt(long offset) {
+    long address = addressOf(offset, 4);
+    try {
+      return (int) GET_INT.invokeExact(address);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  public void putInt(long offset, int value) {
+    long address = addressOf(offset, 4);
+    try {
+      PUT_INT.invokeExact(address, value);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  public long getLong(long offset) {
+    long address = addressOf(offset, 8);
+    try {
+      return (long) GET_LONG.invokeExact(address);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  public void putLong(long offset, long value) {
+    long address = addressOf(offset, 8);
+    try {
+      PUT_LONG.invokeExact(address, value);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  /**
+   * Copies bytes of region into array
+   *
+   * @param offset
+   * @param dst
+   * @param off
+   * @param len
+   */
+  public void get(long offset, byte[] dst, int off, int len) {
+    checkArray(dst.length, off, len);
+    
+    copy(null, addressOf(offset, len), dst, BYTE_ARRAY_OFFSET + off, len);
+  }
+  
+  public void put(long offset, byte[] src, int off, int len) {
+    checkArray(src.length, off, len);
+    
+    copy(src, BYTE_ARRAY_OFFSET + off, null, addressOf(offset, len), len);
+  }
+  
+  /**
+   * Copies bytes of region into destination from its position, position
+   * moves forward with length
+   *
+   * @param offset
+   * @param len
+   * @param dst
+   */
+  public void get(long offset, int len, ByteBuffer dst) {
+    if (dst.remaining() < len) {
+      throw new IllegalArgumentException("dst remaining:" + dst.remaining() + ", expect:" + len);
+    }
+    
+    long from = addressOf(offset, len);
+    int position = dst.position();
+    if (dst.isDirect()) {
+      copy(null, from, null, addressOf(dst) + position, len);
+    } else {
+      copy(null, from, dst.array(), BYTE_ARRAY_OFFSET + dst.arrayOffset() + position, len);
+    }
+    
+    dst.position(position + len);
+  }
+  
+  /**
+   * Copies remaining bytes of source into region, position of source
+   * moves to its limit
+   *
+   * @param offset
+   * @param src
+   */
+  public void put(long offset, ByteBuffer src) {
+    int len = src.remaining();
+    
+    long to = addressOf(offset, len);
+    int position = src.position();
+    if (src.isDirect()) {
+      copy(null, addressOf(src) + position, null, to, len);
+    } else if (src.hasArray()) {
+      copy(src.array(), BYTE_ARRAY_OFFSET + src.arrayOffset() + position, null, to, len);
+    } else {
+      // read-only heap buffer hides its array
+      byte[] bytes = new byte[len];
+      src.duplicate().get(bytes);
+      copy(bytes, BYTE_ARRAY_OFFSET, null, to, len);
+    }
+    
+    src.position(position + len);
+  }
+  
+  /**
+   * Copies bytes into target region, ranges might overlap if target is
+   * this region
+   *
+   * @param from
+   * @param target
+   * @param to
+   * @param len
+   */
+  public void copyTo(long from, NativeMemory target, long to, long len) {
+    copy(null, addressOf(from, len), null, target.addressOf(to, len), len);
+  }
+  
+  /**
+   * Returns memory to system, region must not be accessed any more
+   */
+  public void free() {
+    long freed = address;
+    address = 0L;
+    
+    if (freed != 0L) {
+      try {
+        FREE_MEMORY.invokeExact(freed);
+      } catch (Throwable e) {
+        throw propagate(e);
+      }
+    }
+  }
+  
+  private long addressOf(long offset, long len) {
+    if (offset < 0 || len < 0 || offset > capacity - len) {
+      throw new IndexOutOfBoundsException("offset:" + offset + ", len:" + len
+          + ", capacity:" + capacity);
+    }
+    
+    if (address == 0L) {
+      throw new IllegalStateException("Native memory has been freed");
+    }
+    
+    return address + offset;
+  }
+  
+  /**
+   * Native address of direct buffer
+   */
+  private static long addressOf(ByteBuffer buffer) {
+    try {
+      return (long) GET_FIELD_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  private static void checkArray(int length, int off, int len) {
+    if (off < 0 || len < 0 || off > length - len) {
+      throw new IndexOutOfBoundsException("array length:" + length + ", offset:" + off
+          + ", len:" + len);
+    }
+  }
+  
+  /**
+   * Copies piece by piece. Pieces go backward if target overlaps behind
+   * source, so no byte is overwritten before it's copied.
+   */
+  private static void copy(Object srcBase, long srcOffset, Object dstBase, long dstOffset, long len) {
+    try {
+      copyPieces(srcBase, srcOffset, dstBase, dstOffset, len);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+  
+  private static void copyPieces(Object srcBase, long srcOffset, Object dstBase, long dstOffset, long len) 
+      throws Throwable {
+    if (srcBase == null && dstBase == null && srcOffset < dstOffset && dstOffset < srcOffset + len) {
+      while (len > 0) {
+        long size = Math.min(len, COPY_THRESHOLD);
+        len -= size;
+        COPY_MEMORY.invokeExact(srcBase, srcOffset + len, dstBase, dstOffset + len, size);
+      }
+      return;
+    }
+    
+    while (len > 0) {
+      long size = Math.min(len, COPY_THRESHOLD);
+      COPY_MEMORY.invokeExact(srcBase, srcOffset, dstBase, dstOffset, size);
+      
+      len -= size;
+      srcOffset += size;
+      dstOffset += size;
+    }
+  }
+  
+  /**
+   * Unsafe declares no checked exception, so errors like OutOfMemoryError
+   * are thrown as they are
+   */
+  private static RuntimeException propagate(Throwable e) {
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    
+    if (e instanceof RuntimeException) {
+      return (RuntimeException) e;
+    }
+    
+    return new IllegalStateException(e);
+  }
+  
+}
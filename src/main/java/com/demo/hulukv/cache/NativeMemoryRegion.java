@@ -0,0 +1,67 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Region at raw native memory, see {@link NativeMemory}.
+ *
+ * <br>
+ * Bytes are copied by Unsafe between native memory and arrays or
+ * buffers, there is no view per thread.
+ *
+ * @version 1.0
+ */
+public class NativeMemoryRegion implements MemoryRegion {
+  
+  private final NativeMemory memory;
+  
+  public NativeMemoryRegion(long capacity) {
+    this.memory = NativeMemory.allocate(capacity);
+  }
+  
+  @Override
+  public long capacity() {
+    return memory.capacity();
+  }
+  
+  @Override
+  public int getInt(long offset) {
+    return memory.getInt(offset);
+  }
+  
+  @Override
+  public void putInt(long offset, int value) {
+    memory.putInt(offset, value);
+  }
+  
+  @Override
+  public void read(long offset, byte[] dst, int off, int len) {
+    memory.get(offset, dst, off, len);
+  }
+  
+  @Override
+  public void read(long offset, int len, ByteBuffer dst) {
+    memory.get(offset, len, dst);
+  }
+  
+  @Override
+  public void write(long offset, byte[] src, int off, int len) {
+    memory.put(offset, src, off, len);
+  }
+  
+  @Override
+  public void write(long offset, ByteBuffer src) {
+    memory.put(offset, src);
+  }
+  
+  @Override
+  public void copyTo(long from, MemoryRegion target, long to, int len) {
+    memory.copyTo(from, ((NativeMemoryRegion) target).memory, to, len);
+  }
+  
+  @Override
+  public void free() {
+    memory.free();
+  }
+  
+}
@@ -0,0 +1,86 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Table that holds {@code Pointer} instances returned to user
+ *
+ * @version 1.0
+ */
+public class ObjectPointerTable implements PointerTable {
+  
+  private final Pointer[] pointers;
+  private final int[] generations;
+  
+  public ObjectPointerTable(int capacity) {
+    this(new Pointer[capacity]);
+  }
+  
+  ObjectPointerTable(Pointer[] pointers) {
+    this.pointers = pointers;
+    this.generations = new int[pointers.length];
+  }
+  
+  @Override
+  public int put(int index, int directId, long offset, int len) {
+    int generation = PointerHandle.next(generations[index]);
+    
+    generations[index] = generation;
+    pointers[index] = new Pointer(index, directId, generation, offset, len);
+    
+    return generation;
+  }
+  
+  @Override
+  public void remove(int index) {
+    pointers[index] = null;
+  }
+  
+  @Override
+  public boolean isStored(int index) {
+    return pointers[index] != null;
+  }
+  
+  @Override
+  public boolean matches(int index, long stamp) {
+    Pointer p = pointers[index];
+    return p != null && p.getTimestamp() == stamp;
+  }
+  
+  @Override
+  public int getGeneration(int index) {
+    return generations[index];
+  }
+  
+  @Override
+  public int getDirectId(int index) {
+    Pointer p = pointers[index];
+    return p == null ? -1 : p.getDirectMemoryId();
+  }
+  
+  @Override
+  public long getOffset(int index) {
+    Pointer p = pointers[index];
+    return p == null ? -1 : p.getOffset();
+  }
+  
+  @Override
+  public void setOffset(int index, long offset) {
+    pointers[index].setOffset(offset);
+  }
+  
+  @Override
+  public int getLen(int index) {
+    Pointer p = pointers[index];
+    return p == null ? -1 : p.getLen();
+  }
+  
+  @Override
+  public Pointer get(int index) {
+    return pointers[index];
+  }
+  
+  @Override
+  public int capacity() {
+    return pointers.length;
+  }
+  
+}
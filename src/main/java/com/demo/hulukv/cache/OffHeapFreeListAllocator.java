@@ -0,0 +1,400 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Free list allocator that keeps whole free space index at direct memory.
+ *
+ * <br>
+ * Each free space is a fixed length record at metadata buffer. Records
+ * are linked into bins segregated by highest bit of space length, and
+ * into two hash tables keyed by offset and limit. Released space finds
+ * its neighbours through hash tables and merges with them in O(1).
+ *
+ * <p>Spaces are merged as soon as they're released, so each free space is
+ * followed by data or end of buffer. Number of records never exceeds
+ * capacity of cache plus number of buffers, metadata is allocated once
+ * and heap usage doesn't change with fragments.
+ *
+ * @version 1.0
+ */
+public class OffHeapFreeListAllocator implements SpaceAllocator {
+  private static final Logger LOG = LoggerFactory.getLogger(OffHeapFreeListAllocator.class);
+  
+  private static final int NONE = -1;
+  
+  private static final int BINS = 32;
+  
+  /** Record layout, all fields are int */
+  private static final int DIRECT_ID = 0;
+  private static final int OFFSET = 4;
+  private static final int LEN = 8;
+  private static final int BIN_NEXT = 12;
+  private static final int BIN_PREVIOUS = 16;
+  private static final int OFFSET_NEXT = 20;
+  private static final int LIMIT_NEXT = 24;
+  private static final int RECORD = 28;
+  
+  private final ByteBuffer records;
+  
+  /** Buckets of hash tables, each bucket is first record of chain */
+  private final ByteBuffer offsetTable;
+  private final ByteBuffer limitTable;
+  private final int tableMask;
+  
+  /** Records that not in use, linked by BIN_NEXT */
+  private int freeRecords = NONE;
+  
+  /** First record of each bin, indexed by direct id */
+  private final int[][] heads;
+  private final int[] nonEmptyBins;
+  
+  private final int[] freeNum;
+  private final long[] freeBytes;
+  
+  private final byte[] lock = new byte[0];
+  
+  /** Metadata buffers are freed once it's closed, guarded by lock */
+  private volatile boolean isRunning;
+  
+  public OffHeapFreeListAllocator(MemoryAllocateConf conf, int bufNum) {
+    int recordNum = conf.getCapacity() + bufNum + 1;
+    if ((long) recordNum * RECORD > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many free space records for capacity " + conf.getCapacity());
+    }
+    
+    int tableSize = Integer.highestOneBit(recordNum - 1) << 1;
+    
+    this.records = ByteBuffer.allocateDirect(recordNum * RECORD);
+    this.offsetTable = ByteBuffer.allocateDirect(tableSize * 4);
+    this.limitTable = ByteBuffer.allocateDirect(tableSize * 4);
+    this.tableMask = tableSize - 1;
+    
+    for (int i = 0; i < tableSize; i++) {
+      offsetTable.putInt(i * 4, NONE);
+      limitTable.putInt(i * 4, NONE);
+    }
+    
+    for (int i = recordNum - 1; i >= 0; i--) {
+      set(i, BIN_NEXT, freeRecords);
+      freeRecords = i;
+    }
+    
+    this.heads = new int[bufNum][BINS];
+    for (int[] bins : heads) {
+      for (int i = 0; i < BINS; i++) {
+        bins[i] = NONE;
+      }
+    }
+    
+    this.nonEmptyBins = new int[bufNum];
+    this.freeNum = new int[bufNum];
+    this.freeBytes = new long[bufNum];
+    
+    isRunning = true;
+  }
+  
+  public void addSlice(int directId, long capacity) {
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slice larger than 2GB is not supported: " + capacity);
+    }
+    
+    synchronized (lock) {
+      if (!isRunning) {
+        return;
+      }
+      
+      link(newRecord(directId, 0, (int) capacity));
+    }
+  }
+  
+  public MemorySpace allocate(int expectLen) throws AllocateFailedException {
+    if (!isRunning) {
+      throw new AllocateFailedException("Off-heap free list has been closed");
+    }
+    
+    synchronized (lock) {
+      if (!isRunning) {
+        throw new AllocateFailedException("Off-heap free list has been closed");
+      }
+      
+      for (int directId = 0; directId < heads.length; directId++) {
+        int record = findSuitable(directId, expectLen);
+        if (record == NONE) {
+          continue;
+        }
+        
+        int offset = get(record, OFFSET);
+        int len = get(record, LEN);
+        
+        unlink(record);
+        if (len == expectLen) {
+          freeRecord(record);
+        } else {
+          set(record, OFFSET, offset + expectLen);
+          set(record, LEN, len - expectLen);
+          link(record);
+        }
+        
+        return new MemorySpace(directId, offset, offset + expectLen);
+      }
+    }
+    
+    throw new AllocateFailedException("No space left for expect length " + expectLen);
+  }
+  
+  /**
+   * Nothing to do, space is never moved
+   */
+  public void commit(MemorySpace space) {
+  }
+  
+  public void addFreeSpace(MemorySpace free) {
+    int directId = free.getDirectByteId();
+    int offset = (int) free.getOffset();
+    int limit = (int) free.getLimit();
+    if (offset == limit) {
+      return;
+    }
+    
+    synchronized (lock) {
+      if (!isRunning) {
+        return;
+      }
+      
+      int before = findByLimit(directId, offset);
+      if (before != NONE) {
+        offset = get(before, OFFSET);
+        
+        unlink(before);
+        freeRecord(before);
+      }
+      
+      int after = findByOffset(directId, limit);
+      if (after != NONE) {
+        limit = get(after, OFFSET) + get(after, LEN);
+        
+        unlink(after);
+        freeRecord(after);
+      }
+      
+      link(newRecord(directId, offset, limit - offset));
+    }
+  }
+  
+  public String getStatus() {
+    StringBuffer appender = new StringBuffer();
+    
+    appender.append(Transformer.strFormat("Off-heap free list "
+        + Transformer.getSpecificSize(records.capacity() + offsetTable.capacity() * 2L)
+        + " metadata", 45));
+    
+    synchronized (lock) {
+      for (int i = 0; i < heads.length; i++) {
+        appender.append(Transformer.strFormat(freeNum[i] + " spaces " + freeBytes[i] + " bytes", 100));
+      }
+    }
+    
+    return appender.toString();
+  }
+  
+  /**
+   * Frees metadata buffers at once, there is no allocation or release 
+   * after closing
+   */
+  public void close() {
+    synchronized (lock) {
+      if (!isRunning) {
+        return;
+      }
+      
+      isRunning = false;
+      
+      for (ByteBuffer buffer : new ByteBuffer[] {records, offsetTable, limitTable}) {
+        try {
+          DirectUtils.clean(buffer);
+        } catch (Exception e) {
+          LOG.warn("Failed to clean metadata of off-heap free list, it's left to GC", e);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Free spaces of specified buffer
+   *
+   * @param directId
+   * @return
+   */
+  int getFreeSpaces(int directId) {
+    synchronized (lock) {
+      return freeNum[directId];
+    }
+  }
+  
+  /**
+   * First suitable space at bin of length, or any space at higher bins
+   */
+  private int findSuitable(int directId, int expectLen) {
+    int bin = binOf(Math.max(1, expectLen));
+    
+    for (int record = heads[directId][bin]; record != NONE; record = get(record, BIN_NEXT)) {
+      if (get(record, LEN) >= expectLen) {
+        return record;
+      }
+    }
+    
+    int higher = bin + 1 < BINS ? nonEmptyBins[directId] & (-1 << (bin + 1)) : 0;
+    if (higher == 0) {
+      return NONE;
+    }
+    
+    return heads[directId][Integer.numberOfTrailingZeros(higher)];
+  }
+  
+  private int newRecord(int directId, int offset, int len) {
+    int record = freeRecords;
+    if (record == NONE) {
+      throw new DirectCacheException("No free space record left");
+    }
+    
+    freeRecords = get(record, BIN_NEXT);
+    
+    set(record, DIRECT_ID, directId);
+    set(record, OFFSET, offset);
+    set(record, LEN, len);
+    
+    return record;
+  }
+  
+  private void freeRecord(int record) {
+    set(record, BIN_NEXT, freeRecords);
+    freeRecords = record;
+  }
+  
+  private void link(int record) {
+    int directId = get(record, DIRECT_ID);
+    int offset = get(record, OFFSET);
+    int len = get(record, LEN);
+    
+    int bin = binOf(len);
+    int head = heads[directId][bin];
+    
+    set(record, BIN_NEXT, head);
+    set(record, BIN_PREVIOUS, NONE);
+    if (head != NONE) {
+      set(head, BIN_PREVIOUS, record);
+    }
+    heads[directId][bin] = record;
+    nonEmptyBins[directId] |= 1 << bin;
+    
+    int bucket = bucketOf(directId, offset);
+    set(record, OFFSET_NEXT, offsetTable.getInt(bucket));
+    offsetTable.putInt(bucket, record);
+    
+    bucket = bucketOf(directId, offset + len);
+    set(record, LIMIT_NEXT, limitTable.getInt(bucket));
+    limitTable.putInt(bucket, record);
+    
+    freeNum[directId]++;
+    freeBytes[directId] += len;
+  }
+  
+  private void unlink(int record) {
+    int directId = get(record, DIRECT_ID);
+    int offset = get(record, OFFSET);
+    int len = get(record, LEN);
+    
+    int bin = binOf(len);
+    int next = get(record, BIN_NEXT);
+    int previous = get(record, BIN_PREVIOUS);
+    
+    if (previous == NONE) {
+      heads[directId][bin] = next;
+      if (next == NONE) {
+        nonEmptyBins[directId] &= ~(1 << bin);
+      }
+    } else {
+      set(previous, BIN_NEXT, next);
+    }
+    
+    if (next != NONE) {
+      set(next, BIN_PREVIOUS, previous);
+    }
+    
+    remove(offsetTable, OFFSET_NEXT, bucketOf(directId, offset), record);
+    remove(limitTable, LIMIT_NEXT, bucketOf(directId, offset + len), record);
+    
+    freeNum[directId]--;
+    freeBytes[directId] -= len;
+  }
+  
+  /**
+   * Record that starts at specified offset
+   */
+  private int findByOffset(int directId, int offset) {
+    for (int record = offsetTable.getInt(bucketOf(directId, offset)); record != NONE; 
+                                                     record = get(record, OFFSET_NEXT)) {
+      if (get(record, OFFSET) == offset && get(record, DIRECT_ID) == directId) {
+        return record;
+      }
+    }
+    
+    return NONE;
+  }
+  
+  /**
+   * Record that ends at specified limit
+   */
+  private int findByLimit(int directId, int limit) {
+    for (int record = limitTable.getInt(bucketOf(directId, limit)); record != NONE; 
+                                                     record = get(record, LIMIT_NEXT)) {
+      if (get(record, OFFSET) + get(record, LEN) == limit && get(record, DIRECT_ID) == directId) {
+        return record;
+      }
+    }
+    
+    return NONE;
+  }
+  
+  private void remove(ByteBuffer table, int nextField, int bucket, int record) {
+    int current = table.getInt(bucket);
+    if (current == record) {
+      table.putInt(bucket, get(record, nextField));
+      return;
+    }
+    
+    while (current != NONE) {
+      int next = get(current, nextField);
+      if (next == record) {
+        set(current, nextField, get(record, nextField));
+        return;
+      }
+      
+      current = next;
+    }
+  }
+  
+  private int bucketOf(int directId, int key) {
+    int hash = directId * 0x9E3779B9 + key * 0x85EBCA6B;
+    hash ^= hash >>> 16;
+    
+    return (hash & tableMask) * 4;
+  }
+  
+  private int get(int record, int field) {
+    return records.getInt(record * RECORD + field);
+  }
+  
+  private void set(int record, int field, int value) {
+    records.putInt(record * RECORD + field, value);
+  }
+  
+  private static int binOf(int len) {
+    return 31 - Integer.numberOfLeadingZeros(len);
+  }
+  
+}
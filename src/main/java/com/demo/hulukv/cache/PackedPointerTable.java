@@ -0,0 +1,104 @@
+package com.demo.hulukv.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compact table that keeps all pointer fields at primitive arrays.
+ * 
+ * <br>
+ * There is no heap object per stored data, so millions of entries don't
+ * slow down full GC. State of each slot packs stored flag and generation
+ * into one long, it's written at last with volatile semantic, so all other
+ * fields are visible once state matched.
+ *
+ * @version 1.0
+ */
+public class PackedPointerTable implements PointerTable {
+  
+  private static final long STORED = 1L << 32;
+  
+  /** STORED flag | generation at low 32 bits */
+  private final AtomicLongArray states;
+  
+  private final int[] directIds;
+  private final long[] offsets;
+  private final int[] lens;
+  
+  public PackedPointerTable(int capacity) {
+    this.states = new AtomicLongArray(capacity);
+    
+    this.directIds = new int[capacity];
+    this.offsets = new long[capacity];
+    this.lens = new int[capacity];
+  }
+  
+  @Override
+  public int put(int index, int directId, long offset, int len) {
+    int generation = PointerHandle.next((int) states.get(index));
+    
+    directIds[index] = directId;
+    offsets[index] = offset;
+    lens[index] = len;
+    
+    states.set(index, STORED | (generation & 0xFFFFFFFFL));
+    
+    return generation;
+  }
+  
+  @Override
+  public void remove(int index) {
+    states.set(index, states.get(index) & 0xFFFFFFFFL);
+  }
+  
+  @Override
+  public boolean isStored(int index) {
+    return (states.get(index) & STORED) != 0L;
+  }
+  
+  @Override
+  public boolean matches(int index, long stamp) {
+    return stamp == (int) stamp 
+        && states.get(index) == (STORED | (stamp & 0xFFFFFFFFL));
+  }
+  
+  @Override
+  public int getGeneration(int index) {
+    return (int) states.get(index);
+  }
+  
+  @Override
+  public int getDirectId(int index) {
+    return directIds[index];
+  }
+  
+  @Override
+  public long getOffset(int index) {
+    return offsets[index];
+  }
+  
+  @Override
+  public void setOffset(int index, long offset) {
+    offsets[index] = offset;
+  }
+  
+  @Override
+  public int getLen(int index) {
+    return lens[index];
+  }
+  
+  @Override
+  public Pointer get(int index) {
+    long state = states.get(index);
+    if ((state & STORED) == 0L) {
+      return null;
+    }
+    
+    return new Pointer(index, directIds[index], (int) state, offsets[index], lens[index]);
+  }
+  
+  @Override
+  public int capacity() {
+    return lens.length;
+  }
+  
+}
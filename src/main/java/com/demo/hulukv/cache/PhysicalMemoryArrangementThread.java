@@ -1,11 +1,27 @@
 package com.demo.hulukv.cache;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Arrangement for physical memory (direct buffer)
  *
+ * <br>
+ * Each round asks {@link ArrangementPolicy} which buffers should be
+ * arranged, buffer with higher priority goes first. At most concurrency
+ * buffers are arranged at the same time by worker pool, round finishes
+ * after all of them are done.
+ *
  * @author Denny Ye
  * @since 2012-11-13
  * @version 1.0
@@ -15,62 +31,107 @@ public class PhysicalMemoryArrangementThread extends Thread {
   
   private DirectMemoryCache cache;
   private int bufferNum;
-  private long lastDone = 0L;
+  private int concurrency;
+  
+  private final ExecutorService workers;
   
   public PhysicalMemoryArrangementThread(DirectMemoryCache cache, int bufferNum) {
+    this(cache, bufferNum, 1);
+  }
+  
+  public PhysicalMemoryArrangementThread(DirectMemoryCache cache, int bufferNum, int concurrency) {
     super("PhysicalMemoryArrangement");
     
     this.cache = cache;
     this.bufferNum = bufferNum;
+    this.concurrency = concurrency;
+    
+    final AtomicInteger workerSequence = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread worker = new Thread(r, "PhysicalMemoryArrangement-" + workerSequence.incrementAndGet());
+        worker.setDaemon(true);
+        
+        return worker;
+      }
+    });
     
     this.setDaemon(true);
   }
   
   public void run() {
-    while (cache.isRunning()) {
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {}
-      
-      int directId = pickUpDirectToArrange();
-      if (directId >= 0) {
+    try {
+      while (cache.isRunning()) {
         try {
-          cache.arrangeMemory(directId);
-        } catch (Throwable e) {
-          LOG.warn("Failed to arrange physical memeory", e);
+          Thread.sleep(cache.getConf().getArrangementThreadInterval());
+        } catch (InterruptedException e) {}
+        
+        List<Integer> directIds = pickUpDirectsToArrange();
+        if (directIds.isEmpty()) {
+          continue;
         }
         
-        lastDone = System.currentTimeMillis();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(directIds.size());
+        for (final Integer directId : directIds) {
+          tasks.add(new Callable<Object>() {
+            public Object call() {
+              try {
+                cache.arrangeMemory(directId);
+              } catch (Throwable e) {
+                LOG.warn("Failed to arrange physical memeory#" + directId, e);
+              }
+              
+              return null;
+            }
+          });
+        }
+        
+        try {
+          workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted while waiting for arrangement", e);
+        }
       }
+    } finally {
+      workers.shutdown();
     }
-      
   }
   
-  private int pickUpDirectToArrange() {
+  /**
+   * Buffers that should be arranged at this round, ordered by priority
+   * given by arrangement policy
+   * 
+   * @return
+   */
+  List<Integer> pickUpDirectsToArrange() {
+    ArrangementPolicy policy = cache.getConf().getArrangementPolicy();
+    
+    List<long[]> candidates = new ArrayList<long[]>();
+    for (int i = 0; i < bufferNum; i++) {
+      FragmentationStats stats = cache.getFreeSpaceIndexManager().getFragmentation(i);
     
-    if (lastDone != 0 && System.currentTimeMillis() - lastDone < 10000) {//10s
-      return -1;
+      long priority = policy.compactionPriority(stats);
+      if (priority > 0) {
+        LOG.debug("Physical arrangement is required by " + stats + ", priority " + priority);
+        candidates.add(new long[] {i, priority});
+      }
     }
     
-    for (int i = 0; i < bufferNum; i++) {
-      String stat = cache.getFreeSpaceIndexManager().getStat(i);
-      
-      String[] parts = stat.split(",");
-      long freeSpaceBytes = Long.parseLong(parts[1]);
-      
-      stat = cache.getPhysicalMemoryManager().getStat(i);
-      parts = stat.split(",");
-      
-      long capacity = Integer.parseInt(parts[1]);
-      
-      if (((float)freeSpaceBytes / capacity) > 0.8) {
-        LOG.info("fragment rate of memory#" + i + " is " 
-                + (((float)freeSpaceBytes / capacity)) + ", physical begining");
-        return i;
+    Collections.sort(candidates, new Comparator<long[]>() {
+      public int compare(long[] o1, long[] o2) {
+        return o1[1] > o2[1] ? -1 : (o1[1] == o2[1] ? 0 : 1);
       }
+    });
+    
+    List<Integer> picked = new ArrayList<Integer>();
+    for (int i = 0; i < candidates.size() && i < concurrency; i++) {
+      picked.add((int) candidates.get(i)[0]);
+      
+      LOG.info("Memory#" + candidates.get(i)[0] + " is picked for physical arrangement, priority " 
+          + candidates.get(i)[1]);
     }
     
-    return -1;
+    return picked;
   }
   
 }
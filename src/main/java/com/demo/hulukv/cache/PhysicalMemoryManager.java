@@ -1,10 +1,21 @@
 package com.demo.hulukv.cache;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +24,10 @@ import org.slf4j.LoggerFactory;
  * Primary goal of this class is managing multiple buffers with allocation,
  * arrangement and other else.
  * 
+ * <br>
+ * There is no monitor at read/write path. Each buffer is a {@link MemoryRegion}
+ * of configured type, which is accessed with absolute offset. Operations 
+ * at separate ranges of same buffer run in parallel.
  *
  * @author Denny Ye
  * @since 2012-11-13
@@ -21,62 +36,253 @@ import org.slf4j.LoggerFactory;
 public class PhysicalMemoryManager {
   private static final Logger LOG = LoggerFactory.getLogger(PhysicalMemoryManager.class);
   
-  private Map<Integer, Record> bytesRecords;
-  private Map<Integer, ByteBuffer> physicalBuffers;
+  private Record[] bytesRecords;
+  
+  /** Buffers indexed by direct id, replaced as a whole after arrangement */
+  private volatile MemoryRegion[] physicalBuffers;
+  
+  /** 
+   * Spare buffers for arrangement, one for each concurrent arrangement.
+   * Arrangement slides datas inside same buffer if there is no spare.
+   */
+  private final Deque<MemoryRegion> spares = new ArrayDeque<MemoryRegion>();
+  private boolean hasSpare;
+  
+  /** Spares that are allocated at first use, guarded by spares */
+  private int lazySpares;
+  private long spareCapacity;
+  
+  /** 
+   * Spares taken by running arrangements, they're freed by closing too.
+   * Guarded by spares
+   */
+  private final Set<MemoryRegion> lentSpares = 
+      Collections.newSetFromMap(new IdentityHashMap<MemoryRegion, Boolean>());
+  
+  /** Written under both this and spares */
+  private volatile boolean isClosed;
+  
+  /** 
+   * Capacities of buffers that have been added, buffer is allocated at 
+   * first use if it's only reserved
+   */
+  private final AtomicLongArray capacities;
+  
+  /** Avoids allocating same buffer twice, buffers are allocated in parallel */
+  private final Object[] materializeLocks;
+  
+  private final MemoryRegionFactory factory;
+  
+  /** 
+   * Compaction that is running at each buffer, datas are read from where
+   * it has moved them. Written under exclusive lock of buffer
+   */
+  private final Compaction[] compactions;
+  
+  /**
+   * Buffers at negative direct ids are spares
+   * 
+   * @param buffers
+   */
   PhysicalMemoryManager(Map<Integer, ByteBuffer> buffers) {
-    this.physicalBuffers = buffers;
-    
-    this.bytesRecords = new LinkedHashMap<Integer, Record>();
+    this(new MemoryRegionFactory(new MemoryAllocateConf()), bufNumOf(buffers));
     
     for (Map.Entry<Integer, ByteBuffer> entry : buffers.entrySet()) {
+      MemoryRegion region = new DirectMemoryRegion(entry.getValue());
+      
       if (entry.getKey() >= 0) {
-        bytesRecords.put(entry.getKey(), new Record());
+        physicalBuffers[entry.getKey()] = region;
+        capacities.set(entry.getKey(), region.capacity());
+      } else {
+        spares.add(region);
       }
     }
+  
+    this.hasSpare = !spares.isEmpty();
+  }
+    
+  /**
+   * @param factory allocates buffers and spares
+   * @param bufNum maximum number of buffers, all of them are added later
+   */
+  PhysicalMemoryManager(MemoryRegionFactory factory, int bufNum) {
+    this.factory = factory;
+    this.physicalBuffers = new MemoryRegion[bufNum];
+    this.bytesRecords = new Record[bufNum];
+    this.capacities = new AtomicLongArray(bufNum);
+    this.materializeLocks = new Object[bufNum];
+    this.compactions = new Compaction[bufNum];
+    
+    for (int i = 0; i < bufNum; i++) {
+      bytesRecords[i] = new Record();
+      materializeLocks[i] = new byte[0];
+    }
+  }
+  
+  private static int bufNumOf(Map<Integer, ByteBuffer> buffers) {
+    int bufNum = 0;
+    for (Integer id : buffers.keySet()) {
+      bufNum = Math.max(bufNum, id + 1);
+    }
+    
+    return bufNum;
   }
   
   
   /**
    * Writes data into buffer
    * 
-   * @param space
+   * @param directId
+   * @param offset
    * @param data
    * @return no exception
    */
-  public void writeData(Pointer pointer, byte[] data) {
-    ByteBuffer buffer = physicalBuffers.get(pointer.getDirectMemoryId());
+  public void writeData(int directId, long offset, byte[] data) {
+    physicalBuffers[directId].write(offset, data, 0, data.length);
     
-    synchronized (buffer) {
-      buffer.limit(pointer.getOffset() + pointer.getLen());
-      buffer.position(pointer.getOffset());
-      
-      buffer.put(data);
-      
-      Record record = bytesRecords.get(pointer.getDirectMemoryId());
-      record.allocatedBytes.addAndGet(data.length);
-      record.allocatedNum.incrementAndGet();
+    recordWrite(directId, data.length);
+  }
+  
+  /**
+   * Writes remaining content of source into buffer directly
+   * 
+   * @param directId
+   * @param offset
+   * @param len
+   * @param src remaining should be same as length
+   */
+  public void writeData(int directId, long offset, int len, ByteBuffer src) {
+    if (src.remaining() != len) {
+      throw new IllegalArgumentException("src remaining:" + src.remaining() + ", expect:" + len);
     }
+    
+    physicalBuffers[directId].write(offset, src);
+    
+    recordWrite(directId, len);
   }
   
-  public byte[] readData(Pointer pointer) {
-    ByteBuffer buffer = physicalBuffers.get(pointer.getDirectMemoryId());
+  /**
+   * Writes remaining content of all sources contiguously
+   * 
+   * @param directId
+   * @param offset
+   * @param len
+   * @param parts total remaining should be same as length
+   */
+  public void writeData(int directId, long offset, int len, ByteBuffer[] parts) {
+    MemoryRegion region = physicalBuffers[directId];
     
-    synchronized (buffer) {
-      buffer.limit(pointer.getOffset() + pointer.getLen());
-      buffer.position(pointer.getOffset());
-      
-      byte[] result = new byte[pointer.getLen()];
-      buffer.get(result);
+    long position = offset;
+    for (ByteBuffer part : parts) {
+      int partLen = part.remaining();
+      if (position - offset + partLen > len) {
+        throw new IllegalArgumentException("parts are longer than expect:" + len);
+      }
       
-      return result;
+      region.write(position, part);
+      position += partLen;
+    }
+    
+    recordWrite(directId, len);
+  }
+  
+  public byte[] readData(int directId, long offset, int len) {
+    byte[] result = new byte[len];
+    regionOf(directId, offset).read(offset, result, 0, len);
+    
+    return result;
+  }
+  
+  /**
+   * Reads data into buffer that caller owns. Content is put at current 
+   * position of destination and position moves forward with data length.
+   * 
+   * @param directId
+   * @param offset
+   * @param len
+   * @param dst
+   * @return bytes that have been copied
+   */
+  public int readData(int directId, long offset, int len, ByteBuffer dst) {
+    if (dst.remaining() < len) {
+      throw new IllegalArgumentException("dst remaining:" + dst.remaining() 
+          + ", expect:" + len);
     }
+    
+    regionOf(directId, offset).read(offset, len, dst);
+    
+    return len;
+  }
+  
+  /**
+   * Reads data into array that caller owns, starts from specified offset
+   * 
+   * @param directId
+   * @param offset
+   * @param len
+   * @param dst
+   * @param off
+   * @return bytes that have been copied
+   */
+  public int readData(int directId, long offset, int len, byte[] dst, int off) {
+    if (off < 0 || dst.length - off < len) {
+      throw new IllegalArgumentException("dst length:" + dst.length + ", offset:" + off 
+          + ", expect:" + len);
+    }
+    
+    regionOf(directId, offset).read(offset, dst, off, len);
+    
+    return len;
+  }
+  
+  /**
+   * @param directId
+   * @param offset
+   * @return buffer where data at specified offset is located currently
+   */
+  private MemoryRegion regionOf(int directId, long offset) {
+    Compaction compaction = compactions[directId];
+    
+    return compaction == null ? physicalBuffers[directId] : compaction.regionOf(offset);
   }
   
-  public void release(Pointer pointer) {
-    Record record = bytesRecords.get(pointer.getDirectMemoryId());
+  /**
+   * Reads int at absolute offset, used by allocators that keep their
+   * metadata inside free spaces
+   * 
+   * @param directId
+   * @param offset
+   * @return
+   */
+  int getInt(int directId, long offset) {
+    return physicalBuffers[directId].getInt(offset);
+  }
+  
+  void putInt(int directId, long offset, int value) {
+    physicalBuffers[directId].putInt(offset, value);
+  }
+  
+  public void release(int directId, int len) {
+    Record record = bytesRecords[directId];
     
-    record.allocatedBytes.addAndGet(-pointer.getLen());
-    record.allocatedNum.decrementAndGet();
+    record.allocatedBytes.add(-len);
+    record.allocatedNum.decrement();
+  }
+  
+  /**
+   * Space of data that released while its buffer is compacted. Space of 
+   * moved data is kept by compaction as hole of new layout, caller should
+   * not give it to allocator. Caller should hold shared lock of buffer.
+   * 
+   * @param directId
+   * @param offset
+   * @param len
+   * @return <tt>true</tt> if space is taken by compaction
+   */
+  boolean takeReleased(int directId, long offset, int len) {
+    Compaction compaction = compactions[directId];
+    
+    return compaction != null && compaction.takeReleased(offset, len);
   }
   
   public String getStatus() {
@@ -85,11 +291,17 @@ public class PhysicalMemoryManager {
     
     appender.append(Transformer.strFormat("MEMORY", 45));
     
-    for (Map.Entry<Integer, Record> entry : bytesRecords.entrySet()) {
-      appender.append(Transformer.strFormat("memory#" + entry.getKey() + " - " + entry.getValue().allocatedNum.get() 
-          + " datas used " + entry.getValue().allocatedBytes.get() + " bytes(total " 
-          + physicalBuffers.get(entry.getKey()).capacity() + "), " 
-          + ((float) entry.getValue().allocatedBytes.get() * 100 / physicalBuffers.get(entry.getKey()).capacity()) 
+    MemoryRegion[] buffers = physicalBuffers;
+    for (int i = 0; i < bytesRecords.length; i++) {
+      if (buffers[i] == null) {
+        continue;
+      }
+      
+      Record record = bytesRecords[i];
+      appender.append(Transformer.strFormat("memory#" + i + " - " + record.allocatedNum.sum()
+          + " datas used " + record.allocatedBytes.sum() + " bytes(total "
+          + buffers[i].capacity() + "), "
+          + ((float) record.allocatedBytes.sum() * 100 / buffers[i].capacity())
           + "%", 100));
     }
     
@@ -99,64 +311,872 @@ public class PhysicalMemoryManager {
   }
   
   public String getStat(int directId) {
-    Record record = bytesRecords.get(directId);
-    ByteBuffer buffer = physicalBuffers.get(directId);
+    Record record = bytesRecords[directId];
+    
+    return record.allocatedBytes.sum() + "," + getCapacity(directId);
+  }
+  
+  /**
+   * @param directId
+   * @return 0 if there is no buffer at specified direct id
+   */
+  public long getCapacity(int directId) {
+    return capacities.get(directId);
+  }
+  
+  /**
+   * Adds buffer with specified capacity at direct id that has no buffer, 
+   * it's allocated at first use.
+   * 
+   * @param directId
+   * @param capacity
+   */
+  void reserveBuffer(int directId, long capacity) {
+    if (!capacities.compareAndSet(directId, 0, capacity)) {
+      throw new IllegalArgumentException("memory#" + directId + " exists");
+    }
+  }
+  
+  /**
+   * Spares that are allocated at first arrangement
+   * 
+   * @param num
+   * @param capacity
+   */
+  void reserveSpares(int num, long capacity) {
+    synchronized (spares) {
+      lazySpares += num;
+      spareCapacity = capacity;
+      
+      hasSpare = hasSpare || num > 0;
+    }
+  }
+  
+  /**
+   * Allocates reserved buffer if it has not been allocated
+   * 
+   * @param directId
+   * @return allocated buffer
+   * @throws IllegalStateException if manager has been closed
+   */
+  MemoryRegion materialize(int directId) {
+    checkClosed(directId);
+    
+    MemoryRegion buffer = bufferOf(directId);
+    if (buffer != null) {
+      return buffer;
+    }
+    
+    synchronized (materializeLocks[directId]) {
+      buffer = bufferOf(directId);
+      if (buffer != null) {
+        return buffer;
+      }
+      
+      long capacity = capacities.get(directId);
+      if (capacity == 0) {
+        throw new IllegalArgumentException("memory#" + directId + " is not reserved");
+      }
+      
+      // allocated memory is zeroed, so all pages are touched
+      buffer = factory.allocate(capacity);
+      
+      boolean isPublished = false;
+      synchronized (this) {
+        if (!isClosed) {
+          MemoryRegion[] replaced = physicalBuffers.clone();
+          replaced[directId] = buffer;
+          
+          physicalBuffers = replaced;
+          isPublished = true;
+        }
+      }
+      
+      // closing has freed all published buffers
+      if (!isPublished) {
+        buffer.free();
+        checkClosed(directId);
+      }
+      
+      LOG.info("memory#" + directId + " is allocated with " + Transformer.getSpecificSize(capacity));
+      return buffer;
+    }
+  }
+  
+  private void checkClosed(int directId) {
+    if (isClosed) {
+      throw new IllegalStateException("memory#" + directId + " is not allocated, manager has been closed");
+    }
+  }
+  
+  /**
+   * @param directId
+   * @return <tt>true</tt> if buffer of specified direct id is allocated
+   */
+  boolean isMaterialized(int directId) {
+    return bufferOf(directId) != null;
+  }
+  
+  /**
+   * @param directId
+   * @return null if it's not allocated, or all buffers have been freed
+   */
+  private MemoryRegion bufferOf(int directId) {
+    MemoryRegion[] buffers = physicalBuffers;
+    
+    return directId < buffers.length ? buffers[directId] : null;
+  }
+  
+  /**
+   * Allocates all reserved buffers and spares by specified threads
+   * 
+   * @param threads
+   * @throws Exception the first failure
+   */
+  void materializeAll(int threads) throws Exception {
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int i = 0; i < capacities.length(); i++) {
+      if (capacities.get(i) == 0 || isMaterialized(i)) {
+        continue;
+      }
+      
+      final int directId = i;
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          return materialize(directId);
+        }
+      });
+    }
+    
+    int spareNum;
+    synchronized (spares) {
+      spareNum = lazySpares;
+    }
+    for (int i = 0; i < spareNum; i++) {
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          MemoryRegion spare = takeLazySpare();
+          if (spare != null) {
+            returnSpare(spare);
+          }
+          
+          return spare;
+        }
+      });
+    }
+    
+    if (threads <= 1) {
+      for (Callable<Object> task : tasks) {
+        task.call();
+      }
+      
+      return;
+    }
+    
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Object> result : workers.invokeAll(tasks)) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          throw (Exception) (e.getCause() instanceof Exception ? e.getCause() : e);
+        }
+      }
+    } finally {
+      workers.shutdown();
+    }
+  }
+  
+  /**
+   * Takes away buffer that holds no data any more, caller should free
+   * it after no one accesses it.
+   * 
+   * @param directId
+   * @return removed buffer, null if it has not been allocated
+   */
+  synchronized MemoryRegion removeBuffer(int directId) {
+    MemoryRegion[] replaced = physicalBuffers.clone();
+    
+    MemoryRegion removed = replaced[directId];
+    replaced[directId] = null;
+    physicalBuffers = replaced;
+    
+    capacities.set(directId, 0);
+    
+    return removed;
+  }
+  
+  long memoryCopyFor(int directId, Pointer[] allPointers) {
+    return memoryCopyFor(directId, new ObjectPointerTable(allPointers));
+  }
+  
+  /**
+   * Copies all datas that located at specified buffer to start of buffer 
+   * contiguously, offset at table is updated.
+   * 
+   * @param directId
+   * @param table
+   * @return bytes that have been copied, also start of free space
+   */
+  long memoryCopyFor(int directId, PointerTable table) {
+    Compaction compaction = startCompaction(directId);
+    if (compaction == null) {
+      throw new IllegalStateException("No spare buffer left for arrangement of memory#" + directId);
+    }
+    
+    while (!compaction.copyBatch(table, Long.MAX_VALUE)) {
+    }
+    
+    return compaction.finish(new ArrayList<MemorySpace>());
+  }
+    
+  /**
+   * Starts incremental compaction of specified buffer. Datas are copied
+   * into spare buffer if there is one, otherwise they slide down inside
+   * same buffer.
+   * 
+   * @param directId
+   * @return null if all spare buffers are in use
+   */
+  Compaction startCompaction(int directId) {
+    if (!hasSpare) {
+      return register(new SlidingCompaction(directId));
+    }
+    
+    MemoryRegion spare;
+    synchronized (spares) {
+      spare = spares.poll();
+      
+      if (spare != null) {
+        lentSpares.add(spare);
+      }
+    }
+    
+    if (spare == null) {
+      spare = takeLazySpare();
+    }
+    
+    if (spare == null) {
+      return null;
+    }
+    
+    return register(new SpareCompaction(directId, spare));
+  }
+  
+  private Compaction register(Compaction compaction) {
+    compactions[compaction.directId] = compaction;
+    
+    return compaction;
+  }
+  
+  /**
+   * @return null if there is no spare left to allocate, or allocation 
+   * failed
+   */
+  private MemoryRegion takeLazySpare() {
+    long capacity;
+    synchronized (spares) {
+      if (lazySpares == 0) {
+        return null;
+      }
+      
+      lazySpares--;
+      capacity = spareCapacity;
+    }
+    
+    MemoryRegion spare;
+    try {
+      spare = factory.allocate(capacity);
+    } catch (OutOfMemoryError e) {
+      LOG.warn("Failed to allocate spare buffer with " + Transformer.getSpecificSize(capacity), e);
+      
+      synchronized (spares) {
+        lazySpares++;
+      }
+      
+      return null;
+    }
+    
+    synchronized (spares) {
+      if (!isClosed) {
+        lentSpares.add(spare);
+        return spare;
+      }
+    }
+    
+    spare.free();
+    return null;
+  }
+  
+  /**
+   * Puts spare back to pool. All spares have been freed if manager is 
+   * closed, they're not pooled again.
+   * 
+   * @param spare
+   */
+  private void returnSpare(MemoryRegion spare) {
+    synchronized (spares) {
+      lentSpares.remove(spare);
+      
+      if (!isClosed) {
+        spares.add(spare);
+      }
+    }
+  }
+  
+  /**
+   * Frees all buffers and spares, including spares taken by arrangements.
+   * Caller should stop all operations before, arrangement should not copy
+   * any more.
+   */
+  public void close() {
+    Set<MemoryRegion> released = 
+        Collections.newSetFromMap(new IdentityHashMap<MemoryRegion, Boolean>());
     
-    return record.allocatedBytes.get() + "," + buffer.capacity();
+    // buffers might be allocated by pre-touch at the same time
+    synchronized (this) {
+      released.addAll(Arrays.asList(physicalBuffers));
+      
+      physicalBuffers = new MemoryRegion[0];
+      bytesRecords = new Record[0];
+      
+      synchronized (spares) {
+        isClosed = true;
+        
+        released.addAll(spares);
+        released.addAll(lentSpares);
+        spares.clear();
+        lentSpares.clear();
+      }
+    }
+    
+    for (MemoryRegion buffer : released) {
+      if (buffer != null) {
+        buffer.free();
+      }
+    }
   }
   
-  void memoryCopyFor(int directId, Pointer[] allPointers) {
-    ByteBuffer original = physicalBuffers.get(directId);
+  private void recordWrite(int directId, int len) {
+    Record record = bytesRecords[directId];
+    record.allocatedBytes.add(len);
+    record.allocatedNum.increment();
+  }
+  
+  /**
+   * Incremental compaction of one buffer.
+   * 
+   * <br>
+   * Each batch moves live datas of buffer until its deadline and stops, 
+   * {@link #finish(List)} is called after all batches. Datas are moved in
+   * address order and their new offsets are applied within same batch, so
+   * moved datas are all below moved bytes and others are all above. Reads 
+   * and releases are forwarded by that, finish doesn't visit each data. 
+   * Caller should hold exclusive lock of buffer during each step, and no
+   * space should be given out from this buffer until compaction is finished.
+   * 
+   * <p>Datas that are adjacent at original location are merged into one 
+   * run, each run is copied by one bulk put without any heap array.
+   */
+  abstract class Compaction {
     
-    ByteBuffer target = physicalBuffers.get(-1);
-    long start = System.currentTimeMillis();
+    /** Longest run for one copy, so batch doesn't exceed its deadline much */
+    private static final int MAX_RUN = 256 << 10;
     
-    int index = 0;
+    protected final int directId;
     
-    int copyCount = 0;
-    for (int i = 0; i < allPointers.length; i++) {
-      Pointer p = allPointers[i];
+    /** Bytes that have been moved, also start of free space */
+    protected long used;
+    
+    /** Contiguous datas that are waiting for one copy */
+    private long runOffset;
+    private long runTarget;
+    private int runLen;
+    private int runNum;
+    
+    /** Spaces of moved datas that have been released after moving */
+    private final List<MemorySpace> releasedHoles = new ArrayList<MemorySpace>();
+    
+    private int copyCount;
+    private int batchNum;
+    private final long start = System.currentTimeMillis();
+    
+    private boolean isPrepared;
+    
+    /** Offsets and indexes of datas, sorted by offset */
+    protected long[] locatedOffsets = new long[1024];
+    protected int[] locatedIndexes = new int[1024];
+    protected int locatedNum;
+    
+    /** Next located data to move */
+    protected int position;
+    
+    private Compaction(int directId) {
+      this.directId = directId;
+    }
+    
+    /**
+     * Collects and sorts locations of datas, it needs no lock of buffer
+     * so that it's kept out of batches. First batch does it if caller 
+     * doesn't.
+     * 
+     * @param table
+     */
+    void prepare(PointerTable table) {
+      if (!isPrepared) {
+        isPrepared = true;
+        collect(table);
+      }
+    }
+    
+    /**
+     * Moves datas from where last batch stopped until deadline
+     * 
+     * @param table
+     * @param deadline value of {@link System#nanoTime()}
+     * @return <tt>true</tt> if all datas have been moved
+     */
+    boolean copyBatch(PointerTable table, long deadline) {
+      prepare(table);
+      batchNum++;
+      
+      boolean isFinished = moveUntil(table, deadline);
+      flushRun();
+      
+      return isFinished;
+    }
+    
+    /**
+     * @return bytes that have been moved so far
+     */
+    long getMovedBytes() {
+      return used;
+    }
+    
+    /**
+     * @return bulk copies that have been done so far
+     */
+    int getRunNum() {
+      return runNum;
+    }
+    
+    /**
+     * Makes moved datas visible at buffer of this direct id. Cost doesn't
+     * depend on number of datas.
+     * 
+     * @param holes free spaces inside moved range
+     * @return bytes that have been moved, also start of free space
+     */
+    long finish(List<MemorySpace> holes) {
+      synchronized (releasedHoles) {
+        holes.addAll(releasedHoles);
+      }
+      
+      switchBuffers();
+      unregister();
+      
+      long cost = System.currentTimeMillis() - start;
       
-      if (p.getDirectMemoryId() == directId) {
-        byte[] buf = new byte[p.getLen()];
+      LOG.info("Finished arrangement for memory#" + directId + ", copied datas: " + copyCount 
+          + " bytes: " + used + ", runs: " + runNum + ", holes: " + holes.size() + ", batches: " + batchNum 
+          + ", cost:" + cost + " ms");
+      
+      return used;
+    }
+    
+    /**
+     * Buffer is frozen and all its spaces are committed after their datas
+     * are published at table, so no data is added to it while scanning
+     */
+    private void collect(PointerTable table) {
+      int capacity = table.capacity();
+      for (int i = 0; i < capacity; i++) {
+        if (table.isStored(i) && table.getDirectId(i) == directId) {
+          if (locatedNum == locatedIndexes.length) {
+            locatedOffsets = Arrays.copyOf(locatedOffsets, locatedNum << 1);
+            locatedIndexes = Arrays.copyOf(locatedIndexes, locatedNum << 1);
+          }
+          
+          locatedOffsets[locatedNum] = table.getOffset(i);
+          locatedIndexes[locatedNum] = i;
+          locatedNum++;
+        }
+      }
+      
+      sortLocated();
+    }
+    
+    /**
+     * Heap sort by offset, indexes are moved together with their offsets
+     */
+    private void sortLocated() {
+      for (int k = locatedNum / 2 - 1; k >= 0; k--) {
+        siftDown(k, locatedNum);
+      }
+      
+      for (int end = locatedNum - 1; end > 0; end--) {
+        swapLocated(0, end);
+        siftDown(0, end);
+      }
+    }
+    
+    private void siftDown(int k, int size) {
+      while (true) {
+        int child = 2 * k + 1;
+        if (child >= size) {
+          return;
+        }
         
-        original.limit(p.getOffset() + p.getLen());
-        original.position(p.getOffset());
+        if (child + 1 < size && locatedOffsets[child + 1] > locatedOffsets[child]) {
+          child++;
+        }
+        
+        if (locatedOffsets[k] >= locatedOffsets[child]) {
+          return;
+        }
+        
+        swapLocated(k, child);
+        k = child;
+      }
+    }
+    
+    private void swapLocated(int a, int b) {
+      long offset = locatedOffsets[a];
+      locatedOffsets[a] = locatedOffsets[b];
+      locatedOffsets[b] = offset;
+      
+      int index = locatedIndexes[a];
+      locatedIndexes[a] = locatedIndexes[b];
+      locatedIndexes[b] = index;
+    }
+    
+    /**
+     * @param offset
+     * @return buffer where data at specified offset is located
+     */
+    protected MemoryRegion regionOf(long offset) {
+      return physicalBuffers[directId];
+    }
+    
+    /**
+     * @param offset
+     * @param len
+     * @return <tt>true</tt> if released data has been moved
+     */
+    private boolean takeReleased(long offset, int len) {
+      if (offset >= used) {
+        return false;
+      }
+      
+      synchronized (releasedHoles) {
+        releasedHoles.add(new MemorySpace(directId, offset, offset + len));
+      }
+      
+      return true;
+    }
+    
+    /**
+     * @return spaces of moved datas that have been released after moving
+     */
+    protected List<MemorySpace> getReleasedHoles() {
+      synchronized (releasedHoles) {
+        return new ArrayList<MemorySpace>(releasedHoles);
+      }
+    }
+    
+    protected void unregister() {
+      if (compactions[directId] == this) {
+        compactions[directId] = null;
+      }
+    }
+    
+    /**
+     * Moves located datas in address order
+     * 
+     * @return <tt>true</tt> if all datas have been moved
+     */
+    private boolean moveUntil(PointerTable table, long deadline) {
+      while (position < locatedNum) {
+        long offset = locatedOffsets[position];
+        int i = locatedIndexes[position];
         
-        original.get(buf);
+        // released after scanning, its bytes are left behind
+        if (table.isStored(i) && table.getDirectId(i) == directId && table.getOffset(i) == offset) {
+          if (!moveData(table, i, offset, deadline)) {
+            return false;
+          }
+        }
         
-        target.limit(index + buf.length);
-        target.position(index);
-        target.put(buf);
+        position++;
+      }
+      
+      return true;
+    }
+    
+    /**
+     * Copies bytes from original location to new location
+     */
+    protected abstract void copy(long from, long to, int len);
+    
+    protected abstract void switchBuffers();
+    
+    /**
+     * Records data that has been moved and applied at table
+     */
+    protected void moved(PointerTable table, int index, long from, long to) {
+    }
+    
+    /**
+     * Gives up compaction that is not finished. Caller should hold 
+     * exclusive lock of buffer.
+     * 
+     * @param table
+     * @param holes all free spaces of buffer if its layout has been changed,
+     * otherwise spaces that should be added back
+     * @return <tt>true</tt> if datas have been moved inside buffer, then 
+     * free spaces should be replaced by holes
+     */
+    boolean abort(PointerTable table, List<MemorySpace> holes) {
+      unregister();
+      
+      return false;
+    }
+    
+    /**
+     * Appends data to current run, or starts new run after copying pending
+     * one. Nothing is changed if deadline has been reached after copying.
+     * 
+     * @param table
+     * @param index
+     * @param offset current location of data
+     * @param deadline
+     * @return <tt>false</tt> if deadline has been reached
+     */
+    protected boolean moveData(PointerTable table, int index, long offset, long deadline) {
+      int len = table.getLen(index);
+      
+      if (runLen > 0 && offset == runOffset + runLen && runLen + len <= MAX_RUN) {
+        runLen += len;
+      } else {
+        if (flushRun() && System.nanoTime() >= deadline) {
+          return false;
+        }
         
-        p.setOffset(index);
-        index += buf.length;
+        runOffset = offset;
+        runTarget = used;
+        runLen = len;
+      }
+      
+      table.setOffset(index, used);
+      moved(table, index, offset, used);
+      
+      used += len;
+      copyCount++;
+      
+      return true;
+    }
+    
+    /**
+     * Copies pending run to its new location directly
+     * 
+     * @return <tt>true</tt> if there is any byte copied
+     */
+    protected boolean flushRun() {
+      if (runLen == 0) {
+        return false;
+      }
+      
+      copy(runOffset, runTarget, runLen);
+      
+      runLen = 0;
+      runNum++;
+      
+      return true;
+    }
+  }
+  
+  /**
+   * Copies datas into spare buffer in address order. Moved datas are read
+   * from spare between batches, others from original buffer. Buffers are
+   * switched by finish without any copy.
+   */
+  private class SpareCompaction extends Compaction {
+    
+    private final MemoryRegion spare;
+    
+    private final MemoryRegion original;
+    
+    private boolean isSwitched;
+    
+    /** Moved slots with generation, original and new location, for abort */
+    private int[] indexes = new int[1024];
+    private int[] generations = new int[1024];
+    private long[] fromOffsets = new long[1024];
+    private long[] toOffsets = new long[1024];
+    private int movedNum;
+    
+    private SpareCompaction(int directId, MemoryRegion spare) {
+      super(directId);
+      
+      this.spare = spare;
+      this.original = physicalBuffers[directId];
+    }
+    
+    protected MemoryRegion regionOf(long offset) {
+      return offset < used ? spare : original;
+    }
+    
+    protected void moved(PointerTable table, int index, long from, long to) {
+      if (movedNum == indexes.length) {
+        int newLength = movedNum << 1;
         
-        copyCount++;
+        indexes = Arrays.copyOf(indexes, newLength);
+        generations = Arrays.copyOf(generations, newLength);
+        fromOffsets = Arrays.copyOf(fromOffsets, newLength);
+        toOffsets = Arrays.copyOf(toOffsets, newLength);
       }
+      
+      indexes[movedNum] = index;
+      generations[movedNum] = table.getGeneration(index);
+      fromOffsets[movedNum] = from;
+      toOffsets[movedNum] = to;
+      movedNum++;
     }
     
-    physicalBuffers.put(-1, original);
-    physicalBuffers.put(directId, target);
+    protected void copy(long from, long to, int len) {
+      original.copyTo(from, spare, to, len);
+    }
     
-    long cost = System.currentTimeMillis() - start;
+    protected void switchBuffers() {
+      MemoryRegion original;
+      
+      // buffers of other slices might be switched at the same time
+      synchronized (PhysicalMemoryManager.this) {
+        MemoryRegion[] replaced = physicalBuffers.clone();
+        
+        original = replaced[directId];
+        replaced[directId] = spare;
+        
+        physicalBuffers = replaced;
+      }
+      
+      isSwitched = true;
+      
+      // spare has become buffer of this slice
+      synchronized (spares) {
+        lentSpares.remove(spare);
+      }
+      returnSpare(original);
+    }
     
-    LOG.info("Finished arrangement for memory#" + directId + ", copied datas: " + copyCount 
-        + " bytes: " + target.limit() + ", cost:" + cost + " ms");
+    /**
+     * Moved datas are pointed back to original buffer, which is untouched.
+     * It visits each moved data, but only happens on failure.
+     */
+    boolean abort(PointerTable table, List<MemorySpace> holes) {
+      if (isSwitched) {
+        return super.abort(table, holes);
+      }
+      
+      for (int k = 0; k < movedNum; k++) {
+        int i = indexes[k];
+        
+        if (table.matches(i, generations[k]) && table.getDirectId(i) == directId 
+            && table.getOffset(i) == toOffsets[k]) {
+          table.setOffset(i, fromOffsets[k]);
+        }
+      }
+      
+      // new offsets are ascending as datas are moved in address order
+      for (MemorySpace hole : getReleasedHoles()) {
+        int k = Arrays.binarySearch(toOffsets, 0, movedNum, hole.getOffset());
+        holes.add(new MemorySpace(directId, fromOffsets[k], fromOffsets[k] + hole.getSpaceLen()));
+      }
+      
+      super.abort(table, holes);
+      returnSpare(spare);
+      
+      return false;
+    }
   }
   
-  public void close() {
-    physicalBuffers.clear();
-    bytesRecords.clear();
+  /**
+   * Slides datas down to start of same buffer in address order, so there 
+   * is no spare buffer needed.
+   * 
+   * <br>
+   * Locations of all datas are collected and sorted before first batch 
+   * without lock, datas released after that are skipped by checking their
+   * locations again. Each moved data overwrites bytes below it, offset at
+   * table is updated within the same batch so readers never see stale 
+   * location. Overlapped copy is handled by buffer itself.
+   */
+  private class SlidingCompaction extends Compaction {
+    
+    private final MemoryRegion buffer;
+    
+    private SlidingCompaction(int directId) {
+      super(directId);
+      
+      this.buffer = physicalBuffers[directId];
+    }
+    
+    protected void copy(long from, long to, int len) {
+      if (from != to) {
+        buffer.copyTo(from, buffer, to, len);
+      }
+    }
+    
+    protected void switchBuffers() {
+    }
+    
+    /**
+     * Free spaces are rebuilt from current locations, old ones might have
+     * been covered by slid datas. Slid datas are below moved bytes and 
+     * others stay at their original location, so all datas are still in
+     * address order.
+     */
+    boolean abort(PointerTable table, List<MemorySpace> holes) {
+      unregister();
+      
+      if (getMovedBytes() == 0) {
+        return false;
+      }
+      
+      // offsets of pending run have been applied already
+      flushRun();
+      
+      long free = 0;
+      for (int k = 0; k < locatedNum; k++) {
+        int i = locatedIndexes[k];
+        if (!table.isStored(i) || table.getDirectId(i) != directId) {
+          continue;
+        }
+        
+        long offset = table.getOffset(i);
+        if (offset > free) {
+          holes.add(new MemorySpace(directId, free, offset));
+        }
+        
+        free = offset + table.getLen(i);
+      }
+      
+      long capacity = getCapacity(directId);
+      if (free < capacity) {
+        holes.add(new MemorySpace(directId, free, capacity));
+      }
+      
+      return true;
+    }
   }
   
   private class Record {
     
-    private AtomicLong allocatedBytes = new AtomicLong();
-    private AtomicInteger allocatedNum = new AtomicInteger();
+    private StripedCounter allocatedBytes = new StripedCounter();
+    private StripedCounter allocatedNum = new StripedCounter();
     
     public String toString() {
-      return allocatedBytes.get() + ", " + allocatedNum.get();
+      return allocatedBytes.sum() + ", " + allocatedNum.sum();
     }
     
   }
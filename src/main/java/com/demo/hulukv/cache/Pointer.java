@@ -14,12 +14,13 @@ public class Pointer {
   
   private int directMemoryId;
   
+  /** generation of slot at index, increased each time slot is reused */
   private long timestamp;
   
-  private int offset;
+  private long offset;
   private int len;
   
-  public Pointer(int index, int directId, long stamp, int offset, int len) {
+  public Pointer(int index, int directId, long stamp, long offset, int len) {
     this.index = index;
     this.directMemoryId = directId;
     
@@ -37,11 +38,11 @@ public class Pointer {
     return timestamp;
   }
   
-  public int getOffset() {
+  public long getOffset() {
     return offset;
   }
   
-  void setOffset(int offset) {
+  void setOffset(long offset) {
     this.offset = offset;
   }
 
@@ -71,6 +72,16 @@ public class Pointer {
     return this.index == b.index && this.timestamp == b.timestamp;
   }
 
+  /**
+   * Packed form of this pointer
+   * 
+   * @return
+   * @see PointerHandle
+   */
+  public long toHandle() {
+    return PointerHandle.encode(index, (int) timestamp);
+  }
+
   public MemorySpace toMemorySpace() {
     return new MemorySpace(directMemoryId, offset, (offset + len));
   }
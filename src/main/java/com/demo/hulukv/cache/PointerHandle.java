@@ -0,0 +1,45 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Packed 64-bit alternative of {@code Pointer}. 
+ * 
+ * <br>
+ * Low 32 bits is slot index, high 32 bits is generation of that slot. 
+ * Generation is increased each time slot is reused, so stale handle of 
+ * released data never matches new data at same slot. Generation starts
+ * from 1, handle 0 is never valid.
+ *
+ * @version 1.0
+ */
+public final class PointerHandle {
+  
+  private PointerHandle() {}
+  
+  public static long encode(int index, int generation) {
+    return ((long) generation << 32) | (index & 0xFFFFFFFFL);
+  }
+  
+  public static int index(long handle) {
+    return (int) handle;
+  }
+  
+  public static int generation(long handle) {
+    return (int) (handle >>> 32);
+  }
+  
+  /**
+   * Next generation after specified one, 0 is skipped
+   * 
+   * @param generation
+   * @return
+   */
+  static int next(int generation) {
+    int next = generation + 1;
+    return next == 0 ? 1 : next;
+  }
+  
+  public static String toString(long handle) {
+    return "Handle[index:" + index(handle) + ", generation:" + generation(handle) + "]";
+  }
+  
+}
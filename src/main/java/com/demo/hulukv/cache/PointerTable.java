@@ -0,0 +1,78 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Mapping from slot index to location of stored data at direct memory.
+ * 
+ * <br>
+ * Each slot is either empty or holds one pointer. Stored pointer is 
+ * identified by index and stamp, stamp is generation of slot that is
+ * increased each time slot is reused. Location of data is described by
+ * direct id, offset and length. Offset might be changed by arrangement.
+ *
+ * @version 1.0
+ */
+public interface PointerTable {
+
+  /**
+   * Stores pointer at specified slot, generation of slot is increased
+   * 
+   * @param index
+   * @param directId
+   * @param offset
+   * @param len
+   * @return generation of stored pointer, which is stamp of pointer
+   */
+  int put(int index, int directId, long offset, int len);
+  
+  /**
+   * Clears slot
+   * 
+   * @param index
+   */
+  void remove(int index);
+  
+  /**
+   * @param index
+   * @return <tt>true</tt> if slot holds pointer
+   */
+  boolean isStored(int index);
+  
+  /**
+   * @param index
+   * @param stamp
+   * @return <tt>true</tt> if slot holds pointer with same stamp(generation)
+   */
+  boolean matches(int index, long stamp);
+  
+  /**
+   * @param index
+   * @return generation of latest stored pointer at this slot
+   */
+  int getGeneration(int index);
+  
+  /**
+   * Location fields are undefined for empty slot, caller should check
+   * stamp after reading them without lock.
+   * 
+   * @param index
+   * @return
+   */
+  int getDirectId(int index);
+  
+  long getOffset(int index);
+  
+  void setOffset(int index, long offset);
+  
+  int getLen(int index);
+  
+  /**
+   * Pointer at specified slot, might be newly created
+   * 
+   * @param index
+   * @return null if slot is empty
+   */
+  Pointer get(int index);
+  
+  int capacity();
+  
+}
@@ -0,0 +1,288 @@
+package com.demo.hulukv.cache;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocator that carves buffers into pages, each page is dedicated to one
+ * size class and split into chunks with same length.
+ *
+ * <br>
+ * Data is put into chunk of smallest class that not less than its length.
+ * Each class keeps released chunks at stack, so allocation and release are
+ * O(1) without any split or merge. Page is handed to class at first demand
+ * and never returned back.
+ *
+ * <p>Bytes between data length and chunk length are wasted, they are
+ * counted for each class as internal fragmentation.
+ *
+ * @version 1.0
+ */
+public class SlabSpaceAllocator implements SpaceAllocator {
+  private static final Logger LOG = LoggerFactory.getLogger(SlabSpaceAllocator.class);
+  
+  private static final long NO_CHUNK = -1L;
+  
+  private final int pageSize;
+  
+  private final SizeClass[] classes;
+  
+  /** Class of each page, indexed by direct id and page. -1 means free page */
+  private final int[][] pageOwners;
+  
+  /** Pages that have not been dedicated to any class, guarded by itself */
+  private final LongStack freePages = new LongStack();
+  
+  private volatile boolean isRunning;
+  
+  public SlabSpaceAllocator(MemoryAllocateConf conf, int bufNum) {
+    int[] sizes = conf.getSlabSizeClasses();
+    
+    this.pageSize = conf.getSlabPageSize();
+    if (sizes[sizes.length - 1] > pageSize) {
+      throw new IllegalArgumentException("Largest size class " + sizes[sizes.length - 1]
+          + " exceeds page size " + pageSize);
+    }
+    
+    this.classes = new SizeClass[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      classes[i] = new SizeClass(i, sizes[i]);
+    }
+    
+    this.pageOwners = new int[bufNum][];
+    
+    isRunning = true;
+  }
+  
+  public void addSlice(int directId, long capacity) {
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slice larger than 2GB is not supported: " + capacity);
+    }
+    
+    int[] owners = new int[(int) capacity / pageSize];
+    Arrays.fill(owners, -1);
+    
+    synchronized (freePages) {
+      pageOwners[directId] = owners;
+      
+      for (int page = owners.length - 1; page >= 0; page--) {
+        freePages.push(encode(directId, page * pageSize));
+      }
+    }
+  }
+  
+  public MemorySpace allocate(int expectLen) throws AllocateFailedException {
+    if (!isRunning) {
+      throw new AllocateFailedException("Slab allocator has been closed");
+    }
+    
+    SizeClass sizeClass = classOf(expectLen);
+    if (sizeClass == null) {
+      throw new AllocateFailedException("No size class for expect length " + expectLen
+          + ", largest class is " + classes[classes.length - 1].chunkSize);
+    }
+    
+    long chunk = sizeClass.take(expectLen);
+    
+    return new MemorySpace(directIdOf(chunk), offsetOf(chunk), offsetOf(chunk) + expectLen);
+  }
+  
+  /**
+   * Nothing to do, chunk is never moved
+   */
+  public void commit(MemorySpace space) {
+  }
+  
+  public void addFreeSpace(MemorySpace free) {
+    int offset = (int) free.getOffset();
+    int owner = pageOwners[free.getDirectByteId()][offset / pageSize];
+    if (owner < 0) {
+      throw new IllegalArgumentException("Space " + free + " doesn't belong to any size class");
+    }
+    
+    classes[owner].giveBack(encode(free.getDirectByteId(), offset), (int) free.getSpaceLen());
+  }
+  
+  /**
+   * Bytes that reserved by chunks in use but not filled by data
+   *
+   * @param chunkSize
+   * @return
+   */
+  public long getWastedBytes(int chunkSize) {
+    for (SizeClass sizeClass : classes) {
+      if (sizeClass.chunkSize == chunkSize) {
+        synchronized (sizeClass) {
+          return sizeClass.wastedBytes();
+        }
+      }
+    }
+    
+    throw new IllegalArgumentException("No size class " + chunkSize);
+  }
+  
+  public String getStatus() {
+    StringBuffer appender = new StringBuffer();
+    
+    int freePageNum;
+    synchronized (freePages) {
+      freePageNum = freePages.size;
+    }
+    appender.append(Transformer.strFormat("Slab page " + Transformer.getSpecificSize(pageSize)
+        + ", " + freePageNum + " free pages", 45));
+    
+    for (SizeClass sizeClass : classes) {
+      synchronized (sizeClass) {
+        if (sizeClass.pages == 0) {
+          continue;
+        }
+        
+        long reserved = sizeClass.usedChunks * sizeClass.chunkSize;
+        appender.append(Transformer.strFormat("class " + sizeClass.chunkSize + " - "
+            + sizeClass.pages + " pages, " + sizeClass.usedChunks + " chunks used, wasted "
+            + sizeClass.wastedBytes() + " bytes, "
+            + (reserved == 0 ? 0 : (float) sizeClass.wastedBytes() * 100 / reserved) + "%", 100));
+      }
+    }
+    
+    return appender.toString();
+  }
+  
+  public void close() {
+    isRunning = false;
+  }
+  
+  /**
+   * Smallest class that not less than length
+   */
+  private SizeClass classOf(int len) {
+    int low = 0;
+    int high = classes.length - 1;
+    
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (classes[mid].chunkSize < len) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    
+    return low < classes.length ? classes[low] : null;
+  }
+  
+  private long takePage(SizeClass owner) {
+    synchronized (freePages) {
+      if (freePages.size == 0) {
+        return NO_CHUNK;
+      }
+      
+      long page = freePages.pop();
+      pageOwners[directIdOf(page)][offsetOf(page) / pageSize] = owner.index;
+      
+      return page;
+    }
+  }
+  
+  private static long encode(int directId, int offset) {
+    return ((long) directId << 32) | (offset & 0xFFFFFFFFL);
+  }
+  
+  private static int directIdOf(long chunk) {
+    return (int) (chunk >>> 32);
+  }
+  
+  private static int offsetOf(long chunk) {
+    return (int) chunk;
+  }
+  
+  /**
+   * Chunks with same length. Chunks of newest page are given out in order,
+   * released chunks are preferred.
+   */
+  private class SizeClass {
+    
+    private final int index;
+    private final int chunkSize;
+    
+    private final LongStack released = new LongStack();
+    
+    /** Next chunk of newest page, and its limit */
+    private long cursor = NO_CHUNK;
+    private int cursorLimit;
+    
+    private int pages;
+    private long usedChunks;
+    private long requestedBytes;
+    
+    private SizeClass(int index, int chunkSize) {
+      this.index = index;
+      this.chunkSize = chunkSize;
+    }
+    
+    private synchronized long take(int len) throws AllocateFailedException {
+      long chunk;
+      
+      if (released.size > 0) {
+        chunk = released.pop();
+      } else {
+        if (cursor == NO_CHUNK || offsetOf(cursor) + chunkSize > cursorLimit) {
+          long page = takePage(this);
+          if (page == NO_CHUNK) {
+            throw new AllocateFailedException("No space left for size class " + chunkSize);
+          }
+          
+          cursor = page;
+          cursorLimit = offsetOf(page) + pageSize;
+          pages++;
+          
+          LOG.debug("Page " + offsetOf(page) + " at memory#" + directIdOf(page)
+              + " is dedicated to size class " + chunkSize);
+        }
+        
+        chunk = cursor;
+        cursor += chunkSize;
+      }
+      
+      usedChunks++;
+      requestedBytes += len;
+      
+      return chunk;
+    }
+    
+    private synchronized void giveBack(long chunk, int len) {
+      released.push(chunk);
+      
+      usedChunks--;
+      requestedBytes -= len;
+    }
+    
+    private long wastedBytes() {
+      return usedChunks * chunkSize - requestedBytes;
+    }
+  }
+  
+  /**
+   * Growable stack of primitive long
+   */
+  private static class LongStack {
+    
+    private long[] elements = new long[16];
+    private int size;
+    
+    private void push(long e) {
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, size << 1);
+      }
+      
+      elements[size++] = e;
+    }
+    
+    private long pop() {
+      return elements[--size];
+    }
+  }
+  
+}
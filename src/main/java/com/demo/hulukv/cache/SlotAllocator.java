@@ -0,0 +1,147 @@
+package com.demo.hulukv.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free allocator of slot indexes at range [0, capacity).
+ *
+ * <br>
+ * Released slots are linked as stack in primitive array, head of stack
+ * carries a stamp at high 32 bits to avoid ABA problem. Slots that never
+ * been used are handed out by moving a counter, so there is no element
+ * should be filled at startup.
+ *
+ * <p>Nothing is allocated at acquire/release path.
+ *
+ * @version 1.0
+ */
+public class SlotAllocator {
+  
+  public static final int NO_SLOT = -1;
+  
+  /** Maximum sleep between two attempts during bounded wait */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  
+  private final int capacity;
+  
+  /** Next released slot for each released slot */
+  private final int[] nextFree;
+  
+  /** stamp(high 32 bits) | top slot of released stack(low 32 bits) */
+  private final AtomicLong head = new AtomicLong(pack(0, NO_SLOT));
+  
+  /** Slots from this value to capacity have never been used */
+  private final AtomicInteger fresh = new AtomicInteger();
+  
+  public SlotAllocator(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("negative capacity");
+    }
+    
+    this.capacity = capacity;
+    this.nextFree = new int[capacity];
+  }
+  
+  /**
+   * Obtains free slot without waiting
+   *
+   * @return slot or {@link #NO_SLOT} if all slots are in use
+   */
+  public int tryAcquire() {
+    for (;;) {
+      long h = head.get();
+      int top = (int) h;
+      if (top == NO_SLOT) {
+        break;
+      }
+      
+      if (head.compareAndSet(h, pack(stamp(h) + 1, nextFree[top]))) {
+        return top;
+      }
+    }
+    
+    for (;;) {
+      int f = fresh.get();
+      if (f >= capacity) {
+        return NO_SLOT;
+      }
+      
+      if (fresh.compareAndSet(f, f + 1)) {
+        return f;
+      }
+    }
+  }
+  
+  /**
+   * Obtains free slot, waits at most timeout if all slots are in use
+   *
+   * @param timeout non-positive means no waiting
+   * @param unit
+   * @return slot or {@link #NO_SLOT} if timeout
+   * @throws InterruptedException
+   */
+  public int acquire(long timeout, TimeUnit unit) throws InterruptedException {
+    int slot = tryAcquire();
+    if (slot != NO_SLOT || timeout <= 0) {
+      return slot;
+    }
+    
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long park = 1000L;
+    
+    for (;;) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return NO_SLOT;
+      }
+      
+      LockSupport.parkNanos(Math.min(park, remaining));
+      park = Math.min(park << 1, MAX_PARK_NANOS);
+      
+      slot = tryAcquire();
+      if (slot != NO_SLOT) {
+        return slot;
+      }
+    }
+  }
+  
+  /**
+   * Returns slot to allocator. Slot must be obtained from this allocator.
+   *
+   * @param slot
+   */
+  public void release(int slot) {
+    if (slot < 0 || slot >= capacity) {
+      throw new IllegalArgumentException("slot:" + slot + ", capacity:" + capacity);
+    }
+    
+    for (;;) {
+      long h = head.get();
+      nextFree[slot] = (int) h;
+      
+      if (head.compareAndSet(h, pack(stamp(h) + 1, slot))) {
+        return;
+      }
+    }
+  }
+  
+  public int getCapacity() {
+    return this.capacity;
+  }
+  
+  private static long pack(int stamp, int slot) {
+    return ((long) stamp << 32) | (slot & 0xFFFFFFFFL);
+  }
+  
+  private static int stamp(long h) {
+    return (int) (h >>> 32);
+  }
+  
+}
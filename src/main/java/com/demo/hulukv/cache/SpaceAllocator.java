@@ -0,0 +1,50 @@
+package com.demo.hulukv.cache;
+
+/**
+ * Gives out spaces of direct buffers and takes them back after release.
+ *
+ * <br>
+ * Allocated space starts from returned offset and has exactly expected
+ * length, implementation might reserve more bytes behind it. Released
+ * space is described by same direct id, offset and length.
+ *
+ * @version 1.0
+ */
+public interface SpaceAllocator {
+  
+  /**
+   * Adds whole buffer as free space, called once for each buffer
+   *
+   * @param directId
+   * @param capacity might be larger than 2GB only for 
+   * {@link FreeSpaceIndexManager}, others throw IllegalArgumentException
+   */
+  void addSlice(int directId, long capacity);
+  
+  /**
+   * @param expectLen
+   * @return space that not null
+   * @throws AllocateFailedException
+   */
+  MemorySpace allocate(int expectLen) throws AllocateFailedException;
+  
+  /**
+   * Confirms that data at allocated space has been published by caller,
+   * or space has been given up.
+   *
+   * @param space
+   */
+  void commit(MemorySpace space);
+  
+  /**
+   * Returns space that allocated from this allocator
+   *
+   * @param free
+   */
+  void addFreeSpace(MemorySpace free);
+  
+  String getStatus();
+  
+  void close();
+  
+}
@@ -0,0 +1,71 @@
+package com.demo.hulukv.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over multiple padded cells.
+ * 
+ * <br>
+ * Each thread updates cell chosen by its id, so threads at different cores
+ * don't fight for one cache line. Reading sums up all cells, it's not
+ * an atomic snapshot under concurrent updates.
+ *
+ * @version 1.0
+ */
+public class StripedCounter {
+  
+  /** 16 longs between two cells, more than one cache line */
+  private static final int PAD_SHIFT = 4;
+  
+  private final AtomicLongArray cells;
+  private final int mask;
+  
+  public StripedCounter() {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() << 1) {
+      stripes <<= 1;
+    }
+    
+    this.mask = stripes - 1;
+    this.cells = new AtomicLongArray(stripes << PAD_SHIFT);
+  }
+  
+  public void add(long x) {
+    cells.addAndGet(cellOf(Thread.currentThread()), x);
+  }
+  
+  public void increment() {
+    add(1L);
+  }
+  
+  public void decrement() {
+    add(-1L);
+  }
+  
+  public long sum() {
+    long sum = 0L;
+    for (int i = 0; i <= mask; i++) {
+      sum += cells.get(i << PAD_SHIFT);
+    }
+    
+    return sum;
+  }
+  
+  public void reset() {
+    for (int i = 0; i <= mask; i++) {
+      cells.set(i << PAD_SHIFT, 0L);
+    }
+  }
+  
+  public String toString() {
+    return String.valueOf(sum());
+  }
+  
+  private int cellOf(Thread thread) {
+    long id = thread.getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    
+    return ((hash ^ (hash >>> 16)) & mask) << PAD_SHIFT;
+  }
+  
+}
@@ -0,0 +1,153 @@
+package com.demo.hulukv.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+/**
+ * Runs workers against one space allocator and checks that spaces held
+ * at the same time never overlap.
+ *
+ * <br>
+ * Spaces are taken and given back through this class, which keeps them
+ * ordered by (direct id, offset). Failure of any worker breaks barrier
+ * of others and is thrown after all of them stopped.
+ *
+ * @version 1.0
+ */
+class ConcurrentAllocation {
+  
+  /**
+   * Task of each thread
+   */
+  interface Worker {
+    void run(int thread) throws Exception;
+  }
+  
+  private final SpaceAllocator allocator;
+  
+  /** Spaces in use by key of their start, guarded by itself */
+  private final TreeMap<Long, MemorySpace> held = new TreeMap<Long, MemorySpace>();
+  
+  private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+  
+  private volatile CyclicBarrier barrier;
+  
+  ConcurrentAllocation(SpaceAllocator allocator) {
+    this.allocator = allocator;
+  }
+  
+  /**
+   * Position of byte inside all slices, slices are far apart
+   */
+  static long keyOf(int directId, long offset) {
+    return ((long) directId << 40) + offset;
+  }
+  
+  /**
+   * Allocates space and fails if it overlaps any held space
+   *
+   * @param len
+   * @return
+   * @throws AllocateFailedException
+   */
+  MemorySpace take(int len) throws AllocateFailedException {
+    MemorySpace space = allocator.allocate(len);
+    allocator.commit(space);
+    
+    long start = keyOf(space.getDirectByteId(), space.getOffset());
+    long limit = keyOf(space.getDirectByteId(), space.getLimit());
+    synchronized (held) {
+      Map.Entry<Long, MemorySpace> before = held.floorEntry(start);
+      if (before != null && keyOf(before.getValue().getDirectByteId(), before.getValue().getLimit()) > start) {
+        Assert.fail(space + " overlaps " + before.getValue());
+      }
+      
+      Map.Entry<Long, MemorySpace> after = held.ceilingEntry(start);
+      if (after != null && after.getKey() < limit) {
+        Assert.fail(space + " overlaps " + after.getValue());
+      }
+      
+      held.put(start, space);
+    }
+    
+    return space;
+  }
+  
+  void giveBack(MemorySpace space) {
+    synchronized (held) {
+      if (held.remove(keyOf(space.getDirectByteId(), space.getOffset())) != space) {
+        Assert.fail(space + " is not held");
+      }
+    }
+    
+    allocator.addFreeSpace(space);
+  }
+  
+  /**
+   * @return held spaces in address order
+   */
+  List<MemorySpace> heldSpaces() {
+    synchronized (held) {
+      return new ArrayList<MemorySpace>(held.values());
+    }
+  }
+  
+  /**
+   * Waits until all workers of current run reach here, gives up once any
+   * worker failed
+   */
+  void await() throws Exception {
+    if (!failures.isEmpty()) {
+      throw new BrokenBarrierException();
+    }
+    
+    barrier.await(60, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Runs worker at each thread and waits for all of them
+   *
+   * @param threads
+   * @param worker
+   * @throws Exception
+   */
+  void run(int threads, final Worker worker) throws Exception {
+    barrier = new CyclicBarrier(threads);
+    
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      workers[t] = new Thread("AllocationWorker-" + t) {
+        public void run() {
+          try {
+            worker.run(thread);
+          } catch (Throwable e) {
+            failures.add(e);
+            barrier.reset();
+          }
+        }
+      };
+      workers[t].start();
+    }
+    
+    for (Thread thread : workers) {
+      thread.join();
+    }
+    
+    if (!failures.isEmpty()) {
+      AssertionError error = new AssertionError(failures.size() + " workers failed");
+      error.initCause(failures.get(0));
+      
+      throw error;
+    }
+  }
+  
+}
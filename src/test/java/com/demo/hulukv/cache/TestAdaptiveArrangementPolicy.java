@@ -0,0 +1,81 @@
+package com.demo.hulukv.cache;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Decisions of default arrangement policy
+ *
+ * @version 1.0
+ */
+public class TestAdaptiveArrangementPolicy {
+  
+  /**
+   * @param spaces length of each free space
+   */
+  private FragmentationStats stats(int capacity, int fragmentNum, int largestRequest,
+      long failures, int... spaces) {
+    int[] histogramNum = new int[32];
+    long[] histogramBytes = new long[32];
+    int largestFree = 0;
+    long fragmentBytes = 0L;
+    for (int i = 0; i < spaces.length; i++) {
+      int bin = 31 - Integer.numberOfLeadingZeros(spaces[i]);
+      histogramNum[bin]++;
+      histogramBytes[bin] += spaces[i];
+      largestFree = Math.max(largestFree, spaces[i]);
+      
+      if (i < fragmentNum) {
+        fragmentBytes += spaces[i];
+      }
+    }
+    
+    return new FragmentationStats(0, capacity, largestFree, fragmentBytes, fragmentNum,
+        histogramNum, histogramBytes, largestRequest, failures);
+  }
+  
+  @Test
+  public void mergeIndex() {
+    ArrangementPolicy policy = new AdaptiveArrangementPolicy();
+    
+    // no fragment to merge
+    Assert.assertFalse(policy.shouldMergeIndex(stats(10000, 0, 100, 5, 500)));
+    
+    // fragments are few and every request fits
+    Assert.assertFalse(policy.shouldMergeIndex(stats(10000, 1, 100, 0, 50, 5000)));
+    
+    Assert.assertTrue(policy.shouldMergeIndex(stats(10000, 1, 100, 1, 50, 5000)));
+    Assert.assertTrue(policy.shouldMergeIndex(stats(10000, 1, 6000, 0, 50, 5000)));
+    Assert.assertTrue(policy.shouldMergeIndex(stats(10000, 2, 100, 0, 50, 50, 80)));
+  }
+  
+  @Test
+  public void compactionPriority() {
+    ArrangementPolicy policy = new AdaptiveArrangementPolicy();
+    
+    // one contiguous free space
+    Assert.assertEquals(0L, policy.compactionPriority(stats(10000, 0, 5000, 1, 6000)));
+    
+    // compaction cannot serve largest request either
+    Assert.assertEquals(0L, policy.compactionPriority(stats(10000, 0, 5000, 1, 2000, 2000)));
+    
+    // scattered but every request fits
+    Assert.assertEquals(0L, policy.compactionPriority(stats(10000, 0, 100, 0, 900, 900, 900)));
+    
+    // urgent
+    Assert.assertEquals(1800L, policy.compactionPriority(stats(10000, 0, 1000, 0, 900, 900, 900)));
+    Assert.assertEquals(1800L, policy.compactionPriority(stats(10000, 0, 100, 1, 900, 900, 900)));
+    
+    // mostly free, but few bytes are left for largest request
+    int[] spaces = new int[80];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = 100;
+    }
+    spaces[0] = 300;
+    Assert.assertEquals(7900L, policy.compactionPriority(stats(10000, 0, 200, 0, spaces)));
+    
+    // same buffer is kept while it's mostly used
+    Assert.assertEquals(0L, policy.compactionPriority(stats(20000, 0, 200, 0, spaces)));
+  }
+}
@@ -0,0 +1,56 @@
+package com.demo.hulukv.cache;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Copy rate limit and adaptive backoff of arrangement
+ *
+ * @version 1.0
+ */
+public class TestArrangementThrottle {
+  
+  @Test
+  public void copyRate() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    conf.setArrangementCopyRate(10);
+    
+    ArrangementThrottle throttle = new ArrangementThrottle(conf);
+    
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      throttle.pause(256 << 10, false);
+    }
+    
+    // 2.5MB at 10MB/s
+    Assert.assertTrue(System.currentTimeMillis() - start >= 240);
+  }
+  
+  @Test
+  public void adaptiveBackoff() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    conf.setAdaptiveArrangement(true);
+    
+    ArrangementThrottle throttle = new ArrangementThrottle(conf);
+    
+    throttle.pause(0, false);
+    Assert.assertEquals(0, throttle.getBackoff());
+    
+    long backoff = 0;
+    for (int i = 0; i < 10; i++) {
+      throttle.pause(0, true);
+      
+      Assert.assertTrue(throttle.getBackoff() >= backoff);
+      backoff = throttle.getBackoff();
+    }
+    Assert.assertEquals(64000000L, backoff);
+    
+    while (throttle.getBackoff() > 0) {
+      throttle.pause(0, false);
+      
+      Assert.assertTrue(throttle.getBackoff() < backoff);
+      backoff = throttle.getBackoff();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Split, neighbour merge and block reuse of boundary tag allocator
+ *
+ * @version 1.0
+ */
+public class TestBoundaryTagSpaceAllocator {
+  
+  @Test
+  public void mergeWithNeighbours() throws Exception {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(1024));
+    
+    BoundaryTagSpaceAllocator allocator = new BoundaryTagSpaceAllocator(1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 1024);
+    
+    MemorySpace first = allocator.allocate(100);
+    MemorySpace second = allocator.allocate(100);
+    MemorySpace third = allocator.allocate(100);
+    
+    Assert.assertEquals(4, first.getOffset());
+    Assert.assertEquals(116, second.getOffset());
+    Assert.assertEquals(228, third.getOffset());
+    Assert.assertEquals(1, allocator.getFreeBlocks(0));
+    
+    allocator.addFreeSpace(second);
+    Assert.assertEquals(2, allocator.getFreeBlocks(0));
+    
+    // merged with next one
+    allocator.addFreeSpace(first);
+    Assert.assertEquals(2, allocator.getFreeBlocks(0));
+    
+    // merged with both sides
+    allocator.addFreeSpace(third);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0));
+    
+    MemorySpace whole = allocator.allocate(1024 - 8);
+    Assert.assertEquals(4, whole.getOffset());
+    
+    try {
+      allocator.allocate(1);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+  }
+  
+  @Test
+  public void reuseReleasedBlocks() throws Exception {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(64 << 10));
+    
+    BoundaryTagSpaceAllocator allocator = new BoundaryTagSpaceAllocator(1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 64 << 10);
+    
+    MemorySpace[] spaces = new MemorySpace[500];
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < spaces.length; i++) {
+        spaces[i] = allocator.allocate(1 + (i * 31 + round) % 100);
+      }
+      
+      for (int i = 0; i < spaces.length; i += 2) {
+        allocator.addFreeSpace(spaces[i]);
+      }
+      for (int i = 1; i < spaces.length; i += 2) {
+        allocator.addFreeSpace(spaces[i]);
+      }
+      
+      Assert.assertEquals(1, allocator.getFreeBlocks(0));
+    }
+  }
+  
+  @Test
+  public void releaseAdjacentInBothOrders() throws Exception {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(1024));
+    
+    BoundaryTagSpaceAllocator allocator = new BoundaryTagSpaceAllocator(1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 1024);
+    
+    // last one keeps tail block away from others
+    MemorySpace first = allocator.allocate(100);
+    MemorySpace second = allocator.allocate(100);
+    MemorySpace third = allocator.allocate(100);
+    allocator.allocate(100);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0));
+    
+    // former one first, latter one merges with previous
+    allocator.addFreeSpace(first);
+    allocator.addFreeSpace(second);
+    Assert.assertEquals(2, allocator.getFreeBlocks(0));
+    
+    MemorySpace merged = allocator.allocate(2 * 112 - 8);
+    Assert.assertEquals(4, merged.getOffset());
+    Assert.assertEquals(1, allocator.getFreeBlocks(0));
+    
+    // latter one first, former one merges with next
+    allocator.addFreeSpace(third);
+    allocator.addFreeSpace(merged);
+    Assert.assertEquals(2, allocator.getFreeBlocks(0));
+    
+    merged = allocator.allocate(3 * 112 - 8);
+    Assert.assertEquals(4, merged.getOffset());
+    Assert.assertEquals(1, allocator.getFreeBlocks(0));
+  }
+
+  /**
+   * Payloads are filled up to both tags while neighbours are split and 
+   * merged by other threads, so header or footer written over a payload 
+   * shows up as corrupted data, and payload written over a tag breaks 
+   * merge at the end.
+   */
+  @Test
+  public void concurrentNeighbourTags() throws Exception {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(64 << 10));
+    buffers.put(1, ByteBuffer.allocateDirect(64 << 10));
+    
+    final PhysicalMemoryManager physicalManager = new PhysicalMemoryManager(buffers);
+    final BoundaryTagSpaceAllocator allocator = new BoundaryTagSpaceAllocator(2, physicalManager);
+    allocator.addSlice(0, 64 << 10);
+    allocator.addSlice(1, 64 << 10);
+    
+    final ConcurrentAllocation allocation = new ConcurrentAllocation(allocator);
+    allocation.run(4, new ConcurrentAllocation.Worker() {
+      public void run(int thread) throws Exception {
+        Random random = new Random(thread);
+        MemorySpace[] held = new MemorySpace[8];
+        byte[] fills = new byte[held.length];
+        
+        for (int i = 0; i < 20000; i++) {
+          int slot = random.nextInt(held.length);
+          if (held[slot] != null) {
+            release(held[slot], fills[slot]);
+            held[slot] = null;
+          } else {
+            held[slot] = allocation.take(1 + random.nextInt(2048));
+            fills[slot] = (byte) random.nextInt();
+            
+            byte[] data = new byte[(int) held[slot].getSpaceLen()];
+            Arrays.fill(data, fills[slot]);
+            physicalManager.writeData(held[slot].getDirectByteId(), held[slot].getOffset(), data);
+          }
+        }
+        
+        for (int slot = 0; slot < held.length; slot++) {
+          if (held[slot] != null) {
+            release(held[slot], fills[slot]);
+          }
+        }
+      }
+      
+      private void release(MemorySpace space, byte fill) {
+        byte[] data = physicalManager.readData(space.getDirectByteId(), space.getOffset(), (int) space.getSpaceLen());
+        for (int i = 0; i < data.length; i++) {
+          if (data[i] != fill) {
+            Assert.fail(space + " is overwritten at " + i);
+          }
+        }
+        
+        allocation.giveBack(space);
+      }
+    });
+    
+    // tags are intact only if every block merges back into whole slice
+    for (int directId = 0; directId < 2; directId++) {
+      Assert.assertEquals(1, allocator.getFreeBlocks(directId));
+    }
+    
+    MemorySpace first = allocation.take((64 << 10) - 8);
+    MemorySpace second = allocation.take((64 << 10) - 8);
+    Assert.assertEquals(4, first.getOffset());
+    Assert.assertEquals(4, second.getOffset());
+  }
+}
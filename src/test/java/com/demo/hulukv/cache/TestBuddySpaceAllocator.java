@@ -0,0 +1,208 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Split, merge and slice tails of buddy allocator
+ *
+ * @version 1.0
+ */
+public class TestBuddySpaceAllocator {
+  
+  @Test
+  public void splitAndMerge() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setMemorySlices(4096);
+    conf.setBuddyMinBlock(64);
+    
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(4096));
+    
+    BuddySpaceAllocator allocator = new BuddySpaceAllocator(conf, 1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 4096);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 6));
+    
+    MemorySpace first = allocator.allocate(100);
+    Assert.assertEquals(0, first.getOffset());
+    Assert.assertEquals(100, first.getSpaceLen());
+    for (int order = 1; order < 6; order++) {
+      Assert.assertEquals(1, allocator.getFreeBlocks(0, order));
+    }
+    
+    MemorySpace second = allocator.allocate(64);
+    Assert.assertEquals(128, second.getOffset());
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 0));
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 1));
+    
+    allocator.addFreeSpace(first);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 1));
+    
+    allocator.addFreeSpace(second);
+    for (int order = 0; order < 6; order++) {
+      Assert.assertEquals(0, allocator.getFreeBlocks(0, order));
+    }
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 6));
+    
+    try {
+      allocator.allocate(4097);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+  }
+  
+  @Test
+  public void coalesceAcrossFreedBuddies() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setMemorySlices(256);
+    conf.setBuddyMinBlock(64);
+    
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(256));
+    
+    BuddySpaceAllocator allocator = new BuddySpaceAllocator(conf, 1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 256);
+    
+    MemorySpace[] spaces = new MemorySpace[4];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = allocator.allocate(64);
+      Assert.assertEquals(i * 64, spaces[i].getOffset());
+    }
+    
+    // 64 and 128 are neighbours but not buddies
+    allocator.addFreeSpace(spaces[1]);
+    allocator.addFreeSpace(spaces[2]);
+    Assert.assertEquals(2, allocator.getFreeBlocks(0, 0));
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 1));
+    
+    // merged block of 0 waits for its buddy at 128
+    allocator.addFreeSpace(spaces[0]);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 0));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 1));
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 2));
+    
+    // merges at two orders
+    allocator.addFreeSpace(spaces[3]);
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 0));
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 1));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 2));
+    
+    Assert.assertEquals(0, allocator.allocate(256).getOffset());
+  }
+  
+  @Test
+  public void slicesWithTails() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    // 4096 + 2048 + 1024 + 64, and 50 bytes never used
+    int capacity = 4096 + 2048 + 1024 + 64 + 50;
+    conf.setMemorySlices(capacity);
+    conf.setBuddyMinBlock(64);
+    
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(capacity));
+    
+    BuddySpaceAllocator allocator = new BuddySpaceAllocator(conf, 1, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, capacity);
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 6));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 5));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 4));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 0));
+    
+    MemorySpace[] spaces = new MemorySpace[(capacity - 50) / 64];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = allocator.allocate(64);
+      Assert.assertTrue(spaces[i].getOffset() + 64 <= capacity - 50);
+    }
+    
+    try {
+      allocator.allocate(1);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    for (int i = spaces.length - 1; i >= 0; i -= 2) {
+      allocator.addFreeSpace(spaces[i]);
+    }
+    for (int i = spaces.length - 2; i >= 0; i -= 2) {
+      allocator.addFreeSpace(spaces[i]);
+    }
+    
+    // tail blocks never merge into a block beyond slice
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 6));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 5));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 4));
+    Assert.assertEquals(1, allocator.getFreeBlocks(0, 0));
+    Assert.assertEquals(0, allocator.getFreeBlocks(0, 1));
+    
+    try {
+      allocator.allocate(8192);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+  }
+
+  /**
+   * Slices are carved into min blocks, then buddies are released by 
+   * different threads at the same time, so merges of each order race with 
+   * each other up to whole slice.
+   */
+  @Test
+  public void concurrentCascadedMerge() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setMemorySlices(64 << 10);
+    conf.setBuddyMinBlock(64);
+    
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(64 << 10));
+    buffers.put(1, ByteBuffer.allocateDirect(64 << 10));
+    
+    final BuddySpaceAllocator allocator = new BuddySpaceAllocator(conf, 2, new PhysicalMemoryManager(buffers));
+    allocator.addSlice(0, 64 << 10);
+    allocator.addSlice(1, 64 << 10);
+    
+    final int threads = 4;
+    final ConcurrentAllocation allocation = new ConcurrentAllocation(allocator);
+    allocation.run(threads, new ConcurrentAllocation.Worker() {
+      public void run(int thread) throws Exception {
+        for (int round = 0; round < 50; round++) {
+          try {
+            while (true) {
+              allocation.take(64);
+            }
+          } catch (AllocateFailedException e) {
+            // all blocks are split down to min block
+          }
+          allocation.await();
+          
+          // neighbours in address order are released by other threads
+          List<MemorySpace> spaces = allocation.heldSpaces();
+          Assert.assertEquals(2 * (64 << 10) / 64, spaces.size());
+          allocation.await();
+          
+          for (int i = thread; i < spaces.size(); i += threads) {
+            allocation.giveBack(spaces.get(i));
+          }
+          allocation.await();
+          
+          for (int directId = 0; directId < 2; directId++) {
+            for (int order = 0; order < 10; order++) {
+              Assert.assertEquals(0, allocator.getFreeBlocks(directId, order));
+            }
+            Assert.assertEquals(1, allocator.getFreeBlocks(directId, 10));
+          }
+          allocation.await();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,187 @@
+package com.demo.hulukv.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Throughput of concurrent readers and writers at same direct buffer.
+ * Runs only with -Dhulu.test.perf=true, each case takes seconds.
+ *
+ * @version 1.0
+ */
+public class TestConcurrentPerf {
+  
+  private static final int DURATION_MS = 1000;
+  
+  /** Failures of all workers, checked after each run */
+  private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+  
+  /**
+   * Readers at separate regions of one slice should scale with threads
+   */
+  @Test
+  public void multipleThreadsReadScaling() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("hulu.test.perf"));
+    
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(64, DataUnit.MB);
+    conf.setMemorySlices(64 << 20);
+    
+    DirectMemoryCache cache = null;
+    try {
+      cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    List<Pointer> pointers = new ArrayList<Pointer>();
+    byte[] data = new byte[1024];
+    for (int i = 0; i < 10000; i++) {
+      data[0] = (byte) i;
+      pointers.add(cache.store(data));
+    }
+    
+    for (int threads = 1; threads <= 8; threads <<= 1) {
+      long ops = run(cache, pointers, threads, false);
+      System.out.println("Read  threads:" + threads + ", " + (ops * 1000 / DURATION_MS) + " ops/sec");
+    }
+    
+    cache.close();
+  }
+  
+  /**
+   * Store and release in parallel at one slice
+   */
+  @Test
+  public void multipleThreadsStoreScaling() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("hulu.test.perf"));
+    
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(64, DataUnit.MB);
+    conf.setMemorySlices(64 << 20);
+    
+    DirectMemoryCache cache = null;
+    try {
+      cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    for (int threads = 1; threads <= 8; threads <<= 1) {
+      long ops = run(cache, null, threads, true);
+      System.out.println("Store threads:" + threads + ", " + (ops * 1000 / DURATION_MS) + " ops/sec");
+    }
+    
+    Assert.assertEquals(0, cache.size());
+    cache.close();
+  }
+  
+  private long run(DirectMemoryCache cache, List<Pointer> pointers,
+                   int threads, boolean isStore) throws InterruptedException {
+    AtomicLong ops = new AtomicLong();
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    
+    long deadline = System.currentTimeMillis() + DURATION_MS;
+    for (int i = 0; i < threads; i++) {
+      Worker worker = isStore ? new Storer(cache, ops, start, done, deadline)
+                              : new Reader(cache, ops, start, done, deadline, pointers, i);
+      worker.start();
+    }
+    
+    start.countDown();
+    done.await();
+    
+    Assert.assertTrue("Workers failed: " + failures, failures.isEmpty());
+    return ops.get();
+  }
+  
+  private abstract class Worker extends Thread {
+    
+    DirectMemoryCache cache;
+    AtomicLong ops;
+    CountDownLatch start;
+    CountDownLatch done;
+    long deadline;
+    
+    Worker(DirectMemoryCache cache, AtomicLong ops, CountDownLatch start,
+           CountDownLatch done, long deadline) {
+      this.cache = cache;
+      this.ops = ops;
+      this.start = start;
+      this.done = done;
+      this.deadline = deadline;
+      
+      this.setDaemon(true);
+    }
+    
+    public void run() {
+      try {
+        start.await();
+        
+        long count = 0;
+        while (System.currentTimeMillis() < deadline) {
+          for (int i = 0; i < 100; i++) {
+            operate();
+          }
+          count += 100;
+        }
+        
+        ops.addAndGet(count);
+      } catch (Throwable e) {
+        failures.add(e);
+      } finally {
+        done.countDown();
+      }
+    }
+    
+    abstract void operate() throws Exception;
+  }
+  
+  private class Reader extends Worker {
+    
+    List<Pointer> pointers;
+    byte[] dst = new byte[1024];
+    int next;
+    
+    Reader(DirectMemoryCache cache, AtomicLong ops, CountDownLatch start,
+           CountDownLatch done, long deadline, List<Pointer> pointers, int seed) {
+      super(cache, ops, start, done, deadline);
+      
+      this.pointers = pointers;
+      this.next = seed * 997;
+    }
+    
+    void operate() {
+      next = (next + 1) % pointers.size();
+      cache.getData(pointers.get(next), dst, 0);
+      
+      Assert.assertEquals((byte) next, dst[0]);
+    }
+  }
+  
+  private class Storer extends Worker {
+    
+    byte[] data = new byte[230];
+    
+    Storer(DirectMemoryCache cache, AtomicLong ops, CountDownLatch start,
+           CountDownLatch done, long deadline) {
+      super(cache, ops, start, done, deadline);
+    }
+    
+    void operate() throws Exception {
+      cache.release(cache.store(data));
+    }
+  }
+}
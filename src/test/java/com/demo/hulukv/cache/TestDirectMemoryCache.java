@@ -1,9 +1,14 @@
 package com.demo.hulukv.cache;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import junit.framework.Assert;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import com.demo.hulukv.cache.AllocateFailedException;
@@ -149,6 +154,977 @@ public class TestDirectMemoryCache {
     }
   }
   
+  @Test
+  public void getDataIntoCallerBuffer() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    DirectMemoryCache cache = null;
+    try {
+       cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    Pointer pointer = null;
+    try {
+      pointer = cache.store("haha".getBytes());
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    ByteBuffer dst = ByteBuffer.allocateDirect(10);
+    dst.put((byte) 'x');
+    Assert.assertEquals(4, cache.getData(pointer, dst));
+    Assert.assertEquals(5, dst.position());
+    
+    dst.flip();
+    byte[] result = new byte[5];
+    dst.get(result);
+    Assert.assertEquals("xhaha", new String(result));
+    
+    byte[] array = new byte[6];
+    Assert.assertEquals(4, cache.getData(pointer, array, 2));
+    Assert.assertEquals("haha", new String(array, 2, 4));
+    
+    try {
+      cache.getData(pointer, new byte[5], 2);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+    
+    try {
+      cache.getData(pointer, ByteBuffer.allocate(3));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+    
+    cache.release(pointer);
+    
+    try {
+      cache.getData(pointer, array, 0);
+      Assert.fail();
+    } catch (DirectCacheException e) {
+    }
+  }
+  
+  @Test
+  public void readWaitingForClose() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    
+    final DirectMemoryCache cache = new DirectMemoryCache(conf);
+    final Pointer pointer = cache.store("haha".getBytes());
+    
+    final ReentrantReadWriteLock lock = cache.getSliceLock(0);
+    
+    // arrangement holds slice while reader and closing are queued in order
+    lock.writeLock().lock();
+    
+    final Throwable[] failure = new Throwable[1];
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          cache.getData(pointer);
+        } catch (Throwable e) {
+          failure[0] = e;
+        }
+      }
+    };
+    reader.start();
+    while (lock.getQueueLength() < 1) {
+      Thread.sleep(1);
+    }
+    
+    Thread closer = new Thread() {
+      public void run() {
+        try {
+          cache.close();
+        } catch (IOException e) {
+        }
+      }
+    };
+    closer.start();
+    while (lock.getQueueLength() < 2) {
+      Thread.sleep(1);
+    }
+    
+    lock.writeLock().unlock();
+    reader.join();
+    closer.join();
+    
+    Assert.assertTrue(String.valueOf(failure[0]), failure[0] instanceof IllegalStateException);
+  }
+  
+  @Test
+  public void storeFromByteBuffers() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    DirectMemoryCache cache = null;
+    try {
+       cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    ByteBuffer src = ByteBuffer.allocateDirect(10);
+    src.put("xxhaha".getBytes());
+    src.flip();
+    src.position(2);
+    
+    ByteBuffer head = ByteBuffer.wrap("hu".getBytes());
+    ByteBuffer tail = ByteBuffer.allocateDirect(2);
+    tail.put("lu".getBytes());
+    tail.flip();
+    
+    Pointer single = null;
+    Pointer gathered = null;
+    try {
+      single = cache.store(src);
+      gathered = cache.store(head, tail);
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    Assert.assertFalse(src.hasRemaining());
+    Assert.assertFalse(head.hasRemaining());
+    Assert.assertFalse(tail.hasRemaining());
+    
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals("haha", new String(cache.getData(single)));
+    Assert.assertEquals("hulu", new String(cache.getData(gathered)));
+    
+    try {
+      cache.store(ByteBuffer.allocate(0));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+  }
+  
+  @Test
+  public void compactPointerTable() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    conf.setCompactPointerTable(true);
+    conf.setEnablePhysicalArrangment(true);
+    DirectMemoryCache cache = null;
+    try {
+       cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    Pointer[] pointers = new Pointer[100];
+    try {
+      for (int i = 0; i < pointers.length; i++) {
+        pointers[i] = cache.store(("data-" + i).getBytes());
+      }
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    cache.arrangeMemory(0);
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+    }
+    
+    try {
+      cache.getData(pointers[0]);
+      Assert.fail();
+    } catch (DirectCacheException e) {
+    }
+    
+    Assert.assertEquals(50, cache.size());
+    
+    try {
+      for (int i = 0; i < pointers.length; i += 2) {
+        pointers[i] = cache.store(("next-" + i).getBytes());
+      }
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    for (int i = 0; i < pointers.length; i++) {
+      String expect = (i % 2 == 0 ? "next-" : "data-") + i;
+      Assert.assertEquals(expect, new String(cache.getData(pointers[i])));
+    }
+  }
+  
+  @Test
+  public void slidingArrangement() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    conf.setEnablePhysicalArrangment(true);
+    conf.setSlidingArrangement(true);
+    conf.setArrangementPauseLimit(1);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[100];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(("data-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    cache.arrangeMemory(0);
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      pointers[i] = cache.store(("next-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i++) {
+      String expect = (i % 2 == 0 ? "next-" : "data-") + i;
+      Assert.assertEquals(expect, new String(cache.getData(pointers[i])));
+    }
+    
+    cache.close();
+  }
+  
+  @Test
+  public void parallelArrangement() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(20000);
+    conf.setMemorySlices(10000);
+    conf.setEnablePhysicalArrangment(true);
+    conf.setArrangementConcurrency(2);
+    conf.setArrangementThreadInterval(60000);
+    
+    final DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[200];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(String.format("data-%095d", i).getBytes());
+    }
+    
+    // largest free space of memory#1 is longer, memory#0 reclaims more
+    int[] stored = new int[2];
+    for (int i = 0; i < pointers.length; i++) {
+      int directId = pointers[i].getDirectMemoryId();
+      int keep = directId == 0 ? 10 : 20;
+      
+      if (stored[directId]++ % keep != 0) {
+        cache.release(pointers[i]);
+        pointers[i] = null;
+      }
+    }
+    
+    // free spaces still hold every request
+    Assert.assertEquals(Arrays.asList(), 
+        new PhysicalMemoryArrangementThread(cache, 2, 1).pickUpDirectsToArrange());
+    
+    try {
+      cache.store(new byte[5000]);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    Assert.assertEquals(Arrays.asList(0), 
+        new PhysicalMemoryArrangementThread(cache, 2, 1).pickUpDirectsToArrange());
+    Assert.assertEquals(Arrays.asList(0, 1), 
+        new PhysicalMemoryArrangementThread(cache, 2, 2).pickUpDirectsToArrange());
+    
+    Thread[] arrangements = new Thread[2];
+    for (int i = 0; i < arrangements.length; i++) {
+      final int directId = i;
+      arrangements[i] = new Thread() {
+        public void run() {
+          cache.arrangeMemory(directId);
+        }
+      };
+      arrangements[i].start();
+    }
+    
+    for (Thread arrangement : arrangements) {
+      arrangement.join();
+    }
+    
+    for (int i = 0; i < pointers.length; i++) {
+      if (pointers[i] != null) {
+        Assert.assertEquals(String.format("data-%095d", i), new String(cache.getData(pointers[i])));
+      }
+    }
+    
+    cache.store(new byte[9000]);
+    cache.store(new byte[9000]);
+    
+    cache.close();
+  }
+  
+  @Test
+  public void mergeOnFailedAllocation() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(10000);
+    conf.setMemorySlices(10000);
+    conf.setFragmentLimit(1000);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer first = cache.store(new byte[500]);
+    Pointer second = cache.store(new byte[9500]);
+    
+    // fragment and large space are not merged at releasing
+    cache.release(first);
+    cache.release(second);
+    
+    Pointer whole = cache.store(new byte[10000]);
+    Assert.assertEquals(0, whole.getOffset());
+    
+    cache.close();
+  }
+  
+  @Test
+  public void compactOnFailedAllocation() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(10000);
+    conf.setMemorySlices(10000);
+    conf.setEnablePhysicalArrangment(true);
+    conf.setSlidingArrangement(true);
+    conf.setArrangementThreadInterval(60000);
+    conf.setSyncArrangementLimit(4999);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[10];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(String.format("data-%0995d", i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    // 5000 bytes of datas are more than limit
+    try {
+      cache.store(new byte[5000]);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    conf.setSyncArrangementLimit(5000);
+    
+    Pointer large = cache.store(new byte[5000]);
+    Assert.assertEquals(5000, large.getOffset());
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals(String.format("data-%0995d", i), new String(cache.getData(pointers[i])));
+    }
+    
+    cache.close();
+  }
+  
+  @Test
+  public void elasticSlices() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(10000);
+    conf.setMemorySlices(10000);
+    conf.setMaxTotalMemory(30000);
+    conf.setArrangementThreadInterval(60000);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    PhysicalMemoryManager physicalManager = cache.getPhysicalMemoryManager();
+    
+    // grows up to maximum
+    Pointer[] pointers = new Pointer[30];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(String.format("data-%0995d", i).getBytes());
+    }
+    
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(10000, physicalManager.getCapacity(i));
+    }
+    
+    try {
+      cache.store(new byte[1000]);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    // one data is left at memory#2
+    for (int i = 3; i < pointers.length - 1; i++) {
+      cache.release(pointers[i]);
+    }
+    
+    cache.reclaimSlices();
+    Assert.assertEquals(0, physicalManager.getCapacity(1));
+    Assert.assertEquals(10000, physicalManager.getCapacity(2));
+    
+    // memory#2 is drained, new data goes into memory#0
+    cache.reclaimSlices();
+    Assert.assertEquals(10000, physicalManager.getCapacity(2));
+    
+    Pointer next = cache.store(new byte[1000]);
+    Assert.assertEquals(0, next.getDirectMemoryId());
+    
+    cache.reclaimSlices();
+    Assert.assertEquals(10000, physicalManager.getCapacity(2));
+    
+    cache.release(pointers[pointers.length - 1]);
+    cache.reclaimSlices();
+    Assert.assertEquals(0, physicalManager.getCapacity(2));
+    
+    // never shrinks below minimum
+    cache.reclaimSlices();
+    Assert.assertEquals(10000, physicalManager.getCapacity(0));
+    
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(String.format("data-%0995d", i), new String(cache.getData(pointers[i])));
+    }
+    
+    // slice is added again at free direct id
+    for (int i = 0; i < 7; i++) {
+      cache.store(new byte[1000]);
+    }
+    Assert.assertEquals(10000, physicalManager.getCapacity(1));
+    
+    cache.close();
+  }
+  
+  @Test
+  public void arrangeAtAllMemoryTypes() throws Exception {
+    for (MemoryType type : MemoryType.values()) {
+      for (boolean sliding : new boolean[] {false, true}) {
+        MemoryAllocateConf conf = new MemoryAllocateConf();
+        
+        conf.setTotalMemory(10000);
+        conf.setMemorySlices(10000);
+        conf.setEnablePhysicalArrangment(true);
+        conf.setSlidingArrangement(sliding);
+        conf.setArrangementThreadInterval(60000);
+        conf.setMemoryType(type);
+        
+        DirectMemoryCache cache = new DirectMemoryCache(conf);
+        
+        Pointer[] pointers = new Pointer[10];
+        for (int i = 0; i < pointers.length; i++) {
+          pointers[i] = cache.store(String.format("data-%0995d", i).getBytes());
+        }
+        
+        for (int i = 0; i < pointers.length; i += 2) {
+          cache.release(pointers[i]);
+        }
+        
+        Assert.assertTrue(type.name(), cache.arrangeMemory(0));
+        
+        Pointer large = cache.store(new byte[5000]);
+        Assert.assertEquals(type.name(), 5000, large.getOffset());
+        
+        for (int i = 1; i < pointers.length; i += 2) {
+          Assert.assertEquals(type.name(), String.format("data-%0995d", i), 
+              new String(cache.getData(pointers[i])));
+        }
+        
+        cache.close();
+      }
+    }
+  }
+  
+  @Test
+  public void sliceBeyondIntNeedsNative() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(3L << 30);
+    conf.setMemorySlices(3L << 30);
+    conf.setLazySlices(true);
+    
+    for (MemoryType type : new MemoryType[] {MemoryType.HEAP, MemoryType.DIRECT, MemoryType.MAPPED}) {
+      conf.setMemoryType(type);
+      try {
+        new DirectMemoryCache(conf);
+        Assert.fail(type.name());
+      } catch (IllegalArgumentException e) {
+      }
+    }
+    
+    conf.setMemoryType(MemoryType.NATIVE);
+    conf.setAllocatorType(AllocatorType.OFF_HEAP_FREE_LIST);
+    try {
+      new DirectMemoryCache(conf);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+  
+  /**
+   * Needs more than 3GB memory, runs only with -Dhulu.test.largeMemory=true
+   */
+  @Test
+  public void nativeSliceBeyondInt() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("hulu.test.largeMemory"));
+    
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(3L << 30);
+    conf.setMemorySlices(3L << 30);
+    conf.setMemoryType(MemoryType.NATIVE);
+    conf.setEnablePhysicalArrangment(true);
+    conf.setSlidingArrangement(true);
+    conf.setArrangementThreadInterval(60000);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    byte[] data = new byte[1 << 20];
+    Pointer[] pointers = new Pointer[2100];
+    for (int i = 0; i < pointers.length; i++) {
+      Arrays.fill(data, 0, 4, (byte) i);
+      pointers[i] = cache.store(data);
+    }
+    
+    Pointer last = pointers[pointers.length - 1];
+    Assert.assertTrue(last.getOffset() > Integer.MAX_VALUE);
+    Assert.assertEquals((byte) last.getIndex(), cache.getData(last)[0]);
+    
+    for (int i = 0; i < pointers.length - 10; i++) {
+      cache.release(pointers[i]);
+    }
+    
+    // datas beyond 2GB slide down to start of slice
+    Assert.assertTrue(cache.arrangeMemory(0));
+    for (int i = pointers.length - 10; i < pointers.length; i++) {
+      Assert.assertEquals((byte) i, cache.getData(pointers[i])[3]);
+    }
+    
+    Assert.assertEquals(10L << 20, cache.store(data).getOffset());
+    
+    cache.close();
+  }
+  
+  @Test
+  public void cleanDirectBuffer() throws Exception {
+    DirectUtils.clean(ByteBuffer.allocateDirect(1 << 20));
+  }
+  
+  @Test
+  public void lazySlices() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(30000);
+    conf.setMemorySlices(10000);
+    conf.setLazySlices(true);
+    conf.setArrangementThreadInterval(60000);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    PhysicalMemoryManager physicalManager = cache.getPhysicalMemoryManager();
+    
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(10000, physicalManager.getCapacity(i));
+      Assert.assertFalse(physicalManager.isMaterialized(i));
+    }
+    
+    Pointer[] pointers = new Pointer[15];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(String.format("data-%0995d", i).getBytes());
+    }
+    
+    // allocated slices are filled before next one is allocated
+    int materialized = 0;
+    for (int i = 0; i < 3; i++) {
+      materialized += physicalManager.isMaterialized(i) ? 1 : 0;
+    }
+    Assert.assertEquals(2, materialized);
+    
+    for (int i = 0; i < pointers.length; i++) {
+      Assert.assertEquals(String.format("data-%0995d", i), new String(cache.getData(pointers[i])));
+    }
+    
+    cache.close();
+  }
+  
+  @Test
+  public void lazySliceFailedToAllocate() throws Exception {
+    File directory = new File(System.getProperty("java.io.tmpdir"), "hulu-lazy-" + System.nanoTime());
+    Assert.assertTrue(directory.mkdirs());
+    
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(15000);
+    conf.setMemorySlices(10000);
+    conf.setLazySlices(true);
+    conf.setMemoryType(MemoryType.MAPPED);
+    conf.setMappedDirectory(directory.getPath());
+    conf.setArrangementThreadInterval(60000);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    // only memory#0 fits first data, it's filled up after that
+    Pointer[] pointers = new Pointer[5];
+    pointers[0] = cache.store(new byte[6000]);
+    for (int i = 1; i < pointers.length; i++) {
+      pointers[i] = cache.store(new byte[1000]);
+    }
+    for (Pointer pointer : pointers) {
+      Assert.assertEquals(0, pointer.getDirectMemoryId());
+    }
+    
+    // mapping stays valid, but memory#1 cannot be mapped any more
+    for (File file : directory.listFiles()) {
+      Assert.assertTrue(file.delete());
+    }
+    Assert.assertTrue(directory.delete());
+    
+    try {
+      cache.store(new byte[1000]);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    Assert.assertFalse(cache.getPhysicalMemoryManager().isMaterialized(1));
+    
+    for (Pointer pointer : pointers) {
+      cache.release(pointer);
+    }
+    
+    // memory#1 fits better but it's still behind allocated memory#0
+    Pointer pointer = cache.store(new byte[1000]);
+    Assert.assertEquals(0, pointer.getDirectMemoryId());
+    
+    cache.close();
+  }
+  
+  @Test
+  public void preTouchSlices() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(40000);
+    conf.setMemorySlices(10000);
+    conf.setPreTouchThreads(2);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(cache.getPhysicalMemoryManager().isMaterialized(i));
+    }
+    cache.close();
+    
+    // allocated by background thread
+    conf.setLazySlices(true);
+    cache = new DirectMemoryCache(conf);
+    
+    PhysicalMemoryManager physicalManager = cache.getPhysicalMemoryManager();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!physicalManager.isMaterialized(3) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(physicalManager.isMaterialized(i));
+    }
+    
+    Pointer pointer = cache.store("haha".getBytes());
+    Assert.assertEquals("haha", new String(cache.getData(pointer)));
+    
+    cache.close();
+  }
+  
+  @Test
+  public void storeAndReleaseHandles() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    conf.setCapacity(1);
+    conf.setCompactPointerTable(true);
+    DirectMemoryCache cache = null;
+    try {
+       cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    long first = 0L;
+    long second = 0L;
+    try {
+      first = cache.storeHandle("haha".getBytes());
+      Assert.assertEquals("haha", new String(cache.getData(first)));
+      
+      byte[] dst = new byte[4];
+      Assert.assertEquals(4, cache.getData(first, dst, 0));
+      Assert.assertEquals("haha", new String(dst));
+      
+      cache.release(first);
+      
+      second = cache.storeHandle(ByteBuffer.wrap("hulu".getBytes()));
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    Assert.assertEquals(PointerHandle.index(first), PointerHandle.index(second));
+    Assert.assertTrue(PointerHandle.generation(first) != PointerHandle.generation(second));
+    
+    try {
+      cache.getData(first);
+      Assert.fail();
+    } catch (DirectCacheException e) {
+    }
+    
+    try {
+      cache.release(first);
+      Assert.fail();
+    } catch (DirectCacheException e) {
+    }
+    
+    ByteBuffer dst = ByteBuffer.allocate(4);
+    Assert.assertEquals(4, cache.getData(second, dst));
+    Assert.assertEquals("hulu", new String(dst.array()));
+    
+    cache.release(second);
+    Assert.assertEquals(0, cache.size());
+  }
+  
+  @Test
+  public void pointerAsHandle() {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(100000);
+    conf.setMemorySlices(10 << 20);
+    DirectMemoryCache cache = null;
+    try {
+       cache = new DirectMemoryCache(conf);
+    } catch (IOException e) {
+      Assert.fail();
+    }
+    
+    Pointer pointer = null;
+    try {
+      pointer = cache.store("haha".getBytes());
+      cache.release(pointer);
+      pointer = cache.store("hulu".getBytes());
+    } catch (AllocateFailedException e) {
+      Assert.fail();
+    }
+    
+    Assert.assertEquals(2, pointer.getTimestamp());
+    Assert.assertEquals("hulu", new String(cache.getData(pointer.toHandle())));
+    
+    cache.release(pointer.toHandle());
+    Assert.assertEquals(0, cache.size());
+  }
+  
+  @Test
+  public void stripedAllocation() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(4 << 16);
+    conf.setMemorySlices(1 << 16);
+    conf.setStripedAllocation(true);
+    
+    final DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    final Pointer[][] pointers = new Pointer[4][60];
+    Thread[] storers = new Thread[4];
+    for (int t = 0; t < storers.length; t++) {
+      final int id = t;
+      storers[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < pointers[id].length; i++) {
+            byte[] data = new byte[1024];
+            data[0] = (byte) id;
+            data[1023] = (byte) i;
+            
+            try {
+              pointers[id][i] = cache.store(data);
+            } catch (AllocateFailedException e) {
+              return;
+            }
+          }
+        }
+      };
+      storers[t].start();
+    }
+    
+    for (Thread storer : storers) {
+      storer.join();
+    }
+    
+    Assert.assertEquals(240, cache.size());
+    for (int t = 0; t < pointers.length; t++) {
+      for (int i = 0; i < pointers[t].length; i++) {
+        byte[] data = cache.getData(pointers[t][i]);
+        Assert.assertEquals((byte) t, data[0]);
+        Assert.assertEquals((byte) i, data[1023]);
+      }
+    }
+    
+    // one thread takes spaces from other buffers once its own is exhausted
+    Pointer[] remains = new Pointer[16];
+    for (int i = 0; i < remains.length; i++) {
+      remains[i] = cache.store(new byte[1024]);
+    }
+    
+    try {
+      cache.store(new byte[1024]);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    for (int t = 0; t < pointers.length; t++) {
+      for (int i = 0; i < pointers[t].length; i++) {
+        cache.release(pointers[t][i]);
+      }
+    }
+    
+    for (Pointer remain : remains) {
+      cache.release(remain);
+    }
+    
+    Assert.assertEquals(0, cache.size());
+    cache.close();
+  }
+  
+  @Test
+  public void slabAllocator() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(4 << 20);
+    conf.setMemorySlices(1 << 20);
+    conf.setAllocatorType(AllocatorType.SLAB);
+    conf.setSlabPageSize(64 << 10);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[1000];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(("data-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+    }
+    
+    Assert.assertEquals(500, cache.size());
+    System.out.println(cache.status());
+    cache.close();
+    
+    conf.setEnablePhysicalArrangment(true);
+    try {
+      new DirectMemoryCache(conf);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+  
+  @Test
+  public void buddyAllocator() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(2 << 20);
+    conf.setMemorySlices(1 << 20);
+    conf.setAllocatorType(AllocatorType.BUDDY);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[1000];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(("data-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+      cache.release(pointers[i]);
+    }
+    
+    Pointer whole = cache.store(new byte[1 << 20]);
+    Assert.assertEquals(0, whole.getOffset());
+    
+    System.out.println(cache.status());
+    cache.close();
+  }
+  
+  @Test
+  public void boundaryTagAllocator() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(2 << 20);
+    conf.setMemorySlices(1 << 20);
+    conf.setAllocatorType(AllocatorType.BOUNDARY_TAG);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[1000];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(("data-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+      cache.release(pointers[i]);
+    }
+    
+    cache.store(new byte[(1 << 20) - 8]);
+    cache.store(new byte[(1 << 20) - 8]);
+    
+    System.out.println(cache.status());
+    cache.close();
+  }
+  
+  @Test
+  public void offHeapFreeList() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(2 << 20);
+    conf.setMemorySlices(1 << 20);
+    conf.setCapacity(10000);
+    conf.setAllocatorType(AllocatorType.OFF_HEAP_FREE_LIST);
+    
+    DirectMemoryCache cache = new DirectMemoryCache(conf);
+    
+    Pointer[] pointers = new Pointer[1000];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = cache.store(("data-" + i).getBytes());
+    }
+    
+    for (int i = 0; i < pointers.length; i += 2) {
+      cache.release(pointers[i]);
+    }
+    
+    for (int i = 1; i < pointers.length; i += 2) {
+      Assert.assertEquals("data-" + i, new String(cache.getData(pointers[i])));
+      cache.release(pointers[i]);
+    }
+    
+    cache.store(new byte[1 << 20]);
+    cache.store(new byte[1 << 20]);
+    
+    System.out.println(cache.status());
+    cache.close();
+  }
+  
   @Test
   public void getStatus() {
     
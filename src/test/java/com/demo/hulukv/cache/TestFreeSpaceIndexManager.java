@@ -0,0 +1,210 @@
+package com.demo.hulukv.cache;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Allocation order of free space index
+ *
+ * @version 1.0
+ */
+public class TestFreeSpaceIndexManager {
+  
+  /**
+   * Suitable space that located behind smaller spaces should be found,
+   * smallest suitable space is preferred.
+   */
+  @Test
+  public void bestFit() throws Exception {
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(new MemoryAllocateConf(), 1);
+    manager.addFreeSpace(new MemorySpace(0, 0, 1000));
+    
+    MemorySpace[] spaces = new MemorySpace[10];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = manager.allocate(100);
+      manager.commit(spaces[i]);
+      
+      Assert.assertEquals(i * 100, spaces[i].getOffset());
+    }
+    
+    // holes : [100, 200), [300, 600), [700, 900)
+    int[] released = {1, 3, 4, 5, 7, 8};
+    for (int i : released) {
+      manager.addFreeSpace(spaces[i]);
+    }
+    
+    assertAllocated(manager, 200, 700);
+    assertAllocated(manager, 100, 100);
+    assertAllocated(manager, 300, 300);
+    
+    try {
+      manager.allocate(1);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+  }
+  
+  /**
+   * Smallest suitable space is preferred among all buffers, not only 
+   * inside first buffer that has one
+   */
+  @Test
+  public void bestFitAcrossBuffers() throws Exception {
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(new MemoryAllocateConf(), 3);
+    manager.addSlice(0, 5000);
+    manager.addSlice(1, 2000);
+    manager.addSlice(2, 3000);
+    
+    for (int round = 0; round < 10; round++) {
+      MemorySpace space = manager.allocate(1500);
+      Assert.assertEquals(1, space.getDirectByteId());
+      
+      manager.commit(space);
+      manager.addFreeSpace(space);
+    }
+    
+    MemorySpace space = manager.allocate(2500);
+    manager.commit(space);
+    Assert.assertEquals(2, space.getDirectByteId());
+  }
+  
+  /**
+   * Released neighbours are merged, so whole buffer can be given out again
+   */
+  @Test
+  public void mergeReleasedSpaces() throws Exception {
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(new MemoryAllocateConf(), 1);
+    manager.addFreeSpace(new MemorySpace(0, 0, 1000));
+    
+    MemorySpace[] spaces = new MemorySpace[10];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = manager.allocate(100);
+      manager.commit(spaces[i]);
+    }
+    
+    for (int i = 0; i < spaces.length; i += 2) {
+      manager.addFreeSpace(spaces[i]);
+    }
+    for (int i = 1; i < spaces.length; i += 2) {
+      manager.addFreeSpace(spaces[i]);
+    }
+    
+    Assert.assertEquals("1,1000", manager.getStat(0));
+    assertAllocated(manager, 1000, 0);
+  }
+  
+  /**
+   * Histogram and largest space follow each change of free spaces, 
+   * failures are counted for buffers that have enough free bytes only
+   */
+  @Test
+  public void fragmentationStats() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    conf.setFragmentLimit(100);
+    
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(conf, 2);
+    manager.addSlice(0, 1000);
+    manager.addSlice(1, 100);
+    
+    FragmentationStats stats = manager.getFragmentation(0);
+    Assert.assertEquals(1000, stats.getLargestFree());
+    Assert.assertEquals(1, stats.getHistogramNum(9));
+    
+    MemorySpace[] spaces = new MemorySpace[11];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = manager.allocate(100);
+      manager.commit(spaces[i]);
+    }
+    
+    // 5 fragments of 50 bytes at first buffer, none at second one
+    for (MemorySpace space : spaces) {
+      if (space.getDirectByteId() == 0 && space.getOffset() % 200 == 0) {
+        manager.addFreeSpace(new MemorySpace(0, space.getOffset(), space.getOffset() + 50));
+      }
+    }
+    
+    stats = manager.getFragmentation(0);
+    Assert.assertEquals(50, stats.getLargestFree());
+    Assert.assertEquals(0, stats.getHistogramNum(9));
+    Assert.assertEquals(5, stats.getHistogramNum(5));
+    Assert.assertEquals(250, stats.getFreeBytes());
+    Assert.assertEquals(250, stats.getFragmentBytes());
+    Assert.assertEquals(0, manager.getFragmentation(1).getFreeBytes());
+    
+    try {
+      manager.allocate(60);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    Assert.assertEquals(1, manager.getFragmentation(0).getAllocateFailures());
+    Assert.assertEquals(0, manager.getFragmentation(1).getAllocateFailures());
+    
+    // largest one is replaced by next one once it's taken
+    manager.addFreeSpace(new MemorySpace(1, 0, 80));
+    Assert.assertEquals(80, manager.getFragmentation(1).getLargestFree());
+    manager.commit(manager.allocate(80));
+    Assert.assertEquals(0, manager.getFragmentation(1).getLargestFree());
+    Assert.assertEquals(0, manager.getFragmentation(1).getHistogramNum(6));
+  }
+  
+  /**
+   * Merging for failed allocation stops once there is space for it,
+   * longer fragments are merged first
+   */
+  @Test
+  public void mergeUntilSpaceFits() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    conf.setFragmentLimit(100);
+    
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(conf, 1);
+    
+    // large spaces with fragment after each one
+    manager.addFreeSpace(new MemorySpace(0, 0, 100));
+    manager.addFreeSpace(new MemorySpace(0, 100, 150));
+    manager.addFreeSpace(new MemorySpace(0, 300, 400));
+    manager.addFreeSpace(new MemorySpace(0, 400, 440));
+    manager.addFreeSpace(new MemorySpace(0, 600, 700));
+    manager.addFreeSpace(new MemorySpace(0, 700, 760));
+    
+    Assert.assertEquals(3, manager.getFragmentation(0).getFragmentNum());
+    Assert.assertEquals(0, manager.pickFallback(150));
+    
+    Assert.assertTrue(manager.mergeFragments(0, 150));
+    Assert.assertEquals(2, manager.getFragmentation(0).getFragmentNum());
+    Assert.assertEquals(160, manager.getFragmentation(0).getLargestFree());
+    
+    assertAllocated(manager, 160, 600);
+    
+    Assert.assertFalse(manager.mergeFragments(0, 200));
+    Assert.assertEquals(0, manager.getFragmentation(0).getFragmentNum());
+    Assert.assertEquals(-1, manager.pickFallback(1000));
+  }
+  
+  /**
+   * Waiting for writers of frozen buffer gives up once timeout elapses
+   */
+  @Test
+  public void awaitCommittedTimeout() throws Exception {
+    FreeSpaceIndexManager manager = new FreeSpaceIndexManager(new MemoryAllocateConf(), 1);
+    manager.addFreeSpace(new MemorySpace(0, 0, 1000));
+    
+    MemorySpace space = manager.allocate(100);
+    Assert.assertTrue(manager.freeze(0));
+    Assert.assertFalse(manager.awaitCommitted(0, 1000000L));
+    
+    manager.commit(space);
+    Assert.assertTrue(manager.awaitCommitted(0, 1000000L));
+    manager.unfreeze(0);
+  }
+  
+  private void assertAllocated(FreeSpaceIndexManager manager, int len, int expectOffset)
+      throws AllocateFailedException {
+    MemorySpace space = manager.allocate(len);
+    manager.commit(space);
+    
+    Assert.assertEquals(expectOffset, space.getOffset());
+    Assert.assertEquals(len, space.getSpaceLen());
+  }
+}
@@ -0,0 +1,91 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Same behaviours of all memory backends
+ *
+ * @version 1.0
+ */
+public class TestMemoryRegion {
+  
+  private MemoryRegionFactory factory(MemoryType type) {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    conf.setMemoryType(type);
+    
+    return new MemoryRegionFactory(conf);
+  }
+  
+  @Test
+  public void readAndWrite() {
+    for (MemoryType type : MemoryType.values()) {
+      MemoryRegion region = factory(type).allocate(1024);
+      try {
+        Assert.assertEquals(type.name(), 1024, region.capacity());
+        Assert.assertEquals(type.name(), 0, region.getInt(1020));
+        
+        region.putInt(1020, 7);
+        Assert.assertEquals(type.name(), 7, region.getInt(1020));
+        
+        region.write(10, "haha".getBytes(), 0, 4);
+        byte[] dst = new byte[6];
+        region.read(10, dst, 1, 4);
+        Assert.assertEquals(type.name(), "haha", new String(dst, 1, 4));
+        
+        ByteBuffer src = ByteBuffer.allocateDirect(6);
+        src.put("direct".getBytes()).flip();
+        region.write(100, src);
+        region.write(106, ByteBuffer.wrap("heap".getBytes()));
+        Assert.assertEquals(type.name(), 0, src.remaining());
+        
+        ByteBuffer read = ByteBuffer.allocate(12);
+        read.position(2);
+        region.read(100, 10, read);
+        Assert.assertEquals(type.name(), 12, read.position());
+        Assert.assertEquals(type.name(), "directheap", new String(read.array(), 2, 10));
+      } finally {
+        region.free();
+      }
+    }
+  }
+  
+  @Test
+  public void copy() {
+    byte[] data = new byte[200 << 10];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    
+    for (MemoryType type : MemoryType.values()) {
+      MemoryRegionFactory factory = factory(type);
+      MemoryRegion region = factory.allocate(1 << 20);
+      MemoryRegion spare = factory.allocate(1 << 20);
+      try {
+        region.write(1000, data, 0, data.length);
+        
+        region.copyTo(1000, spare, 0, data.length);
+        byte[] copied = new byte[data.length];
+        spare.read(0, copied, 0, copied.length);
+        Assert.assertTrue(type.name(), Arrays.equals(data, copied));
+        
+        // overlapped, target is behind source
+        region.copyTo(1000, region, 5000, data.length);
+        region.read(5000, copied, 0, copied.length);
+        Assert.assertTrue(type.name(), Arrays.equals(data, copied));
+        
+        // overlapped, slides down
+        region.copyTo(5000, region, 10, data.length);
+        region.read(10, copied, 0, copied.length);
+        Assert.assertTrue(type.name(), Arrays.equals(data, copied));
+      } finally {
+        region.free();
+        spare.free();
+      }
+    }
+  }
+}
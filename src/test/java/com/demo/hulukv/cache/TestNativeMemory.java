@@ -0,0 +1,115 @@
+package com.demo.hulukv.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Long addressed access of native memory
+ *
+ * @version 1.0
+ */
+public class TestNativeMemory {
+  
+  @Test
+  public void readAndWrite() {
+    NativeMemory memory = NativeMemory.allocate(1024);
+    try {
+      Assert.assertEquals(0L, memory.getLong(1016));
+      
+      memory.putInt(0, 7);
+      memory.putLong(1016, -1L);
+      Assert.assertEquals(7, memory.getInt(0));
+      Assert.assertEquals(-1L, memory.getLong(1016));
+      
+      memory.put(100, "haha".getBytes(), 0, 4);
+      byte[] dst = new byte[6];
+      memory.get(100, dst, 1, 4);
+      Assert.assertEquals("haha", new String(dst, 1, 4));
+      
+      memory.put(200, ByteBuffer.wrap("heap".getBytes()));
+      ByteBuffer direct = ByteBuffer.allocateDirect(8);
+      direct.put("direct".getBytes()).flip();
+      memory.put(300, direct);
+      Assert.assertEquals(0, direct.remaining());
+      
+      ByteBuffer heapDst = ByteBuffer.allocate(4);
+      memory.get(200, 4, heapDst);
+      Assert.assertEquals("heap", new String(heapDst.array()));
+      
+      ByteBuffer directDst = ByteBuffer.allocateDirect(10);
+      directDst.position(2);
+      memory.get(300, 6, directDst);
+      Assert.assertEquals(8, directDst.position());
+      
+      byte[] copied = new byte[6];
+      directDst.position(2);
+      directDst.get(copied);
+      Assert.assertEquals("direct", new String(copied));
+      
+      try {
+        memory.putLong(1020, 1L);
+        Assert.fail();
+      } catch (IndexOutOfBoundsException e) {
+      }
+    } finally {
+      memory.free();
+    }
+    
+    try {
+      memory.getInt(0);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+    }
+  }
+  
+  @Test
+  public void overlappedCopy() {
+    NativeMemory memory = NativeMemory.allocate(3 << 20);
+    try {
+      byte[] data = new byte[2 << 20];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) (i * 31);
+      }
+      memory.put(0, data, 0, data.length);
+      
+      // target is behind source
+      memory.copyTo(0, memory, 1 << 20, data.length);
+      byte[] moved = new byte[data.length];
+      memory.get(1 << 20, moved, 0, moved.length);
+      Assert.assertTrue(Arrays.equals(data, moved));
+      
+      // slides down
+      memory.copyTo(1 << 20, memory, 100, data.length);
+      memory.get(100, moved, 0, moved.length);
+      Assert.assertTrue(Arrays.equals(data, moved));
+    } finally {
+      memory.free();
+    }
+  }
+  
+  /**
+   * Needs more than 2GB memory, runs only with -Dhulu.test.largeMemory=true
+   */
+  @Test
+  public void beyondIntOffset() {
+    Assume.assumeTrue(Boolean.getBoolean("hulu.test.largeMemory"));
+    
+    long capacity = (1L << 31) + 4096;
+    NativeMemory memory = NativeMemory.allocate(capacity);
+    try {
+      long offset = capacity - 8;
+      memory.putLong(offset, 42L);
+      Assert.assertEquals(42L, memory.getLong(offset));
+      
+      memory.copyTo(offset, memory, 0, 8);
+      Assert.assertEquals(42L, memory.getLong(0));
+    } finally {
+      memory.free();
+    }
+  }
+}
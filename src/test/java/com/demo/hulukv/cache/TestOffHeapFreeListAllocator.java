@@ -0,0 +1,212 @@
+package com.demo.hulukv.cache;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Split, merge and record usage of off-heap free list
+ *
+ * @version 1.0
+ */
+public class TestOffHeapFreeListAllocator {
+  
+  @Test
+  public void mergeWithNeighbours() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(1024);
+    conf.setMemorySlices(1024);
+    conf.setCapacity(1000);
+    
+    OffHeapFreeListAllocator allocator = new OffHeapFreeListAllocator(conf, 1);
+    allocator.addSlice(0, 1024);
+    
+    MemorySpace first = allocator.allocate(100);
+    MemorySpace second = allocator.allocate(100);
+    MemorySpace third = allocator.allocate(100);
+    
+    Assert.assertEquals(0, first.getOffset());
+    Assert.assertEquals(100, second.getOffset());
+    Assert.assertEquals(200, third.getOffset());
+    Assert.assertEquals(1, allocator.getFreeSpaces(0));
+    
+    allocator.addFreeSpace(second);
+    Assert.assertEquals(2, allocator.getFreeSpaces(0));
+    
+    // merged with next one
+    allocator.addFreeSpace(first);
+    Assert.assertEquals(2, allocator.getFreeSpaces(0));
+    
+    // merged with both sides
+    allocator.addFreeSpace(third);
+    Assert.assertEquals(1, allocator.getFreeSpaces(0));
+    
+    MemorySpace whole = allocator.allocate(1024);
+    Assert.assertEquals(0, whole.getOffset());
+    
+    try {
+      allocator.allocate(1);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+  }
+  
+  @Test
+  public void reuseReleasedSpaces() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(64 << 10);
+    conf.setMemorySlices(64 << 10);
+    conf.setCapacity(1000);
+    
+    OffHeapFreeListAllocator allocator = new OffHeapFreeListAllocator(conf, 1);
+    allocator.addSlice(0, 64 << 10);
+    
+    MemorySpace[] spaces = new MemorySpace[500];
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < spaces.length; i++) {
+        spaces[i] = allocator.allocate(1 + (i * 31 + round) % 100);
+      }
+      
+      for (int i = 0; i < spaces.length; i += 2) {
+        allocator.addFreeSpace(spaces[i]);
+      }
+      for (int i = 1; i < spaces.length; i += 2) {
+        allocator.addFreeSpace(spaces[i]);
+      }
+      
+      Assert.assertEquals(1, allocator.getFreeSpaces(0));
+    }
+  }
+  
+  @Test
+  public void closeFreesMetadata() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(1024);
+    conf.setMemorySlices(1024);
+    conf.setCapacity(1000);
+    
+    OffHeapFreeListAllocator allocator = new OffHeapFreeListAllocator(conf, 1);
+    allocator.addSlice(0, 1024);
+    
+    MemorySpace space = allocator.allocate(100);
+    
+    allocator.close();
+    allocator.close();
+    
+    try {
+      allocator.allocate(1);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+
+    // metadata is never touched after closing
+    allocator.addFreeSpace(space);
+    allocator.getStatus();
+  }
+  
+  @Test
+  public void recordsExhaustedBeyondCapacity() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(1024);
+    conf.setMemorySlices(1024);
+    conf.setCapacity(3);
+    
+    OffHeapFreeListAllocator allocator = new OffHeapFreeListAllocator(conf, 1);
+    allocator.addSlice(0, 1024);
+    
+    MemorySpace[] spaces = new MemorySpace[7];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = allocator.allocate(10);
+    }
+
+    // most fragmented at capacity, each data is surrounded by holes
+    for (int i = 0; i < spaces.length; i += 2) {
+      allocator.addFreeSpace(spaces[i]);
+    }
+    Assert.assertEquals(4, allocator.getFreeSpaces(0));
+    
+    // one more data takes last spare record
+    MemorySpace fourth = allocator.allocate(20);
+    Assert.assertEquals(60, fourth.getOffset());
+    Assert.assertEquals(80, allocator.allocate(20).getOffset());
+    allocator.addFreeSpace(fourth);
+    Assert.assertEquals(5, allocator.getFreeSpaces(0));
+    
+    // hole of 20 bytes is too small for them
+    Assert.assertEquals(100, allocator.allocate(30).getOffset());
+    MemorySpace isolated = allocator.allocate(30);
+    allocator.allocate(30);
+    try {
+      allocator.addFreeSpace(isolated);
+      Assert.fail();
+    } catch (DirectCacheException e) {
+    }
+    Assert.assertEquals(5, allocator.getFreeSpaces(0));
+  }
+  
+  /**
+   * Record pool is sized to exactly what held spaces may fragment slices 
+   * into, so records released by merges are reused at once by other 
+   * threads. A leaked record runs pool dry, a record reused while still 
+   * linked hands out overlapping spaces.
+   */
+  @Test
+  public void concurrentRecordReuse() throws Exception {
+    final int threads = 4;
+    final int slots = 8;
+    
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setTotalMemory(128 << 10);
+    conf.setMemorySlices(64 << 10);
+    // every held space leaves at most one more hole beside holes at ends
+    conf.setCapacity(threads * slots);
+    
+    final OffHeapFreeListAllocator allocator = new OffHeapFreeListAllocator(conf, 2);
+    allocator.addSlice(0, 64 << 10);
+    allocator.addSlice(1, 64 << 10);
+    
+    final ConcurrentAllocation allocation = new ConcurrentAllocation(allocator);
+    allocation.run(threads, new ConcurrentAllocation.Worker() {
+      public void run(int thread) throws Exception {
+        Random random = new Random(thread);
+        MemorySpace[] held = new MemorySpace[slots];
+        
+        for (int i = 0; i < 20000; i++) {
+          int slot = random.nextInt(held.length);
+          if (held[slot] != null) {
+            allocation.giveBack(held[slot]);
+            held[slot] = null;
+          } else {
+            held[slot] = allocation.take(1 + random.nextInt(2048));
+          }
+        }
+        
+        for (MemorySpace space : held) {
+          if (space != null) {
+            allocation.giveBack(space);
+          }
+        }
+      }
+    });
+    
+    Assert.assertEquals(1, allocator.getFreeSpaces(0));
+    Assert.assertEquals(1, allocator.getFreeSpaces(1));
+    
+    // holes between spaces of first slice, its tail and whole second slice
+    MemorySpace[] spaces = new MemorySpace[2 * threads * slots];
+    for (int i = 0; i < spaces.length; i++) {
+      spaces[i] = allocation.take(16);
+    }
+    for (int i = 0; i < spaces.length; i += 2) {
+      allocation.giveBack(spaces[i]);
+    }
+    Assert.assertEquals(threads * slots + 2, allocator.getFreeSpaces(0) + allocator.getFreeSpaces(1));
+  }
+}
@@ -13,6 +13,7 @@ import com.demo.hulukv.cache.AllocateFailedException;
 import com.demo.hulukv.cache.DataUnit;
 import com.demo.hulukv.cache.DirectMemoryCache;
 import com.demo.hulukv.cache.MemoryAllocateConf;
+import com.demo.hulukv.cache.MemoryType;
 import com.demo.hulukv.cache.Pointer;
 
 /**
@@ -72,11 +73,18 @@ public class TestPerf {
    */
   @Test
   public void singleThreadAllocationAndReleaseAllSpace() {
+    for (MemoryType type : MemoryType.values()) {
+      allocationAndReleaseAllSpace(type);
+    }
+  }
+  
+  private void allocationAndReleaseAllSpace(MemoryType type) {
     MemoryAllocateConf conf = new MemoryAllocateConf();
     
     conf.setTotalMemory(200, DataUnit.MB);
     conf.setMemorySlices(100 << 20);
     conf.setArrangementThreadInterval(3000);
+    conf.setMemoryType(type);
 //    conf.setCapacity(10000);
     
     DirectMemoryCache cache = null;
@@ -100,9 +108,13 @@ public class TestPerf {
     
     long t2 = System.currentTimeMillis();
     long cost = t2 - start;
-    System.out.println("Allocation cost:" + cost);
+    System.out.println(type + " allocation cost:" + cost);
     
-    new Checker(cache).start();
+    long t3 = System.currentTimeMillis();
+    for (Pointer p : pointers) {
+      Assert.assertEquals(buf.length, cache.getData(p).length);
+    }
+    System.out.println(type + " read cost:" + (System.currentTimeMillis() - t3));
     
 //    for (int i = pointers.size() - 1; i >= 0 ; i--) {
 //      cache.release(pointers.get(i));
@@ -112,16 +124,20 @@ public class TestPerf {
 //    cache.release(pointers.get(i));
 //  }
     
+    long t4 = System.currentTimeMillis();
     Collections.shuffle(pointers);
     for (Pointer p : pointers) {
       cache.release(p);
     }
     
-    long cost2 = System.currentTimeMillis() - t2;
-    System.out.println("Release all. " + cost2);
+    long cost2 = System.currentTimeMillis() - t4;
+    System.out.println(type + " release all. " + cost2);
+    
     try {
-      Thread.sleep(10000);
-    } catch (InterruptedException e) {}
+      cache.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
   
  
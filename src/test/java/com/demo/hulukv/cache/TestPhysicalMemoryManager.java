@@ -2,9 +2,16 @@ package com.demo.hulukv.cache;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
 
 import org.junit.Test;
 
@@ -51,5 +58,412 @@ public class TestPhysicalMemoryManager {
     Pointer[] pointers = new Pointer[allPointers.size()];
     manager.memoryCopyFor(0, allPointers.toArray(pointers));
   }
+  
+  @Test
+  public void copyContiguousRuns() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 20));
+    buffers.put(-1, ByteBuffer.allocateDirect(1 << 20));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(1000);
+    
+    // adjacent datas with a gap after each 100 datas
+    int offset = 0;
+    for (int i = 0; i < 1000; i++) {
+      byte[] data = ("data-" + i).getBytes();
+      
+      manager.writeData(0, offset, data);
+      table.put(i, 0, offset, data.length);
+      
+      offset += data.length + (i % 100 == 99 ? 10 : 0);
+    }
+    
+    long used = manager.memoryCopyFor(0, table);
+    Assert.assertEquals(offset - 100, used);
+    
+    int expectOffset = 0;
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(expectOffset, table.getOffset(i));
+      Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), table.getLen(i))));
+      
+      expectOffset += table.getLen(i);
+    }
+  }
+  
+  /**
+   * Slots are handed out in scrambled order after churn, adjacent datas
+   * are still copied as one run
+   */
+  @Test
+  public void copyRunsInAddressOrder() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 20));
+    buffers.put(-1, ByteBuffer.allocateDirect(1 << 20));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(1000);
+    
+    // slot of each location is taken from a released stack of slots
+    List<Integer> slots = new ArrayList<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      slots.add(i);
+    }
+    Collections.shuffle(slots, new Random(0));
+    
+    int offset = 0;
+    for (int k = 0; k < 1000; k++) {
+      int i = slots.get(k);
+      byte[] data = ("data-" + i).getBytes();
+      
+      manager.writeData(0, offset, data);
+      table.put(i, 0, offset, data.length);
+      
+      offset += data.length + (k % 100 == 99 ? 10 : 0);
+    }
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    Assert.assertTrue(compaction.copyBatch(table, Long.MAX_VALUE));
+    Assert.assertEquals(10, compaction.getRunNum());
+    
+    compaction.finish(new ArrayList<MemorySpace>());
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), table.getLen(i))));
+    }
+  }
+  
+  /**
+   * New offsets are applied by batches, final step costs same for any 
+   * number of datas
+   */
+  @Test
+  public void finishManyDatas() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    
+    buffers.put(0, ByteBuffer.allocateDirect(16 << 20));
+    buffers.put(-1, ByteBuffer.allocateDirect(16 << 20));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    
+    int num = 1 << 20;
+    PointerTable table = new PackedPointerTable(num);
+    for (int i = 0; i < num; i++) {
+      manager.writeData(0, i * 16L, ByteBuffer.allocate(4).putInt(i).array());
+      table.put(i, 0, i * 16L, 4);
+    }
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    compaction.prepare(table);
+    
+    long pauseLimit = TimeUnit.MILLISECONDS.toNanos(1);
+    while (!compaction.copyBatch(table, System.nanoTime() + pauseLimit)) {
+    }
+    
+    Assert.assertEquals(4L * (num - 1), table.getOffset(num - 1));
+    Assert.assertEquals(num - 1, ByteBuffer.wrap(manager.readData(0, table.getOffset(num - 1), 4)).getInt());
+    
+    long start = System.nanoTime();
+    Assert.assertEquals(4L * num, compaction.finish(new ArrayList<MemorySpace>()));
+    long cost = System.nanoTime() - start;
+    
+    Assert.assertTrue("finish cost " + cost + " ns", cost < TimeUnit.MILLISECONDS.toNanos(10));
+    
+    for (int i = 0; i < num; i += 1000) {
+      Assert.assertEquals(i, ByteBuffer.wrap(manager.readData(0, table.getOffset(i), 4)).getInt());
+    }
+  }
+  
+  @Test
+  public void abortedCopy() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 10));
+    buffers.put(-1, ByteBuffer.allocateDirect(1 << 10));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(10);
+    
+    for (int i = 0; i < 10; i++) {
+      manager.writeData(0, i * 20 + 10, ("data-" + i).getBytes());
+      table.put(i, 0, i * 20 + 10, 6);
+    }
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    release(manager, table, 1);
+    
+    // moved datas point back to original buffer, released one is freed there
+    List<MemorySpace> holes = new ArrayList<MemorySpace>();
+    Assert.assertFalse(compaction.abort(table, holes));
+    
+    Assert.assertEquals(1, holes.size());
+    Assert.assertEquals(new MemorySpace(0, 30, 36), holes.get(0));
+    
+    Assert.assertEquals(10, table.getOffset(0));
+    for (int i = 0; i < 10; i++) {
+      if (i != 1) {
+        Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), 6)));
+      }
+    }
+    
+    // spare is given back
+    Assert.assertNotNull(manager.startCompaction(0));
+  }
+  
+  @Test
+  public void slidingCopy() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 20));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(100);
+    
+    // slot order is reverse of address order, with gaps between datas
+    for (int i = 0; i < 100; i++) {
+      int offset = (99 - i) * 100 + 50;
+      
+      manager.writeData(0, offset, ("data-" + i).getBytes());
+      table.put(i, 0, offset, ("data-" + i).length());
+    }
+    
+    // large data that overlaps its new location
+    byte[] large = new byte[200 << 10];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    manager.writeData(0, 20000, large);
+    table.put(99, 0, 20000, large.length);
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    
+    Assert.assertTrue(compaction.copyBatch(table, Long.MAX_VALUE));
+    
+    List<MemorySpace> holes = new ArrayList<MemorySpace>();
+    long used = compaction.finish(holes);
+    
+    Assert.assertEquals(0, holes.size());
+    Assert.assertEquals(6 * 10 + 7 * 89 + large.length, used);
+    
+    int expectOffset = 0;
+    for (int i = 98; i >= 0; i--) {
+      Assert.assertEquals(expectOffset, table.getOffset(i));
+      Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), table.getLen(i))));
+      
+      expectOffset += table.getLen(i);
+    }
+    
+    Assert.assertEquals(expectOffset, table.getOffset(99));
+    Assert.assertTrue(Arrays.equals(large, manager.readData(0, expectOffset, large.length)));
+  }
+  
+  @Test
+  public void incrementalSliding() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 10));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(10);
+    
+    for (int i = 0; i < 10; i++) {
+      manager.writeData(0, i * 20 + 10, ("data-" + i).getBytes());
+      table.put(i, 0, i * 20 + 10, 6);
+    }
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    
+    // deadline has passed, one data for each batch after scanning
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    
+    // readers see moved data at new location between batches
+    Assert.assertEquals(6, table.getOffset(1));
+    Assert.assertEquals("data-1", new String(manager.readData(0, 6, 6)));
+    Assert.assertEquals(50, table.getOffset(2));
+    
+    // released after moving, and before moving
+    release(manager, table, 1);
+    release(manager, table, 5);
+    
+    while (!compaction.copyBatch(table, System.nanoTime())) {
+    }
+    
+    List<MemorySpace> holes = new ArrayList<MemorySpace>();
+    Assert.assertEquals(54, compaction.finish(holes));
+    
+    Assert.assertEquals(1, holes.size());
+    Assert.assertEquals(new MemorySpace(0, 6, 12), holes.get(0));
+    
+    for (int i = 0; i < 10; i++) {
+      if (i != 1 && i != 5) {
+        Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), 6)));
+      }
+    }
+  }
+  
+  @Test
+  public void abortedSliding() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 10));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(10);
+    
+    for (int i = 0; i < 10; i++) {
+      manager.writeData(0, i * 20 + 10, ("data-" + i).getBytes());
+      table.put(i, 0, i * 20 + 10, 6);
+    }
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    compaction.prepare(table);
+    
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    table.remove(3);
+    
+    // old holes [0, 10) and [16, 30) are covered by slid datas
+    List<MemorySpace> holes = new ArrayList<MemorySpace>();
+    Assert.assertTrue(compaction.abort(table, holes));
+    
+    Assert.assertEquals(8, holes.size());
+    Assert.assertEquals(new MemorySpace(0, 12, 50), holes.get(0));
+    Assert.assertEquals(new MemorySpace(0, 56, 90), holes.get(1));
+    Assert.assertEquals(new MemorySpace(0, 96, 110), holes.get(2));
+    Assert.assertEquals(new MemorySpace(0, 196, 1 << 10), holes.get(7));
+    
+    Assert.assertEquals("data-0", new String(manager.readData(0, table.getOffset(0), 6)));
+    Assert.assertEquals("data-1", new String(manager.readData(0, table.getOffset(1), 6)));
+    Assert.assertEquals("data-2", new String(manager.readData(0, table.getOffset(2), 6)));
+  }
+  
+  @Test
+  public void incrementalCopy() {
+    Map<Integer, ByteBuffer> buffers = new HashMap<Integer, ByteBuffer>();
+    
+    buffers.put(0, ByteBuffer.allocateDirect(1 << 10));
+    buffers.put(-1, ByteBuffer.allocateDirect(1 << 10));
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(buffers);
+    PointerTable table = new ObjectPointerTable(10);
+    
+    for (int i = 0; i < 10; i++) {
+      manager.writeData(0, i * 20, ("data-" + i).getBytes());
+      table.put(i, 0, i * 20, 6);
+    }
+    table.remove(0);
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    
+    // deadline has passed, one data for each batch
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    
+    // moved data is read from spare, others from original buffer
+    Assert.assertEquals(0, table.getOffset(1));
+    Assert.assertEquals("data-1", new String(manager.readData(0, 0, 6)));
+    Assert.assertEquals("data-2", new String(manager.readData(0, 40, 6)));
+    
+    Assert.assertFalse(compaction.copyBatch(table, System.nanoTime()));
+    
+    // released after copying
+    release(manager, table, 2);
+    table.put(2, 0, 500, 6);
+    
+    while (!compaction.copyBatch(table, System.nanoTime())) {
+    }
+    
+    List<MemorySpace> holes = new ArrayList<MemorySpace>();
+    Assert.assertEquals(54, compaction.finish(holes));
+    
+    Assert.assertEquals(1, holes.size());
+    Assert.assertEquals(new MemorySpace(0, 6, 12), holes.get(0));
+    Assert.assertEquals(500, table.getOffset(2));
+    
+    for (int i = 3; i < 10; i++) {
+      Assert.assertEquals("data-" + i, new String(manager.readData(0, table.getOffset(i), 6)));
+    }
+  }
+  
+  @Test
+  public void closeWithSpareInUse() {
+    final AtomicInteger freed = new AtomicInteger();
+    MemoryRegionFactory factory = new MemoryRegionFactory(new MemoryAllocateConf()) {
+      public MemoryRegion allocate(long capacity) {
+        return new HeapMemoryRegion((int) capacity) {
+          public void free() {
+            freed.incrementAndGet();
+          }
+        };
+      }
+    };
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(factory, 1);
+    manager.reserveBuffer(0, 1 << 10);
+    manager.materialize(0);
+    manager.reserveSpares(1, 1 << 10);
+    
+    PhysicalMemoryManager.Compaction compaction = manager.startCompaction(0);
+    Assert.assertNotNull(compaction);
+    
+    manager.close();
+    Assert.assertEquals(2, freed.get());
+    
+    // arrangement gives up after closing, spare is not pooled or freed again
+    Assert.assertFalse(compaction.abort(new ObjectPointerTable(10), new ArrayList<MemorySpace>()));
+    Assert.assertEquals(2, freed.get());
+  }
+  
+  /**
+   * Buffer allocated while manager is closing is freed, not published
+   */
+  @Test
+  public void materializeWhileClosing() {
+    final AtomicInteger freed = new AtomicInteger();
+    final PhysicalMemoryManager[] holder = new PhysicalMemoryManager[1];
+    MemoryRegionFactory factory = new MemoryRegionFactory(new MemoryAllocateConf()) {
+      public MemoryRegion allocate(long capacity) {
+        // first buffer is allocated before closing, second one during it
+        if (holder[0].isMaterialized(0)) {
+          holder[0].close();
+        }
+        
+        return new HeapMemoryRegion((int) capacity) {
+          public void free() {
+            freed.incrementAndGet();
+          }
+        };
+      }
+    };
+    
+    PhysicalMemoryManager manager = new PhysicalMemoryManager(factory, 2);
+    holder[0] = manager;
+    
+    manager.reserveBuffer(0, 1 << 10);
+    manager.reserveBuffer(1, 1 << 10);
+    manager.materialize(0);
+    
+    try {
+      manager.materialize(1);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+    }
+    Assert.assertEquals(2, freed.get());
+    
+    try {
+      manager.materialize(1);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+    }
+    Assert.assertFalse(manager.isMaterialized(1));
+  }
+  
+  private void release(PhysicalMemoryManager manager, PointerTable table, int index) {
+    long offset = table.getOffset(index);
+    int len = table.getLen(index);
+    
+    table.remove(index);
+    manager.takeReleased(0, offset, len);
+  }
 }
-
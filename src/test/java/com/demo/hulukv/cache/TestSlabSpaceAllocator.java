@@ -0,0 +1,215 @@
+package com.demo.hulukv.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Size classes, page ownership and chunk reuse of slab allocator
+ *
+ * @version 1.0
+ */
+public class TestSlabSpaceAllocator {
+  
+  @Test
+  public void allocateFromSizeClasses() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setSlabSizeClasses(64, 256, 1024);
+    conf.setSlabPageSize(4096);
+    
+    SlabSpaceAllocator allocator = new SlabSpaceAllocator(conf, 1);
+    allocator.addSlice(0, 8192);
+    
+    MemorySpace first = allocator.allocate(230);
+    Assert.assertEquals(0, first.getOffset());
+    Assert.assertEquals(230, first.getSpaceLen());
+    Assert.assertEquals(26, allocator.getWastedBytes(256));
+    
+    MemorySpace large = allocator.allocate(1000);
+    Assert.assertEquals(4096, large.getOffset());
+    Assert.assertEquals(24, allocator.getWastedBytes(1024));
+    
+    Assert.assertEquals(256, allocator.allocate(230).getOffset());
+    
+    allocator.addFreeSpace(first);
+    Assert.assertEquals(26, allocator.getWastedBytes(256));
+    
+    // released chunk is taken before next one of page
+    Assert.assertEquals(0, allocator.allocate(200).getOffset());
+    Assert.assertEquals(82, allocator.getWastedBytes(256));
+  }
+  
+  @Test
+  public void lengthAboveLargestClass() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setSlabSizeClasses(64, 256, 1024);
+    conf.setSlabPageSize(4096);
+    
+    SlabSpaceAllocator allocator = new SlabSpaceAllocator(conf, 1);
+    allocator.addSlice(0, 8192);
+    
+    try {
+      allocator.allocate(1025);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    try {
+      allocator.allocate(4096);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    // no page is dedicated by failed request
+    Assert.assertEquals(0, allocator.allocate(64).getOffset());
+    Assert.assertEquals(4096, allocator.allocate(1024).getOffset());
+    Assert.assertEquals(1024, allocator.allocate(1024).getSpaceLen());
+    
+    // class larger than page is refused at all
+    conf.setSlabSizeClasses(64, 8192);
+    try {
+      new SlabSpaceAllocator(conf, 1);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+  
+  @Test
+  public void pagesExhaustedPerClass() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    conf.setSlabSizeClasses(64, 256, 1024);
+    conf.setSlabPageSize(4096);
+    
+    SlabSpaceAllocator allocator = new SlabSpaceAllocator(conf, 1);
+    allocator.addSlice(0, 8192);
+    
+    // page 0 to class 256, page 1 to class 64
+    MemorySpace[] mediums = new MemorySpace[4096 / 256];
+    for (int i = 0; i < mediums.length; i++) {
+      mediums[i] = allocator.allocate(256);
+      Assert.assertEquals(i * 256, mediums[i].getOffset());
+    }
+    Assert.assertEquals(4096, allocator.allocate(64).getOffset());
+    
+    try {
+      allocator.allocate(256);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    // class without any page cannot take one either
+    try {
+      allocator.allocate(1000);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    // class 64 still fills its own page
+    for (int i = 1; i < 4096 / 64; i++) {
+      Assert.assertEquals(4096 + i * 64, allocator.allocate(64).getOffset());
+    }
+    try {
+      allocator.allocate(64);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    
+    // released chunk serves its own class only
+    allocator.addFreeSpace(mediums[5]);
+    try {
+      allocator.allocate(64);
+      Assert.fail();
+    } catch (AllocateFailedException e) {
+    }
+    Assert.assertEquals(5 * 256, allocator.allocate(100).getOffset());
+  }
+  
+  /**
+   * Classes race for shared free pages until all pages are handed out, 
+   * then chunks are released by threads other than the ones that took 
+   * them and taken again by their own class.
+   */
+  @Test
+  public void concurrentPageHandoff() throws Exception {
+    MemoryAllocateConf conf = new MemoryAllocateConf();
+    
+    final int[] sizes = {64, 256, 1024};
+    conf.setSlabSizeClasses(sizes);
+    conf.setSlabPageSize(4096);
+    
+    SlabSpaceAllocator allocator = new SlabSpaceAllocator(conf, 2);
+    allocator.addSlice(0, 64 << 10);
+    allocator.addSlice(1, 64 << 10);
+    
+    final ConcurrentAllocation allocation = new ConcurrentAllocation(allocator);
+    final List<List<MemorySpace>> owned = new ArrayList<List<MemorySpace>>();
+    for (int t = 0; t < 6; t++) {
+      owned.add(new ArrayList<MemorySpace>());
+    }
+    
+    allocation.run(owned.size(), new ConcurrentAllocation.Worker() {
+      public void run(int thread) throws Exception {
+        try {
+          while (true) {
+            owned.get(thread).add(allocation.take(sizes[thread % sizes.length]));
+          }
+        } catch (AllocateFailedException e) {
+          // class is full and no free page left
+        }
+      }
+    });
+    
+    // every page is handed to exactly one class and fully carved
+    Map<Long, Long> pageClasses = new HashMap<Long, Long>();
+    long heldBytes = 0L;
+    for (MemorySpace space : allocation.heldSpaces()) {
+      long page = ConcurrentAllocation.keyOf(space.getDirectByteId(), space.getOffset() / 4096);
+      Long previous = pageClasses.put(page, space.getSpaceLen());
+      Assert.assertTrue(previous == null || previous == space.getSpaceLen());
+      
+      heldBytes += space.getSpaceLen();
+    }
+    Assert.assertEquals(32, pageClasses.size());
+    Assert.assertEquals(2 * (64 << 10), heldBytes);
+    
+    allocation.run(owned.size(), new ConcurrentAllocation.Worker() {
+      public void run(int thread) throws Exception {
+        List<MemorySpace> others = owned.get((thread + 1) % owned.size());
+        int taken = owned.get(thread).size();
+        
+        allocation.await();
+        for (MemorySpace space : others) {
+          allocation.giveBack(space);
+        }
+        allocation.await();
+        
+        // released chunks go back to their own class
+        List<MemorySpace> retaken = new ArrayList<MemorySpace>();
+        for (int i = 0; i < taken; i++) {
+          retaken.add(allocation.take(sizes[thread % sizes.length]));
+        }
+        
+        allocation.await();
+        owned.set(thread, retaken);
+      }
+    });
+    
+    for (List<MemorySpace> spaces : owned) {
+      for (MemorySpace space : spaces) {
+        allocation.giveBack(space);
+      }
+    }
+    
+    for (int size : sizes) {
+      Assert.assertEquals(0, allocator.getWastedBytes(size));
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.demo.hulukv.cache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class Description
+ *
+ * @version 1.0
+ */
+public class TestSlotAllocator {
+
+  @Test
+  public void acquireAllSlots() {
+    SlotAllocator allocator = new SlotAllocator(1000);
+    
+    Set<Integer> slots = new HashSet<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      int slot = allocator.tryAcquire();
+      Assert.assertTrue(slot >= 0 && slot < 1000);
+      Assert.assertTrue(slots.add(slot));
+    }
+    
+    Assert.assertEquals(SlotAllocator.NO_SLOT, allocator.tryAcquire());
+    
+    allocator.release(10);
+    allocator.release(20);
+    Assert.assertEquals(20, allocator.tryAcquire());
+    Assert.assertEquals(10, allocator.tryAcquire());
+    Assert.assertEquals(SlotAllocator.NO_SLOT, allocator.tryAcquire());
+  }
+  
+  @Test
+  public void waitForReleasedSlot() throws InterruptedException {
+    final SlotAllocator allocator = new SlotAllocator(1);
+    Assert.assertEquals(0, allocator.tryAcquire());
+    
+    long start = System.currentTimeMillis();
+    Assert.assertEquals(SlotAllocator.NO_SLOT, allocator.acquire(50, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+    
+    Thread releaser = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {}
+        
+        allocator.release(0);
+      }
+    };
+    releaser.start();
+    
+    Assert.assertEquals(0, allocator.acquire(5, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void concurrentAcquireAndRelease() throws InterruptedException {
+    final SlotAllocator allocator = new SlotAllocator(64);
+    final int[] owners = new int[64];
+    final boolean[] failed = new boolean[1];
+    
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t + 1;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            int slot = allocator.tryAcquire();
+            if (slot == SlotAllocator.NO_SLOT) {
+              continue;
+            }
+            
+            synchronized (owners) {
+              if (owners[slot] != 0) {
+                failed[0] = true;
+              }
+              owners[slot] = id;
+            }
+            
+            synchronized (owners) {
+              owners[slot] = 0;
+            }
+            allocator.release(slot);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    
+    Assert.assertFalse(failed[0]);
+  }
+}